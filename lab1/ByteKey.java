@@ -0,0 +1,104 @@
+/** Map key holding the raw US-ASCII bytes of a key string.
+ *
+ *  Keys are compared byte by byte, so a request can be looked up
+ *  directly from the receive buffer. A worker keeps one mutable probe
+ *  key that is pointed at the key bytes of each request with set();
+ *  only keys that are actually stored in the map get their own copy.
+ */
+public class ByteKey {
+	private byte[] buf;	// bytes of the key
+	private int off;	// offset of the first byte in buf
+	private int len;	// number of bytes in the key
+	private int hash;	// cached hash of the key bytes
+
+	/** Construct an empty probe key. */
+	public ByteKey() { buf = new byte[0]; }
+
+	/** Construct a key holding a private copy of some bytes.
+	 *  @param src is a buffer containing the key
+	 *  @param off is the offset of the key in src
+	 *  @param len is the length of the key
+	 */
+	public ByteKey(byte[] src, int off, int len) {
+		buf = new byte[len];
+		System.arraycopy(src, off, buf, 0, len);
+		set(buf, 0, len);
+	}
+
+	/** Point this key at a span of a buffer, without copying.
+	 *  @param buf is a buffer containing the key
+	 *  @param off is the offset of the key in buf
+	 *  @param len is the length of the key
+	 *  @return this key
+	 */
+	public ByteKey set(byte[] buf, int off, int len) {
+		this.buf = buf; this.off = off; this.len = len;
+		int h = 0;
+		for (int i = off; i < off + len; i++) h = 31 * h + buf[i];
+		hash = h;
+		return this;
+	}
+
+	/** Make a stored copy of this key. */
+	public ByteKey copy() { return new ByteKey(buf, off, len); }
+
+	/** Get the length of the key in bytes. */
+	public int length() { return len; }
+
+	/** Copy the key bytes into a buffer.
+	 *  @param dst is the buffer the key is copied into
+	 *  @param pos is the offset in dst of the first byte
+	 */
+	public void getBytes(byte[] dst, int pos) {
+		System.arraycopy(buf, off, dst, pos, len);
+	}
+
+	/** Copy the key bytes into a buffer, without moving its position.
+	 *  @param dst is the buffer the key is copied into
+	 *  @param pos is the index in dst of the first byte
+	 */
+	public void getBytes(java.nio.ByteBuffer dst, int pos) {
+		dst.put(pos, buf, off, len);
+	}
+
+	/** Test if a buffer holds this key's bytes at some position.
+	 *  @param b is a buffer
+	 *  @param pos is the index in b of the bytes to compare with
+	 *  @return true if the len bytes at pos equal this key
+	 */
+	public boolean matches(java.nio.ByteBuffer b, int pos) {
+		for (int i = 0; i < len; i++)
+			if (b.get(pos + i) != buf[off + i]) return false;
+		return true;
+	}
+
+	/** Test if a byte array holds this key's bytes at some offset.
+	 *  @param b is a byte array
+	 *  @param pos is the offset in b of the bytes to compare with
+	 *  @return true if the len bytes at pos equal this key
+	 */
+	public boolean matches(byte[] b, int pos) {
+		for (int i = 0; i < len; i++)
+			if (b[pos + i] != buf[off + i]) return false;
+		return true;
+	}
+
+	@Override
+	public int hashCode() { return hash; }
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof ByteKey)) return false;
+		ByteKey k = (ByteKey) o;
+		if (k.hash != hash || k.len != len) return false;
+		for (int i = 0; i < len; i++)
+			if (buf[off + i] != k.buf[k.off + i]) return false;
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return new String(buf, off, len,
+				java.nio.charset.StandardCharsets.US_ASCII);
+	}
+}
@@ -0,0 +1,567 @@
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/** Store that adds expiry and a memory limit to another store.
+ *
+ *  A pair may be given an expiry time; it then disappears from the store
+ *  at that time. Expiry times are kept in a hashed timer wheel of WHEEL
+ *  slots, one per TICK_MS milliseconds. A pair goes into the slot of the
+ *  tick in which it expires, with a count of the whole turns of the wheel
+ *  still to wait, so adding or cancelling an expiry takes constant time
+ *  and each tick only looks at the pairs in one slot. Gets check the
+ *  expiry time themselves, so an expired pair is never returned, even
+ *  in the tick before the wheel removes it.
+ *
+ *  If a memory limit is set, the store counts the bytes of every key and
+ *  value plus OVERHEAD bytes per pair, a rough measure of what the inner
+ *  store and this one spend to keep a pair, and evicts pairs whenever the
+ *  count exceeds the limit. Victims are chosen with the CLOCK algorithm:
+ *  the pairs form a ring, a get sets the pair's reference bit, and the
+ *  clock hand clears set bits as it passes until it finds a pair whose
+ *  bit is clear, which is evicted. A write does not evict by itself; the
+ *  writer calls trim() once it holds no locks, and the tick thread trims
+ *  as well.
+ *
+ *  The cache state is split into SEGMENTS segments, picked by the top
+ *  bits of the key's mixed hash as in OffHeapStore, each guarded by its
+ *  own lock. A segment numbers its pairs and keeps their state in
+ *  primitive arrays indexed by that number, with the key bytes packed in
+ *  one byte array and an open addressing slot table to find the number
+ *  of a key, so a pair costs well under 100 bytes beyond its key and no
+ *  objects at all. Each segment has its own timer wheel and clock ring;
+ *  trim() takes its victims from the segments in turn, passing over any
+ *  that hold less than their share of the counted bytes. Taken strictly
+ *  in turn, each segment's share would drift like a random walk until
+ *  some held little but hot pairs, whose hand would then evict them;
+ *  kept even, the segments come close to a single clock.
+ *
+ *  Pairs without an expiry time cost nothing extra while there is no
+ *  memory limit. Writes to a key are serialized by lockFor(key), which is
+ *  the log's lock for the key if there is a log; expiries and evictions
+ *  take the same lock and are logged as removes.
+ */
+public class CacheStore implements Store {
+	public static final long TICK_MS = 100;	// time between wheel ticks
+	public static final int WHEEL = 512;	// slots in the timer wheel
+	public static final int OVERHEAD = 256;	// bytes counted per pair
+	private static final int SEGMENTS = 64;	// must be a power of 2
+	private static final int SEG_BITS = 6;	// log2(SEGMENTS)
+	private static final long EMPTY = 0;	// slot never used
+	private static final long DELETED = -1;	// slot of a dropped pair
+	private static final int NONE = -1;	// no pair
+
+	private Store store;		// store holding the pairs
+	private long maxBytes;		// memory limit; 0 if none
+	private MapLog log;		// log for expiries and evictions, or null
+	private Object[] stripes;	// locks ordering writes per key when
+					// there is no log
+
+	private Segment[] segs;		// cache state of the pairs that expire
+					// or are counted
+	private volatile boolean tracking; // true once any pair has state
+	private volatile int tick;	// slot of the current tick
+	private volatile long tickTime;	// time the next tick is due
+	private AtomicInteger nextSeg;	// segment trim() takes a victim from
+	private AtomicLong used;	// bytes counted against maxBytes
+
+	private Thread myThread;
+
+	/** Cache state of the pairs in one segment. The pairs are numbered,
+	 *  and the arrays from keyAt on are indexed by number.
+	 */
+	private static class Segment {
+		long[] slots;		// key hash in the high half and one more
+					// than the number in the low half, or
+					// EMPTY, or DELETED
+		int mask;		// number of slots minus 1
+		int used;		// slots that are not EMPTY
+		int live;		// numbers in use
+		byte[] keys;		// key bytes occupy [0,top)
+		int top;		// offset of the first free key byte
+		int garbage;		// key bytes of dropped pairs
+
+		int[] keyAt = {};	// offset of the key in keys; -1 if free
+		int[] keyLen = {};	// length of the key
+		int[] size = {};	// bytes counted for the pair
+		long bytes;		// sum of size over the pairs
+		long[] expires = {};	// expiry time in ms; 0 if none
+		int[] rounds = {};	// whole wheel turns left before expiry
+		int[] slot = {};	// wheel slot, or -1 if not in the wheel
+		int[] wPrev = {};	// neighbours in the wheel slot; wNext
+		int[] wNext = {};	// also links up the free numbers
+		int[] cPrev = {};	// neighbours in the clock ring, or NONE
+		int[] cNext = {};
+		boolean[] ref = {};	// set by gets, cleared by the hand
+
+		int[] wheel;		// first pair in each wheel slot
+		int hand = NONE;	// clock hand; NONE if the ring is empty
+		int free = NONE;	// first free number
+
+		Segment() {
+			slots = new long[16];
+			mask = 15;
+			keys = new byte[256];
+			wheel = new int[WHEEL];
+			Arrays.fill(wheel, NONE);
+			grow(8);
+		}
+
+		/** Make room for n numbers, and add the new ones to the free
+		 *  numbers.
+		 */
+		void grow(int n) {
+			int old = keyAt.length;
+			keyAt = Arrays.copyOf(keyAt, n);
+			keyLen = Arrays.copyOf(keyLen, n);
+			size = Arrays.copyOf(size, n);
+			expires = Arrays.copyOf(expires, n);
+			rounds = Arrays.copyOf(rounds, n);
+			slot = Arrays.copyOf(slot, n);
+			wPrev = Arrays.copyOf(wPrev, n);
+			wNext = Arrays.copyOf(wNext, n);
+			cPrev = Arrays.copyOf(cPrev, n);
+			cNext = Arrays.copyOf(cNext, n);
+			ref = Arrays.copyOf(ref, n);
+			for (int i = n - 1; i >= old; i--) {
+				keyAt[i] = -1;
+				wNext[i] = free;
+				free = i;
+			}
+		}
+
+		/** Find the number of a key.
+		 *  @return the number, or NONE if the key has no cache state
+		 */
+		int find(int h, ByteKey key) {
+			for (int i = h & mask; ; i = (i + 1) & mask) {
+				long s = slots[i];
+				if (s == EMPTY) return NONE;
+				if (s != DELETED && (int) (s >>> 32) == h) {
+					int n = (int) s - 1;
+					if (keyLen[n] == key.length() &&
+					    key.matches(keys, keyAt[n]))
+						return n;
+				}
+			}
+		}
+
+		/** Number a key that has no cache state, with no expiry time,
+		 *  outside the wheel and the ring.
+		 *  @return the number
+		 */
+		int add(int h, ByteKey key) {
+			if (free == NONE) grow(2 * keyAt.length);
+			int n = free;
+			free = wNext[n];
+			int klen = key.length();
+			int p = alloc(klen);
+			key.getBytes(keys, p);
+			keyAt[n] = p;
+			keyLen[n] = klen;
+			expires[n] = 0;
+			slot[n] = -1;
+			wPrev[n] = wNext[n] = NONE;
+			cPrev[n] = cNext[n] = NONE;
+			ref[n] = false;
+			for (int i = h & mask; ; i = (i + 1) & mask) {
+				long t = slots[i];
+				if (t == EMPTY || t == DELETED) {
+					if (t == EMPTY) used++;
+					slots[i] = ((long) h << 32) | (n + 1L);
+					break;
+				}
+			}
+			live++;
+			if (used > (mask + 1) / 4 * 3)
+				rehash(live > (mask + 1) / 2 ? 2 * (mask + 1) : mask + 1);
+			return n;
+		}
+
+		/** Forget the cache state of a pair, taking it out of the wheel
+		 *  and the ring, and free its number.
+		 */
+		void drop(int h, int n) {
+			wheelRemove(n);
+			if (cNext[n] != NONE) ringRemove(n);
+			long s = ((long) h << 32) | (n + 1L);
+			int i = h & mask;
+			while (slots[i] != s) i = (i + 1) & mask;
+			slots[i] = DELETED;
+			garbage += keyLen[n];
+			keyAt[n] = -1;
+			wNext[n] = free;
+			free = n;
+			live--;
+		}
+
+		/** Take n bytes at the end of keys.
+		 *  When keys is full the keys in use are copied into a new
+		 *  array, grown so it is at most three quarters full after the
+		 *  allocation.
+		 *  @return the offset of the bytes
+		 */
+		int alloc(int n) {
+			if (top + n > keys.length) {
+				long cap = keys.length;
+				while (top - garbage + n > cap / 4 * 3) cap += cap / 2;
+				if (cap > Integer.MAX_VALUE - 8)
+					throw new IllegalStateException("segment full");
+				byte[] fresh = new byte[(int) cap];
+				int q = 0;
+				for (int i = 0; i < keyAt.length; i++) {
+					if (keyAt[i] < 0) continue;
+					System.arraycopy(keys, keyAt[i], fresh, q, keyLen[i]);
+					keyAt[i] = q;
+					q += keyLen[i];
+				}
+				keys = fresh;
+				top = q;
+				garbage = 0;
+			}
+			int p = top;
+			top += n;
+			return p;
+		}
+
+		/** Rebuild the slot table with n slots, dropping DELETED slots. */
+		void rehash(int n) {
+			long[] old = slots;
+			slots = new long[n];
+			mask = n - 1;
+			for (long s : old) {
+				if (s == EMPTY || s == DELETED) continue;
+				int j = (int) (s >>> 32) & mask;
+				while (slots[j] != EMPTY) j = (j + 1) & mask;
+				slots[j] = s;
+			}
+			used = live;
+		}
+
+		/** Copy out the key of a pair. */
+		ByteKey key(int n) { return new ByteKey(keys, keyAt[n], keyLen[n]); }
+
+		/** Test if a pair has expired at a given time. */
+		boolean expired(int n, long now) {
+			long t = expires[n];
+			return t != 0 && t <= now;
+		}
+
+		/** Put a pair in the wheel slot of its expiry time.
+		 *  @param n is the pair's number
+		 *  @param tick is the slot of the current tick
+		 *  @param tickTime is the time the next tick is due
+		 */
+		void wheelAdd(int n, int tick, long tickTime) {
+			// ticks to wait until a tick at or after the expiry time
+			long d = (expires[n] - tickTime + TICK_MS - 1) / TICK_MS + 1;
+			if (d < 1) d = 1;
+			int s = (int) ((tick + d) % WHEEL);
+			slot[n] = s;
+			rounds[n] = (int) Math.min((d - 1) / WHEEL, Integer.MAX_VALUE);
+			wPrev[n] = NONE;
+			wNext[n] = wheel[s];
+			if (wNext[n] != NONE) wPrev[wNext[n]] = n;
+			wheel[s] = n;
+		}
+
+		/** Take a pair out of the timer wheel, if it is there. */
+		void wheelRemove(int n) {
+			if (slot[n] < 0) return;
+			if (wPrev[n] != NONE) wNext[wPrev[n]] = wNext[n];
+			else wheel[slot[n]] = wNext[n];
+			if (wNext[n] != NONE) wPrev[wNext[n]] = wPrev[n];
+			wPrev[n] = wNext[n] = NONE;
+			slot[n] = -1;
+		}
+
+		/** Add a pair to the clock ring, just behind the hand. */
+		void ringAdd(int n) {
+			if (hand == NONE) {
+				cPrev[n] = cNext[n] = n;
+				hand = n;
+			} else {
+				cNext[n] = hand;
+				cPrev[n] = cPrev[hand];
+				cNext[cPrev[hand]] = n;
+				cPrev[hand] = n;
+			}
+		}
+
+		/** Take a pair out of the clock ring. */
+		void ringRemove(int n) {
+			if (cNext[n] == n) {
+				hand = NONE;
+			} else {
+				cNext[cPrev[n]] = cNext[n];
+				cPrev[cNext[n]] = cPrev[n];
+				if (hand == n) hand = cNext[n];
+			}
+			cPrev[n] = cNext[n] = NONE;
+		}
+	}
+
+	/** Initialize a new CacheStore object.
+	 *  @param store is the store that holds the pairs
+	 *  @param maxBytes is the memory limit, or 0 for none
+	 */
+	CacheStore(Store store, long maxBytes) {
+		this.store = store;
+		this.maxBytes = maxBytes;
+		stripes = new Object[64];
+		for (int i = 0; i < stripes.length; i++) stripes[i] = new Object();
+		segs = new Segment[SEGMENTS];
+		for (int i = 0; i < SEGMENTS; i++) segs[i] = new Segment();
+		tracking = (maxBytes > 0);
+		tickTime = System.currentTimeMillis() + TICK_MS;
+		nextSeg = new AtomicInteger();
+		used = new AtomicLong();
+	}
+
+	/** Set the log that expiries and evictions are written to. */
+	public void setLog(MapLog log) { this.log = log; }
+
+	/** Start the thread that advances the timer wheel. */
+	public void start() {
+		myThread = new Thread(() -> {
+			while (true) {
+				try {
+					Thread.sleep(TICK_MS);
+					expire();
+					trim();
+				} catch (Exception e) {
+					System.err.println("CacheStore: exception " + e);
+				}
+			}
+		});
+		myThread.setDaemon(true);
+		myThread.start();
+	}
+
+	/** Get the lock that orders the writes to a key. */
+	public Object lockFor(ByteKey key) {
+		if (log != null) return log.lockFor(key);
+		return stripes[key.hashCode() & (stripes.length - 1)];
+	}
+
+	public int get(ByteKey key, ByteBuffer dst) {
+		if (tracking) {
+			int h = mix(key.hashCode());
+			Segment seg = segs[h >>> (32 - SEG_BITS)];
+			synchronized (seg) {
+				int n = seg.find(h, key);
+				if (n != NONE) {
+					if (seg.expired(n, System.currentTimeMillis()))
+						return -1;
+					seg.ref[n] = true;
+				}
+			}
+		}
+		return store.get(key, dst);
+	}
+
+	public boolean put(ByteKey key, byte[] buf, int off, int len) {
+		return put(key, buf, off, len, 0);
+	}
+
+	/** Add a pair or change the value of a stored key.
+	 *  @param key is the key
+	 *  @param buf is a buffer containing the value
+	 *  @param off is the offset of the value in buf
+	 *  @param len is the length of the value
+	 *  @param expires is the time in ms when the pair expires, or 0
+	 *  @return true if the key had a value before that had not expired
+	 */
+	public boolean put(ByteKey key, byte[] buf, int off, int len,
+			   long expires) {
+		synchronized (lockFor(key)) {
+			boolean previous = store.put(key, buf, off, len);
+			if (!tracking && expires == 0) return previous;
+			tracking = true;
+			int h = mix(key.hashCode());
+			Segment seg = segs[h >>> (32 - SEG_BITS)];
+			synchronized (seg) {
+				int n = seg.find(h, key);
+				if (n == NONE) {
+					if (expires == 0 && maxBytes == 0)
+						return previous;
+					n = seg.add(h, key);
+					if (maxBytes > 0) seg.ringAdd(n);
+				} else {
+					if (seg.expired(n, System.currentTimeMillis()))
+						previous = false;
+					used.addAndGet(-seg.size[n]);
+					seg.bytes -= seg.size[n];
+					seg.wheelRemove(n);
+					if (expires == 0 && maxBytes == 0) {
+						seg.drop(h, n);
+						return previous;
+					}
+				}
+				seg.size[n] = key.length() + len + OVERHEAD;
+				used.addAndGet(seg.size[n]);
+				seg.bytes += seg.size[n];
+				seg.expires[n] = expires;
+				if (expires != 0) seg.wheelAdd(n, tick, tickTime);
+			}
+			return previous;
+		}
+	}
+
+	public boolean remove(ByteKey key) {
+		synchronized (lockFor(key)) {
+			boolean removed = store.remove(key);
+			if (!tracking) return removed;
+			int h = mix(key.hashCode());
+			Segment seg = segs[h >>> (32 - SEG_BITS)];
+			synchronized (seg) {
+				int n = seg.find(h, key);
+				if (n != NONE) {
+					if (seg.expired(n, System.currentTimeMillis()))
+						removed = false;
+					used.addAndGet(-seg.size[n]);
+					seg.bytes -= seg.size[n];
+					seg.drop(h, n);
+				}
+			}
+			return removed;
+		}
+	}
+
+	/** Get the expiry time of a key.
+	 *  @return the time in ms when the key expires, or 0 if it does not
+	 */
+	public long expires(ByteKey key) {
+		if (!tracking) return 0;
+		int h = mix(key.hashCode());
+		Segment seg = segs[h >>> (32 - SEG_BITS)];
+		synchronized (seg) {
+			int n = seg.find(h, key);
+			return (n == NONE ? 0 : seg.expires[n]);
+		}
+	}
+
+	public Iterator<Map.Entry<ByteKey, byte[]>> scan() {
+		Iterator<Map.Entry<ByteKey, byte[]>> it = store.scan();
+		return new Iterator<Map.Entry<ByteKey, byte[]>>() {
+			private Map.Entry<ByteKey, byte[]> next; // next live pair
+
+			public boolean hasNext() {
+				while (next == null && it.hasNext()) {
+					next = it.next();
+					long t = expires(next.getKey());
+					if (t != 0 && t <= System.currentTimeMillis())
+						next = null;
+				}
+				return next != null;
+			}
+
+			public Map.Entry<ByteKey, byte[]> next() {
+				if (!hasNext()) throw new NoSuchElementException();
+				Map.Entry<ByteKey, byte[]> pair = next;
+				next = null;
+				return pair;
+			}
+		};
+	}
+
+	/** Evict pairs until the memory count is within the limit.
+	 *  The caller must not hold any of the locks of this store.
+	 */
+	public void trim() {
+		int empty = 0; // segments in a row without pairs in their ring
+		int passed = 0; // segments in a row passed over as too small
+		while (maxBytes > 0 && used.get() > maxBytes && empty < SEGMENTS) {
+			Segment seg = segs[nextSeg.getAndIncrement() & (SEGMENTS - 1)];
+			ByteKey victim;
+			synchronized (seg) {
+				if (seg.hand == NONE) {
+					empty++;
+					continue;
+				}
+				empty = 0;
+				if (seg.bytes * SEGMENTS < used.get() &&
+				    passed < SEGMENTS) {
+					passed++;
+					continue;
+				}
+				passed = 0;
+				int n = seg.hand;
+				while (seg.ref[n]) {
+					seg.ref[n] = false;
+					n = seg.cNext[n];
+				}
+				victim = seg.key(n);
+				seg.hand = seg.cNext[n];
+			}
+			evict(victim, false);
+		}
+	}
+
+	/** Advance the timer wheels to the current time and remove the
+	 *  pairs that have expired.
+	 */
+	private void expire() {
+		long now = System.currentTimeMillis();
+		ArrayList<ByteKey> due = new ArrayList<ByteKey>();
+		while (tickTime <= now) {
+			int t = (tick + 1) % WHEEL;
+			tick = t;
+			tickTime += TICK_MS;
+			for (Segment seg : segs) {
+				synchronized (seg) {
+					int n = seg.wheel[t];
+					while (n != NONE) {
+						int next = seg.wNext[n];
+						if (seg.rounds[n] > 0) {
+							seg.rounds[n]--;
+						} else {
+							seg.wheelRemove(n);
+							if (seg.expired(n, now))
+								due.add(seg.key(n));
+							else // not quite due yet
+								seg.wheelAdd(n, t, tickTime);
+						}
+						n = next;
+					}
+				}
+			}
+		}
+		for (ByteKey key : due) evict(key, true);
+	}
+
+	/** Remove a pair from the store unless it changed since it was
+	 *  chosen, and log the remove.
+	 *  @param key is the pair's key
+	 *  @param expiring is true if the pair is removed because it expired
+	 */
+	private void evict(ByteKey key, boolean expiring) {
+		int h = mix(key.hashCode());
+		Segment seg = segs[h >>> (32 - SEG_BITS)];
+		synchronized (lockFor(key)) {
+			synchronized (seg) {
+				int n = seg.find(h, key);
+				if (n == NONE) return; // already dropped
+				if (expiring &&
+				    !seg.expired(n, System.currentTimeMillis()))
+					return; // given a new expiry time meanwhile
+				// out of the store before its state goes, so that a
+				// get never finds the pair without its expiry time
+				store.remove(key);
+				used.addAndGet(-seg.size[n]);
+				seg.bytes -= seg.size[n];
+				seg.drop(h, n);
+			}
+			if (log != null) log.remove(key);
+		}
+	}
+
+	/** Spread the bits of a key's hash code, so both its top bits (which
+	 *  pick the segment) and its low bits (which pick the slot) vary.
+	 */
+	private static int mix(int h) {
+		h ^= h >>> 16; h *= 0x85ebca6b;
+		h ^= h >>> 13; h *= 0xc2b2ae35;
+		return h ^ (h >>> 16);
+	}
+}
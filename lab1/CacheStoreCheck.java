@@ -0,0 +1,146 @@
+/** Checks expiry and eviction in CacheStore.
+ *  usage: CacheStoreCheck [ numPairs ] [ seed ]
+ *
+ *  For expiry, it puts pairs that expire at random times in the next
+ *  1.5 seconds into a store whose timer wheel is running. A pair must be
+ *  served until its expiry time and not after, even before the wheel
+ *  gets to it; a put or remove of an expired pair must say the key had
+ *  no value; and once the wheel has passed, the pair must be gone from
+ *  the inner store and from scans. A pair given a new expiry time, or
+ *  none, must live by the new one, and a pair that expires more than a
+ *  turn of the wheel away must outlive the wheel's first pass over its
+ *  slot. For eviction, it streams many pairs through a store with room
+ *  for CAPACITY pairs, reading HOT hot keys after every 100 puts: after
+ *  trim() the store must hold exactly as many pairs as fit its limit,
+ *  and CLOCK must keep every hot key, since each is read again well
+ *  before the hand comes back to it. A check that fails throws an
+ *  AssertionError, which exits with status 1.
+ *
+ *  numPairs	is the number of pairs in each part; default 20000
+ *  seed	is the seed of the expiry times; default 1
+ */
+
+import java.nio.*;
+import java.util.*;
+
+public class CacheStoreCheck {
+	static final int CAPACITY = 3200; // pairs that fit the memory limit
+	static final int HOT = 320;	  // keys read after every 100 puts
+
+	public static void main(String[] args) throws Exception {
+		int numPairs = (args.length > 0 ? Integer.parseInt(args[0]) : 20000);
+		long seed = (args.length > 1 ? Long.parseLong(args[1]) : 1);
+		Random r = new Random(seed);
+
+		// expiry
+		HeapStore inner = new HeapStore();
+		CacheStore store = new CacheStore(inner, 0);
+		store.start();
+		long start = System.currentTimeMillis();
+		long[] expires = new long[numPairs];
+		for (int i = 0; i < numPairs; i++) {
+			expires[i] = start + 100 + r.nextInt(1400);
+			put(store, "k" + i, expires[i]);
+		}
+		put(store, "renewed", start + 200);
+		put(store, "renewed", start + 2500);
+		put(store, "forever", start + 200);
+		put(store, "forever", 0);
+		long far = start + CacheStore.WHEEL * CacheStore.TICK_MS + 1000;
+		put(store, "far", far);
+		int served = 0, hidden = 0;
+		while (System.currentTimeMillis() < start + 1600) {
+			int i = r.nextInt(numPairs);
+			long before = System.currentTimeMillis();
+			int n = get(store, "k" + i);
+			long after = System.currentTimeMillis();
+			if (after < expires[i] && n < 0)
+				throw new AssertionError("k" + i + " gone " +
+					(expires[i] - after) + " ms before it expires");
+			if (before >= expires[i] && n >= 0)
+				throw new AssertionError("k" + i + " served " +
+					(before - expires[i]) + " ms after it expired");
+			if (n >= 0) served++; else hidden++;
+		}
+		// let the wheel pass every slot of the expired pairs
+		Thread.sleep(5 * CacheStore.TICK_MS);
+		for (int i = 0; i < numPairs; i++) {
+			if (get(inner, "k" + i) >= 0)
+				throw new AssertionError("k" + i + " still stored " +
+					(System.currentTimeMillis() - expires[i]) +
+					" ms after it expired");
+		}
+		if (put(store, "k0", 0) || !remove(store, "k0"))
+			throw new AssertionError("expired k0 put or removed wrongly");
+		Thread.sleep(2 * CacheStore.TICK_MS);
+		put(store, "k1", System.currentTimeMillis() + 1);
+		Thread.sleep(2);
+		if (put(store, "k1", 0) || remove(store, "k2"))
+			throw new AssertionError("expired key said to have a value");
+		if (get(store, "renewed") < 0 || get(store, "forever") < 0 ||
+		    get(store, "far") < 0 || store.expires(key("far")) != far)
+			throw new AssertionError("renewed or distant pair expired");
+		int scanned = 0;
+		for (Iterator<Map.Entry<ByteKey, byte[]>> it = store.scan();
+		     it.hasNext(); it.next())
+			scanned++;
+		if (scanned != 4)
+			throw new AssertionError(scanned + " pairs scanned, not 4");
+		System.out.printf("expiry: %d gets served, %d expired\n",
+				  served, hidden);
+
+		// eviction
+		int size = 8 + 8 + CacheStore.OVERHEAD; // key, value, overhead
+		inner = new HeapStore();
+		store = new CacheStore(inner, (long) CAPACITY * size);
+		for (int i = 0; i < numPairs; i++) {
+			put(store, String.format("c%07d", i), 0);
+			store.trim();
+			if (i % 100 != 99) continue;
+			int n = count(inner);
+			if (i >= CAPACITY && n != CAPACITY)
+				throw new AssertionError(n + " pairs stored, not " +
+							 CAPACITY);
+			for (int j = 0; j < HOT; j++) {
+				String hot = String.format("h%07d", j);
+				if (get(store, hot) < 0) {
+					if (i > 100)
+						throw new AssertionError(hot +
+							" evicted by put " + i);
+					put(store, hot, 0);
+				}
+			}
+		}
+		System.out.printf("eviction: %d pairs stored, all %d hot\n",
+				  count(inner), HOT);
+		System.out.println("ok");
+	}
+
+	static ByteKey key(String s) {
+		byte[] k = Request.ascii(s);
+		return new ByteKey(k, 0, k.length);
+	}
+
+	/** Put a key with an 8 byte value and an expiry time (0 if none). */
+	static boolean put(CacheStore store, String s, long expires) {
+		byte[] val = Request.ascii("value123");
+		return store.put(key(s), val, 0, val.length, expires);
+	}
+
+	static boolean remove(CacheStore store, String s) {
+		return store.remove(key(s));
+	}
+
+	/** Get the length of a key's value, or -1. */
+	static int get(Store store, String s) {
+		return store.get(key(s), ByteBuffer.allocate(16));
+	}
+
+	static int count(Store store) {
+		int n = 0;
+		for (Iterator<Map.Entry<ByteKey, byte[]>> it = store.scan();
+		     it.hasNext(); it.next())
+			n++;
+		return n;
+	}
+}
@@ -0,0 +1,30 @@
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Store that keeps its pairs in a ConcurrentHashMap on the Java heap. */
+public class HeapStore implements Store {
+	private ConcurrentHashMap<ByteKey, byte[]> map; // key/value pairs
+
+	/** Initialize a new, empty HeapStore object. */
+	public HeapStore() { map = new ConcurrentHashMap<>(); }
+
+	public int get(ByteKey key, ByteBuffer dst) {
+		byte[] value = map.get(key);
+		if (value == null) return -1;
+		if (value.length <= dst.remaining()) dst.put(value);
+		return value.length;
+	}
+
+	public boolean put(ByteKey key, byte[] buf, int off, int len) {
+		byte[] value = new byte[len];
+		System.arraycopy(buf, off, value, 0, len);
+		return map.put(key.copy(), value) != null;
+	}
+
+	public boolean remove(ByteKey key) { return map.remove(key) != null; }
+
+	public Iterator<Map.Entry<ByteKey, byte[]>> scan() {
+		return map.entrySet().iterator();
+	}
+}
@@ -0,0 +1,188 @@
+/** Checks that MapLog rebuilds the map after a crash.
+ *  usage: LogCheck [ numWrites ] [ seed ]
+ *
+ *  Applies random puts, puts with an expiry time and removes to a store
+ *  and its log, and to a plain map as the model, then recovers a new
+ *  store from the log directory as a restart would. The recovered pairs
+ *  and expiry times must match the model:
+ *  - with the log alone, after a crash that tore the last record in
+ *    two; that record must be dropped and cut off the segment file, so
+ *    a second recovery gives the same pairs;
+ *  - with a snapshot taken halfway and more writes after it, replayed
+ *    from the segment that follows; the segments before the snapshot
+ *    must be deleted;
+ *  - with a snapshot larger than one memory mapped window, so that
+ *    writing and loading it move on to further windows, with pairs
+ *    that straddle the windows' ends.
+ *  The log directories are made in the temp directory and deleted. A
+ *  check that fails throws an AssertionError, which exits with status 1.
+ *
+ *  numWrites	is the number of random writes per case; default 20000
+ *  seed	is the seed of the random writes; default 1
+ */
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+public class LogCheck {
+	static final long FAR = 4102444800000L; // expiry time in 2100
+
+	public static void main(String[] args) throws Exception {
+		int numWrites = (args.length > 0 ? Integer.parseInt(args[0]) : 20000);
+		long seed = (args.length > 1 ? Long.parseLong(args[1]) : 1);
+		Random r = new Random(seed);
+
+		// torn record at the end of the log
+		File dir = Files.createTempDirectory("logcheck").toFile();
+		Map<String, String> model = new HashMap<String, String>();
+		Map<String, Long> expiry = new HashMap<String, Long>();
+		CacheStore store = new CacheStore(new HeapStore(), 0);
+		MapLog log = open(dir, store);
+		write(store, log, model, expiry, r, numWrites, 20);
+		put(store, log, "torn", "this record is cut short", 0);
+		Thread.sleep(50 * MapLog.SYNC_MS);
+		File seg = new File(dir, "log.0");
+		long length = seg.length();
+		try (RandomAccessFile f = new RandomAccessFile(seg, "rw")) {
+			f.setLength(length - 5);
+		}
+		compare("torn log", recover(dir), model, expiry);
+		long cut = seg.length();
+		if (cut != length - 9 - 4 - 24)
+			throw new AssertionError("torn record cut to " + cut +
+				" bytes, not " + (length - 37));
+		compare("torn log, again", recover(dir), model, expiry);
+		delete(dir);
+
+		// snapshot, then more writes
+		dir = Files.createTempDirectory("logcheck").toFile();
+		model.clear(); expiry.clear();
+		store = new CacheStore(new HeapStore(), 0);
+		log = open(dir, store);
+		write(store, log, model, expiry, r, numWrites / 2, 20);
+		log.snapshot();
+		write(store, log, model, expiry, r, numWrites / 2, 20);
+		Thread.sleep(50 * MapLog.SYNC_MS);
+		if (new File(dir, "log.0").exists() ||
+		    !new File(dir, "log.1").exists())
+			throw new AssertionError("segments are " +
+				Arrays.toString(dir.list()));
+		compare("snapshot and log", recover(dir), model, expiry);
+		delete(dir);
+
+		// snapshot larger than a mapped window (64 MB)
+		dir = Files.createTempDirectory("logcheck").toFile();
+		model.clear(); expiry.clear();
+		store = new CacheStore(new HeapStore(), 0);
+		log = open(dir, store);
+		char[] big = new char[(1 << 20) + 3];
+		for (int i = 0; i < 70; i++) {
+			Arrays.fill(big, (char) ('a' + i % 26));
+			String val = new String(big);
+			put(store, log, "big" + i, val, 0);
+			model.put("big" + i, val);
+			write(store, log, model, expiry, r, 1 + r.nextInt(200), 1000);
+		}
+		log.snapshot();
+		compare("large snapshot", recover(dir), model, expiry);
+		delete(dir);
+		System.out.println("ok");
+	}
+
+	/** Recover an empty log directory and start logging to it. */
+	static MapLog open(File dir, CacheStore store) throws IOException {
+		MapLog log = new MapLog(dir, store);
+		store.setLog(log);
+		log.recover();
+		log.start();
+		return log;
+	}
+
+	/** Recover a new store from a log directory, as a restart does. */
+	static CacheStore recover(File dir) throws IOException {
+		CacheStore store = new CacheStore(new HeapStore(), 0);
+		MapLog log = new MapLog(dir, store);
+		store.setLog(log);
+		log.recover();
+		return store;
+	}
+
+	/** Apply random writes to a store, its log and the model.
+	 *  @param numKeys is the number of distinct keys written
+	 */
+	static void write(CacheStore store, MapLog log, Map<String, String> model,
+			  Map<String, Long> expiry, Random r, int n, int numKeys) {
+		for (int i = 0; i < n; i++) {
+			String key = "k" + r.nextInt(numKeys * 50);
+			int x = r.nextInt(10);
+			if (x < 2) {
+				byte[] k = Request.ascii(key);
+				ByteKey bk = new ByteKey(k, 0, k.length);
+				synchronized (log.lockFor(bk)) {
+					store.remove(bk);
+					log.remove(bk);
+				}
+				model.remove(key);
+				expiry.remove(key);
+				continue;
+			}
+			String val = "v" + r.nextInt(1000000);
+			long expires = (x < 4 ? FAR + r.nextInt(1000) : 0);
+			put(store, log, key, val, expires);
+			model.put(key, val);
+			if (expires != 0) expiry.put(key, expires);
+			else expiry.remove(key);
+		}
+	}
+
+	/** Put a pair into a store and its log. */
+	static void put(CacheStore store, MapLog log, String key, String val,
+			long expires) {
+		byte[] k = Request.ascii(key);
+		byte[] v = Request.ascii(val);
+		ByteKey bk = new ByteKey(k, 0, k.length);
+		synchronized (log.lockFor(bk)) {
+			store.put(bk, v, 0, v.length, expires);
+			log.put(bk, v, 0, v.length, expires);
+		}
+	}
+
+	/** Check that a store holds the model's pairs and expiry times. */
+	static void compare(String what, CacheStore store,
+			    Map<String, String> model, Map<String, Long> expiry) {
+		Map<String, String> got = new HashMap<String, String>();
+		Iterator<Map.Entry<ByteKey, byte[]>> it = store.scan();
+		while (it.hasNext()) {
+			Map.Entry<ByteKey, byte[]> pair = it.next();
+			got.put(pair.getKey().toString(), new String(pair.getValue(),
+					java.nio.charset.StandardCharsets.US_ASCII));
+			long want = expiry.getOrDefault(pair.getKey().toString(), 0L);
+			if (store.expires(pair.getKey()) != want)
+				throw new AssertionError(what + ": " + pair.getKey() +
+					" expires at " + store.expires(pair.getKey()) +
+					", not " + want);
+		}
+		if (!got.equals(model)) {
+			for (String key : model.keySet())
+				if (!model.get(key).equals(got.get(key)))
+					throw new AssertionError(what + ": " + key +
+						" recovered as " + abbrev(got.get(key)));
+			for (String key : got.keySet())
+				if (!model.containsKey(key))
+					throw new AssertionError(what + ": " + key +
+						" recovered, but was removed");
+		}
+		System.out.printf("%s: %d pairs recovered\n", what, got.size());
+	}
+
+	static String abbrev(String s) {
+		return (s == null || s.length() < 40 ? s :
+			s.substring(0, 40) + "... (" + s.length() + " bytes)");
+	}
+
+	static void delete(File dir) {
+		for (File f : dir.listFiles()) f.delete();
+		dir.delete();
+	}
+}
@@ -10,7 +10,11 @@
  port number; the third argument is either "get", "put", or "remove"; if the
  instruction is "get", the fourth argument is the key; if the instruction is
  "put", the fourth argument is the key and the fifth argument is the value; 
- if the instruction is "remove", the fourth argument is the key. For the
+ an optional sixth argument gives the pair a time to live in seconds;
+ if the instruction is "remove", the fourth argument is the key; if the
+ instruction is "mget", the remaining arguments are keys; if the instruction
+ is "mput", the remaining arguments are keys each followed by its value; a
+ batch is answered with one result per key, separated by "::". For the
  server side, the default port number used is 30123 unless the first argument
  specifies the port number. When it receives an instruction, it will send
  back a feedback to the client.
@@ -32,11 +36,17 @@ public class MapClient {
 		DatagramSocket sock = new DatagramSocket();
 		// Build the instruction string
 		String outString = null;
-		// get or remove
-		if(args.length == 4) {
+		// batch instructions carry all remaining arguments
+		if(args[2].equals("mget") || args[2].equals("mput")) {
+			outString = String.join(":", args).substring(
+				args[0].length() + args[1].length() + 2);
+		} else if(args.length == 4) { // get or remove
 			outString = args[2] + ":" + args[3];
 		} else if(args.length == 5) { // put
 			outString = args[2] + ":" + args[3] + ":" + args[4];
+		} else if(args.length == 6) { // put with a time to live
+			outString = args[2] + ":" + args[3] + ":" + args[4] + ":" +
+				    args[5];
 		}
 		// Build the output packet
 		byte[] outBuf = outString.getBytes();  
@@ -10,81 +10,118 @@
  port number; the third argument is either "get", "put", or "remove"; if the
  instruction is "get", the fourth argument is the key; if the instruction is
  "put", the fourth argument is the key and the fifth argument is the value; 
- if the instruction is "remove", the fourth argument is the key. For the
+ if the instruction is "remove", the fourth argument is the key; if the
+ instruction is "mget", the remaining arguments are keys; if the instruction
+ is "mput", the remaining arguments are keys each followed by its value; a
+ batch is answered with one result per key, separated by "::". For the
  server side, the default port number used is 30123 unless the first argument
  specifies the port number. When it receives an instruction, it will send
- back a feedback to the client.
+ back a feedback to the client. The optional second argument of the server
+ is the number of receive workers (1 by default). Each worker runs in its own
+ thread; when the platform supports SO_REUSEPORT every worker gets its own
+ socket bound to the port, otherwise the workers share a single socket. All
+ workers share one concurrent map, so throughput grows with the number of
+ cores while the wire format stays the same. If an argument of the form
+ log=<dir> is given, the server keeps a write-ahead log and snapshots of
+ the map in that directory and rebuilds the map from them when it starts.
+ The argument store=offheap keeps the pairs outside the Java heap in an
+ OffHeapStore instead of the default store=heap, a ConcurrentHashMap.
+ A put may give a time to live in seconds as "put:key:value:ttl"; the pair
+ is removed once it expires. The argument maxmem=<bytes> (with an optional
+ k, m or g suffix) bounds the memory used by the pairs; when it is reached
+ the least recently used pairs, as approximated by the CLOCK algorithm,
+ are evicted, so the server keeps a steady footprint as pairs come and go.
 ****************************************************************************/
+import java.io.*;
 import java.net.*;
+import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class MapServer {
 	
 	public static void main(String args[]) throws Exception {
+		// Take out the optional log directory and store type
+		String logDir = null, storeType = "heap";
+		long maxBytes = 0;
+		ArrayList<String> pos = new ArrayList<String>();
+		for (String arg : args) {
+			if (arg.startsWith("log=")) logDir = arg.substring(4);
+			else if (arg.startsWith("store=")) storeType = arg.substring(6);
+			else if (arg.startsWith("maxmem=")) maxBytes = size(arg.substring(7));
+			else pos.add(arg);
+		}
 		// Default port number
 		int port = 30123;
 		// Set an optional port number
-		if (args.length > 0) port = Integer.parseInt(args[0]);
-		// Create the UDP socket
-		DatagramSocket sock = new DatagramSocket(port,null);
-		// Create the receiver packet
-		byte[] receiverBuf = new byte[1000];
-		DatagramPacket receiverPkt = new DatagramPacket(receiverBuf,
-														receiverBuf.length);
-		// Create HashMap to store the data
-		HashMap<String, String> map = new HashMap<>();
-		// Start receiving data
-		while (true) {
-			// Wait for incoming packet
-			sock.receive(receiverPkt);
-			// Turn the data into string
-			String dataString = new String(receiverPkt.getData(), 0, 
-										receiverPkt.getLength(), "US-ASCII");
-			// Manipulate the data
-			String[] dataStrings = dataString.split(":");
-			// Return string
-			String returnString;
-			// get instruction
-			if("get".equals(dataStrings[0]) && 
-					dataStrings.length == 2) {
-				String value = map.get(dataStrings[1]);
-				if(value == null) {
-					returnString = "no match";
-				} else {
-					returnString = "ok:"+value;
-				}
-			}
-			// put instruction
-			else if("put".equals(dataStrings[0]) && 
-					dataStrings.length == 3) {
-				String previous = map.put(dataStrings[1], dataStrings[2]);
-				if(previous == null) {
-					returnString = "Ok";
-				} else {
-					returnString = "updated:"+dataStrings[1];
-				}
-			}
-			// remove instruction
-			else if("remove".equals(dataStrings[0]) &&
-					dataStrings.length == 2) {
-				String removed = map.remove(dataStrings[1]);
-				if(removed == null) {
-					returnString = "no match";
-				} else {
-					returnString = "Ok";
-				}
-			} else { // invalid instruction
-				returnString = "Error:unrecognizable\ninput:"+dataString;
+		if (pos.size() > 0) port = Integer.parseInt(pos.get(0));
+		// Set an optional number of receive workers
+		int numWorkers = 1;
+		if (pos.size() > 1) numWorkers = Integer.parseInt(pos.get(1));
+		// Create the store for the data
+		Store base;
+		if (storeType.equals("heap") && maxBytes >= 0) {
+			base = new HeapStore();
+		} else if (storeType.equals("offheap") && maxBytes >= 0) {
+			base = new OffHeapStore();
+		} else {
+			System.out.println("usage: MapServer [ port ] [ workers ] " +
+				"[ log=dir ] [ store=heap|offheap ] [ maxmem=bytes ]");
+			return;
+		}
+		// Add expiry and the memory limit
+		CacheStore store = new CacheStore(base, maxBytes);
+		// Rebuild the map from the log and keep logging
+		MapLog log = null;
+		if (logDir != null) {
+			log = new MapLog(new File(logDir), store);
+			store.setLog(log);
+			log.recover();
+			log.start();
+		}
+		store.start();
+		// Give every worker its own socket if the kernel can spread
+		// the datagrams over them, otherwise share one socket
+		DatagramChannel probe = DatagramChannel.open();
+		boolean reusePort = numWorkers > 1 && probe.supportedOptions()
+				.contains(StandardSocketOptions.SO_REUSEPORT);
+		probe.close();
+		DatagramChannel shared = null;
+		MapWorker[] workers = new MapWorker[numWorkers];
+		for (int i = 0; i < numWorkers; i++) {
+			DatagramChannel chan;
+			if (reusePort) {
+				chan = DatagramChannel.open();
+				chan.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+				chan.bind(new InetSocketAddress(port));
+			} else {
+				if (shared == null)
+					shared = DatagramChannel.open().bind(
+						new InetSocketAddress(port));
+				chan = shared;
 			}
-			// Create the sender packet
-			DatagramPacket senderPkt = new DatagramPacket(
-											returnString.getBytes(),
-											returnString.length(), 
-											receiverPkt.getAddress(),
-											receiverPkt.getPort());
-			
-			// Send the packet
-			sock.send(senderPkt);
+			workers[i] = new MapWorker(chan, store, log);
+			workers[i].start();
+		}
+		// Workers run until the server is killed
+		for (int i = 0; i < numWorkers; i++) workers[i].join();
+	}
+
+	/** Parse a number of bytes with an optional k, m or g suffix.
+	 *  @return the number, or -1 if it is not valid
+	 */
+	static long size(String s) {
+		long unit = 1;
+		char c = s.isEmpty() ? ' ' : Character.toLowerCase(
+						s.charAt(s.length() - 1));
+		if (c == 'k') unit = 1L << 10;
+		else if (c == 'm') unit = 1L << 20;
+		else if (c == 'g') unit = 1L << 30;
+		if (unit > 1) s = s.substring(0, s.length() - 1);
+		try {
+			return Long.parseLong(s) * unit;
+		} catch (NumberFormatException e) {
+			return -1;
 		}
 	}
 }
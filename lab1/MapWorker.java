@@ -0,0 +1,223 @@
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/** Receive worker for the MapServer.
+ *
+ *  Each worker runs as a separate thread. It waits for requests on a
+ *  datagram channel, applies them to the store shared by all workers and
+ *  sends the reply back to the client. Several workers may share one
+ *  channel, or each may own a channel bound to the same port with
+ *  SO_REUSEPORT, in which case the kernel spreads incoming datagrams
+ *  over the workers.
+ *
+ *  Requests are parsed in place in the receive buffer and replies are
+ *  written into a reused buffer, so handling a request does not allocate
+ *  beyond whatever the store allocates to keep a new pair.
+ *
+ *  The batch commands "mget" and "mput" are answered with one datagram
+ *  holding one result per key, in request order and separated by "::";
+ *  each result is what the single command would have returned. A reply
+ *  never exceeds MAX_REPLY bytes, the receive buffer size of MapClient.
+ *  If the results do not all fit, the reply ends with the last result
+ *  that fits and the remaining keys or pairs are not applied, so the
+ *  client sends them again in a new batch.
+ *
+ *  A put may end with a time to live in seconds ("put:key:value:ttl"),
+ *  after which the pair expires. When the store has a memory limit, the
+ *  worker lets it evict pairs after each write, once no locks are held.
+ *
+ *  If the server was given a log, every put and remove is applied to the
+ *  store and then logged while holding the log's lock for that key.
+ */
+public class MapWorker implements Runnable {
+	private static final byte[] OK = Request.ascii("Ok");
+	private static final byte[] OK_VAL = Request.ascii("ok:");
+	private static final byte[] NO_MATCH = Request.ascii("no match");
+	private static final byte[] UPDATED = Request.ascii("updated:");
+	private static final byte[] ERROR = Request.ascii(
+					"Error:unrecognizable\ninput:");
+	private static final byte[] SEP = Request.ascii("::");
+	public static final int MAX_REPLY = 1000; // longest batch reply
+
+	private DatagramChannel chan;	// channel for requests and replies
+	private CacheStore store;	// shared key/value pairs
+	private MapLog log;		// write-ahead log, or null if none
+
+	private ByteBuffer inBuf;	// receive buffer, reused for every request
+	private ByteBuffer outBuf;	// reply buffer, reused for every reply;
+					// room for MAX_REPLY plus one result
+	private Request req;		// parsed form of the current request
+	private ByteKey probe;		// key used to look up the current request
+
+	private Thread myThread;
+
+	/** Initialize a new MapWorker object.
+	 *  @param chan is a bound datagram channel (may be shared with other
+	 *  workers)
+	 *  @param store is the store shared by all workers
+	 *  @param log is the write-ahead log for the store (may be null)
+	 */
+	MapWorker(DatagramChannel chan, CacheStore store, MapLog log) {
+		this.chan = chan;
+		this.store = store;
+		this.log = log;
+		inBuf = ByteBuffer.allocate(1000);
+		outBuf = ByteBuffer.allocate(2000);
+		req = new Request();
+		probe = new ByteKey();
+	}
+
+	/** Start the worker running. */
+	public void start() { myThread = new Thread(this); myThread.start(); }
+
+	/** Wait for the worker to stop. */
+	public void join() throws Exception { myThread.join(); }
+
+	/** Main thread for the worker.
+	 *
+	 *  Receives one request at a time, handles it and sends the reply
+	 *  to the address the request came from.
+	 */
+	public void run() {
+		while (true) {
+			try {
+				inBuf.clear();
+				SocketAddress client = chan.receive(inBuf);
+				outBuf.clear();
+				handle(inBuf.array(), 0, inBuf.position());
+				outBuf.flip();
+				chan.send(outBuf, client);
+			} catch (Exception e) {
+				System.err.println("MapWorker: exception " + e);
+			}
+		}
+	}
+
+	/** Apply a request to the store and write the reply into outBuf.
+	 *  @param buf is a buffer containing the request
+	 *  @param off is the offset of the request in buf
+	 *  @param len is the length of the request
+	 */
+	void handle(byte[] buf, int off, int len) {
+		switch (req.parse(buf, off, len)) {
+		case Request.GET:
+			get(probe.set(buf, req.keyOff, req.keyLen));
+			break;
+		case Request.PUT: {
+			long expires = 0;
+			if (req.ttlLen > 0) {
+				long ttl = parseLong(buf, req.ttlOff, req.ttlLen);
+				if (ttl <= 0) {
+					outBuf.put(ERROR).put(buf, off, len);
+					break;
+				}
+				expires = System.currentTimeMillis() + 1000 * ttl;
+			}
+			boolean previous = put(probe.set(buf, req.keyOff, req.keyLen),
+					       buf, req.valOff, req.valLen, expires);
+			if (!previous) {
+				outBuf.put(OK);
+			} else {
+				outBuf.put(UPDATED).put(buf, req.keyOff, req.keyLen);
+			}
+			break;
+		}
+		case Request.REMOVE: {
+			boolean removed = remove(
+					probe.set(buf, req.keyOff, req.keyLen));
+			if (!removed) {
+				outBuf.put(NO_MATCH);
+			} else {
+				outBuf.put(OK);
+			}
+			break;
+		}
+		case Request.MGET: {
+			for (int i = 0; i < req.nargs; i++) {
+				int mark = outBuf.position();
+				if (i > 0) outBuf.put(SEP);
+				get(probe.set(buf, req.argOff[i], req.argLen[i]));
+				if (outBuf.position() > MAX_REPLY) {
+					outBuf.position(mark);
+					break;
+				}
+			}
+			break;
+		}
+		case Request.MPUT: {
+			for (int i = 0; i < req.nargs; i += 2) {
+				// leave room for the longest result before applying
+				int keyOff = req.argOff[i], keyLen = req.argLen[i];
+				int n = (i > 0 ? SEP.length : 0) + UPDATED.length + keyLen;
+				if (outBuf.position() + n > MAX_REPLY) break;
+				boolean previous = put(probe.set(buf, keyOff, keyLen),
+					buf, req.argOff[i + 1], req.argLen[i + 1], 0);
+				if (i > 0) outBuf.put(SEP);
+				if (!previous) {
+					outBuf.put(OK);
+				} else {
+					outBuf.put(UPDATED).put(buf, keyOff, keyLen);
+				}
+			}
+			break;
+		}
+		default: // invalid instruction
+			outBuf.put(ERROR).put(buf, off, len);
+		}
+	}
+
+	/** Write the result of a get into outBuf. */
+	private void get(ByteKey key) {
+		int mark = outBuf.position();
+		outBuf.put(OK_VAL);
+		if (store.get(key, outBuf) < 0) {
+			outBuf.position(mark);
+			outBuf.put(NO_MATCH);
+		}
+	}
+
+	/** Put a pair into the store, log it and trim the store. */
+	private boolean put(ByteKey key, byte[] buf, int off, int len,
+			    long expires) {
+		boolean previous;
+		if (log == null) {
+			previous = store.put(key, buf, off, len, expires);
+		} else {
+			synchronized (log.lockFor(key)) {
+				previous = store.put(key, buf, off, len, expires);
+				log.put(key, buf, off, len, expires);
+			}
+		}
+		store.trim();
+		return previous;
+	}
+
+	/** Remove a key from the store and log it. */
+	private boolean remove(ByteKey key) {
+		if (log == null) return store.remove(key);
+		synchronized (log.lockFor(key)) {
+			boolean removed = store.remove(key);
+			if (removed) log.remove(key);
+			return removed;
+		}
+	}
+
+	/** Parse a non-negative decimal number.
+	 *  @return the number, or -1 if the span is not a valid number
+	 */
+	private static long parseLong(byte[] buf, int off, int len) {
+		if (len == 0 || len > 12) return -1;
+		long n = 0;
+		for (int i = off; i < off + len; i++) {
+			if (buf[i] < '0' || buf[i] > '9') return -1;
+			n = 10 * n + (buf[i] - '0');
+		}
+		return n;
+	}
+
+	/** Get the reply written by the last call to handle().
+	 *  @return the reply buffer; the reply occupies [0,position())
+	 */
+	ByteBuffer reply() { return outBuf; }
+}
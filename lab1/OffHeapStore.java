@@ -0,0 +1,252 @@
+import java.nio.*;
+import java.util.*;
+
+/** Store that keeps its pairs off the Java heap.
+ *
+ *  Keys and values are kept as raw bytes in direct ByteBuffers, so a map
+ *  of many small pairs costs a few bytes per pair beyond the pair itself
+ *  and gives the garbage collector nothing to trace or copy.
+ *
+ *  The store is split into SEGMENTS segments, picked by the top bits of
+ *  the key's mixed hash, each guarded by its own lock. A segment is an
+ *  open addressing hash table with linear probing. Its slot table holds
+ *  one long per slot: the key's hash in the high half and, in the low
+ *  half, one more than the offset of the pair in the segment's arena, or
+ *  EMPTY, or DELETED for a removed pair. The arena holds each pair as key
+ *  length, value length, key bytes and value bytes. A put appends a new
+ *  copy of the pair to the arena and points the slot at it; the space of
+ *  replaced and removed pairs is reclaimed when the arena fills up, by
+ *  copying the live pairs into a fresh arena. The slot table is rebuilt
+ *  once three quarters of its slots are in use, live or deleted.
+ *
+ *  scan() visits the pairs in segment and slot order, locking one
+ *  segment at a time while it looks for the next pair.
+ */
+public class OffHeapStore implements Store {
+	private static final int SEGMENTS = 64;	// must be a power of 2
+	private static final int SEG_BITS = 6;	// log2(SEGMENTS)
+	private static final long EMPTY = 0;	// slot never used
+	private static final long DELETED = -1;	// slot of a removed pair
+
+	private Segment[] segs;
+
+	/** One independently locked hash table and its arena. */
+	private static class Segment {
+		ByteBuffer slots;	// slot table, one long per slot
+		int mask;		// number of slots minus 1
+		int used;		// slots that are not EMPTY
+		int live;		// slots holding a pair
+		ByteBuffer arena;	// pairs occupy [0,top)
+		int top;		// offset of the first free arena byte
+		int garbage;		// bytes of replaced or removed pairs
+
+		Segment() {
+			slots = ByteBuffer.allocateDirect(1024 * 8);
+			mask = 1023;
+			arena = ByteBuffer.allocateDirect(64 * 1024);
+		}
+
+		/** Find the slot of a key.
+		 *  @return the slot number, or -1 if the key is not stored
+		 */
+		int find(int h, ByteKey key) {
+			for (int i = h & mask; ; i = (i + 1) & mask) {
+				long s = slots.getLong(i << 3);
+				if (s == EMPTY) return -1;
+				if (s != DELETED && (int) (s >>> 32) == h) {
+					int p = offset(s);
+					if (arena.getInt(p) == key.length() &&
+					    key.matches(arena, p + 8))
+						return i;
+				}
+			}
+		}
+
+		/** Add a new pair or replace the pair of a stored key. */
+		boolean put(int h, ByteKey key, byte[] buf, int off, int len) {
+			int klen = key.length();
+			int p = alloc(8 + klen + len);
+			arena.putInt(p, klen).putInt(p + 4, len);
+			key.getBytes(arena, p + 8);
+			arena.put(p + 8 + klen, buf, off, len);
+			long s = ((long) h << 32) | (p + 1L);
+			int i = find(h, key);
+			if (i >= 0) {
+				garbage += size(offset(slots.getLong(i << 3)));
+				slots.putLong(i << 3, s);
+				return true;
+			}
+			for (i = h & mask; ; i = (i + 1) & mask) {
+				long t = slots.getLong(i << 3);
+				if (t == EMPTY || t == DELETED) {
+					if (t == EMPTY) used++;
+					slots.putLong(i << 3, s);
+					break;
+				}
+			}
+			live++;
+			if (used > (mask + 1) / 4 * 3)
+				rehash(live > (mask + 1) / 2 ? 2 * (mask + 1) : mask + 1);
+			return false;
+		}
+
+		/** Remove the pair in slot i. */
+		void remove(int i) {
+			garbage += size(offset(slots.getLong(i << 3)));
+			slots.putLong(i << 3, DELETED);
+			live--;
+		}
+
+		/** Take n bytes at the end of the arena.
+		 *  When the arena is full the live pairs are copied into a new
+		 *  arena, grown so it is at most three quarters full after the
+		 *  allocation.
+		 *  @return the offset of the bytes
+		 */
+		int alloc(int n) {
+			if (top + n > arena.capacity()) {
+				long cap = arena.capacity();
+				while (top - garbage + n > cap / 4 * 3) cap += cap / 2;
+				if (cap > Integer.MAX_VALUE - 8)
+					throw new IllegalStateException("segment full");
+				ByteBuffer fresh = ByteBuffer.allocateDirect((int) cap);
+				int q = 0;
+				for (int i = 0; i <= mask; i++) {
+					long s = slots.getLong(i << 3);
+					if (s == EMPTY || s == DELETED) continue;
+					int p = offset(s), sz = size(p);
+					fresh.put(q, arena, p, sz);
+					slots.putLong(i << 3, (s & ~0xffffffffL) | (q + 1L));
+					q += sz;
+				}
+				arena = fresh;
+				top = q;
+				garbage = 0;
+			}
+			int p = top;
+			top += n;
+			return p;
+		}
+
+		/** Rebuild the slot table with n slots, dropping DELETED slots. */
+		void rehash(int n) {
+			ByteBuffer old = slots;
+			int oldMask = mask;
+			slots = ByteBuffer.allocateDirect(n * 8);
+			mask = n - 1;
+			for (int i = 0; i <= oldMask; i++) {
+				long s = old.getLong(i << 3);
+				if (s == EMPTY || s == DELETED) continue;
+				int j = (int) (s >>> 32) & mask;
+				while (slots.getLong(j << 3) != EMPTY) j = (j + 1) & mask;
+				slots.putLong(j << 3, s);
+			}
+			used = live;
+		}
+
+		/** Get the arena size of the pair at offset p. */
+		int size(int p) { return 8 + arena.getInt(p) + arena.getInt(p + 4); }
+
+		/** Copy out the key of the pair at offset p. */
+		ByteKey key(int p) {
+			byte[] k = new byte[arena.getInt(p)];
+			arena.get(p + 8, k, 0, k.length);
+			return new ByteKey(k, 0, k.length);
+		}
+
+		/** Copy out the value of the pair at offset p. */
+		byte[] value(int p) {
+			byte[] v = new byte[arena.getInt(p + 4)];
+			arena.get(p + 8 + arena.getInt(p), v, 0, v.length);
+			return v;
+		}
+	}
+
+	/** Initialize a new, empty OffHeapStore object. */
+	public OffHeapStore() {
+		segs = new Segment[SEGMENTS];
+		for (int i = 0; i < SEGMENTS; i++) segs[i] = new Segment();
+	}
+
+	public int get(ByteKey key, ByteBuffer dst) {
+		int h = mix(key.hashCode());
+		Segment seg = segs[h >>> (32 - SEG_BITS)];
+		synchronized (seg) {
+			int i = seg.find(h, key);
+			if (i < 0) return -1;
+			int p = offset(seg.slots.getLong(i << 3));
+			int klen = seg.arena.getInt(p), vlen = seg.arena.getInt(p + 4);
+			if (vlen <= dst.remaining()) {
+				seg.arena.get(p + 8 + klen, dst.array(),
+					dst.arrayOffset() + dst.position(), vlen);
+				dst.position(dst.position() + vlen);
+			}
+			return vlen;
+		}
+	}
+
+	public boolean put(ByteKey key, byte[] buf, int off, int len) {
+		int h = mix(key.hashCode());
+		Segment seg = segs[h >>> (32 - SEG_BITS)];
+		synchronized (seg) { return seg.put(h, key, buf, off, len); }
+	}
+
+	public boolean remove(ByteKey key) {
+		int h = mix(key.hashCode());
+		Segment seg = segs[h >>> (32 - SEG_BITS)];
+		synchronized (seg) {
+			int i = seg.find(h, key);
+			if (i < 0) return false;
+			seg.remove(i);
+			return true;
+		}
+	}
+
+	public Iterator<Map.Entry<ByteKey, byte[]>> scan() {
+		return new Cursor();
+	}
+
+	/** Iterator over the pairs, segment by segment. */
+	private class Cursor implements Iterator<Map.Entry<ByteKey, byte[]>> {
+		private int seg, slot;	// where the search for the next pair resumes
+		private Map.Entry<ByteKey, byte[]> next; // next pair, if found
+
+		public boolean hasNext() {
+			while (next == null && seg < SEGMENTS) {
+				Segment s = segs[seg];
+				synchronized (s) {
+					for (; slot <= s.mask; slot++) {
+						long x = s.slots.getLong(slot << 3);
+						if (x == EMPTY || x == DELETED) continue;
+						int p = offset(x);
+						next = new AbstractMap.SimpleImmutableEntry<>(
+							s.key(p), s.value(p));
+						slot++;
+						break;
+					}
+				}
+				if (next == null) { seg++; slot = 0; }
+			}
+			return next != null;
+		}
+
+		public Map.Entry<ByteKey, byte[]> next() {
+			if (!hasNext()) throw new NoSuchElementException();
+			Map.Entry<ByteKey, byte[]> pair = next;
+			next = null;
+			return pair;
+		}
+	}
+
+	/** Get the arena offset stored in a slot. */
+	private static int offset(long s) { return (int) (s & 0xffffffffL) - 1; }
+
+	/** Spread the bits of a key's hash code, so both its top bits (which
+	 *  pick the segment) and its low bits (which pick the slot) vary.
+	 */
+	private static int mix(int h) {
+		h ^= h >>> 16; h *= 0x85ebca6b;
+		h ^= h >>> 13; h *= 0xc2b2ae35;
+		return h ^ (h >>> 16);
+	}
+}
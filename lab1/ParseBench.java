@@ -0,0 +1,112 @@
+/** Microbenchmark for MapServer request handling.
+ *  usage: ParseBench [ numKeys ] [ numOps ] [ rounds ]
+ *
+ *  Compares the original String based request path (new String, split,
+ *  concatenation, getBytes) with the byte-level path used by MapWorker.
+ *  Both paths apply the same mix of requests (80% get, 15% put, 5% remove)
+ *  to a map preloaded with numKeys keys, without any socket IO, and report
+ *  the time and the number of bytes allocated per request.
+ *
+ *  numKeys	is the number of distinct keys; default 10000
+ *  numOps	is the number of requests per measured round; default 1000000
+ *  rounds	is the number of measured rounds, after the same number of
+ *  		warmup rounds; default 5
+ */
+
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class ParseBench {
+	public static void main(String[] args) throws Exception {
+		int numKeys = 10000, numOps = 1000000, rounds = 5;
+		if (args.length > 0) numKeys = Integer.parseInt(args[0]);
+		if (args.length > 1) numOps = Integer.parseInt(args[1]);
+		if (args.length > 2) rounds = Integer.parseInt(args[2]);
+
+		// build the request mix
+		Random r = new Random(1);
+		byte[][] reqs = new byte[4096][];
+		for (int i = 0; i < reqs.length; i++) {
+			String key = "key" + r.nextInt(numKeys);
+			int x = r.nextInt(100);
+			String s = (x < 80 ? "get:" + key :
+				    x < 95 ? "put:" + key + ":value" + i :
+					     "remove:" + key);
+			reqs[i] = Request.ascii(s);
+		}
+
+		// preload the map and the store with the same pairs
+		ConcurrentHashMap<String, String> strMap = new ConcurrentHashMap<>();
+		Store store = new HeapStore();
+		for (int i = 0; i < numKeys; i++) {
+			strMap.put("key" + i, "value" + i);
+			byte[] k = Request.ascii("key" + i);
+			byte[] v = Request.ascii("value" + i);
+			store.put(new ByteKey(k, 0, k.length), v, 0, v.length);
+		}
+		MapWorker worker = new MapWorker(null, new CacheStore(store, 0), null);
+
+		for (int round = 0; round < 2 * rounds; round++) {
+			boolean warmup = round < rounds;
+			long[] s = measure(); long sink = 0;
+			for (int i = 0; i < numOps; i++) {
+				byte[] b = reqs[i & (reqs.length - 1)];
+				sink += stringPath(strMap, b, b.length).length;
+			}
+			long[] e = measure();
+			report(warmup, "string", numOps, s, e, sink);
+
+			s = measure(); sink = 0;
+			for (int i = 0; i < numOps; i++) {
+				byte[] b = reqs[i & (reqs.length - 1)];
+				worker.reply().clear();
+				worker.handle(b, 0, b.length);
+				sink += worker.reply().position();
+			}
+			e = measure();
+			report(warmup, "bytes ", numOps, s, e, sink);
+		}
+	}
+
+	/** The request path of the original single threaded MapServer. */
+	static byte[] stringPath(ConcurrentHashMap<String, String> map,
+				 byte[] buf, int len) throws Exception {
+		String dataString = new String(buf, 0, len, "US-ASCII");
+		String[] dataStrings = dataString.split(":");
+		String returnString;
+		if ("get".equals(dataStrings[0]) && dataStrings.length == 2) {
+			String value = map.get(dataStrings[1]);
+			returnString = (value == null ? "no match" : "ok:" + value);
+		} else if ("put".equals(dataStrings[0]) &&
+			   dataStrings.length == 3) {
+			String previous = map.put(dataStrings[1], dataStrings[2]);
+			returnString = (previous == null ? "Ok" :
+					"updated:" + dataStrings[1]);
+		} else if ("remove".equals(dataStrings[0]) &&
+			   dataStrings.length == 2) {
+			String removed = map.remove(dataStrings[1]);
+			returnString = (removed == null ? "no match" : "Ok");
+		} else {
+			returnString = "Error:unrecognizable\ninput:" + dataString;
+		}
+		return returnString.getBytes();
+	}
+
+	/** Sample the clock and the bytes allocated by this thread. */
+	static long[] measure() {
+		com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean)
+			ManagementFactory.getThreadMXBean();
+		return new long[] { System.nanoTime(),
+			mx.getThreadAllocatedBytes(Thread.currentThread().getId()) };
+	}
+
+	/** Print the cost per request of one measured round. */
+	static void report(boolean warmup, String name, int numOps,
+			   long[] s, long[] e, long sink) {
+		if (warmup) return;
+		System.out.printf("%s %8.1f ns/op %8.1f bytes/op (%d)\n", name,
+			(double) (e[0] - s[0]) / numOps,
+			(double) (e[1] - s[1]) / numOps, sink);
+	}
+}
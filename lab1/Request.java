@@ -0,0 +1,143 @@
+/** Byte-level parser for map server requests.
+ *
+ *  A request is a sequence of fields separated by ':', for example
+ *  "get:key", "put:key:value", "remove:key" or "get all:cursor:limit".
+ *  A put may carry a time to live in seconds, as in "put:key:value:ttl".
+ *  The batch commands "mget:key1:key2:..." and "mput:key1:value1:key2:
+ *  value2:..." carry any number of keys or pairs. The parser locates the
+ *  command, key and value directly in the receive buffer and records
+ *  them as (offset,length) spans, so no Strings are built; the fields of
+ *  a batch are recorded in argOff/argLen. As with String.split(":"),
+ *  trailing empty fields are ignored. A put needs a non-empty key and
+ *  value, and its time to live, if any, must be a positive number of at
+ *  most MAX_TTL_DIGITS digits.
+ */
+public class Request {
+	public static final int INVALID = 0;	// unrecognizable request
+	public static final int GET = 1;	// get:key
+	public static final int PUT = 2;	// put:key:value[:ttl]
+	public static final int REMOVE = 3;	// remove:key
+	public static final int GET_ALL = 4;	// get all[:cursor[:limit]]
+	public static final int MGET = 5;	// mget:key1:key2:...
+	public static final int MPUT = 6;	// mput:key1:value1:key2:value2:...
+
+	public static final int MAX_TTL_DIGITS = 12; // longest time to live
+
+	private static final byte[] GET_CMD = ascii("get");
+	private static final byte[] PUT_CMD = ascii("put");
+	private static final byte[] REMOVE_CMD = ascii("remove");
+	private static final byte[] GET_ALL_CMD = ascii("get all");
+	private static final byte[] MGET_CMD = ascii("mget");
+	private static final byte[] MPUT_CMD = ascii("mput");
+
+	// request fields - note: all are public
+	public int cmd;		// one of the command codes above
+	public byte[] buf;	// buffer holding the request
+	public int keyOff;	// offset of the key (or cursor) in buf
+	public int keyLen;	// length of the key
+	public int valOff;	// offset of the value (or limit) in buf
+	public int valLen;	// length of the value
+	public int ttlOff;	// offset of the time to live of a put in buf
+	public int ttlLen;	// length of the time to live; 0 if none
+	public int nargs;	// number of fields after a batch command
+	public int[] argOff = new int[16]; // offsets of the batch fields
+	public int[] argLen = new int[16]; // lengths of the batch fields
+
+	/** Parse a request.
+	 *  @param buf is a buffer containing the request
+	 *  @param off is the offset of the request in buf
+	 *  @param len is the length of the request
+	 *  @return the command code; INVALID if the request is ill-formatted
+	 */
+	public int parse(byte[] buf, int off, int len) {
+		this.buf = buf;
+		cmd = INVALID; keyOff = keyLen = valOff = valLen = nargs = 0;
+		ttlOff = ttlLen = 0;
+		int end = off + len;
+		// drop trailing empty fields
+		while (end > off && buf[end - 1] == ':') end--;
+		int c1 = indexOf(buf, off, end);
+		if (c1 < 0) {
+			if (matches(buf, off, end, GET_ALL_CMD)) cmd = GET_ALL;
+			return cmd;
+		}
+		if (matches(buf, off, c1, MGET_CMD) ||
+		    matches(buf, off, c1, MPUT_CMD)) {
+			// record every field after the command
+			for (int from = c1 + 1; ; ) {
+				int c = indexOf(buf, from, end);
+				if (nargs == argOff.length) {
+					argOff = java.util.Arrays.copyOf(argOff, 2 * nargs);
+					argLen = java.util.Arrays.copyOf(argLen, 2 * nargs);
+				}
+				argOff[nargs] = from;
+				argLen[nargs++] = (c < 0 ? end : c) - from;
+				if (c < 0) break;
+				from = c + 1;
+			}
+			if (buf[off + 1] == 'g') cmd = MGET;
+			else if (nargs % 2 == 0) cmd = MPUT;
+			return cmd;
+		}
+		int c2 = indexOf(buf, c1 + 1, end);
+		if (c2 < 0) {
+			keyOff = c1 + 1; keyLen = end - keyOff;
+			if (matches(buf, off, c1, GET_CMD)) cmd = GET;
+			else if (matches(buf, off, c1, REMOVE_CMD)) cmd = REMOVE;
+			else if (matches(buf, off, c1, GET_ALL_CMD)) cmd = GET_ALL;
+		} else {
+			int c3 = indexOf(buf, c2 + 1, end);
+			keyOff = c1 + 1; keyLen = c2 - keyOff;
+			valOff = c2 + 1; valLen = (c3 < 0 ? end : c3) - valOff;
+			if (c3 < 0) {
+				if (matches(buf, off, c1, PUT_CMD)) {
+					if (keyLen > 0 && valLen > 0) cmd = PUT;
+				} else if (matches(buf, off, c1, GET_ALL_CMD))
+					cmd = GET_ALL;
+			} else if (indexOf(buf, c3 + 1, end) < 0 &&
+				   matches(buf, off, c1, PUT_CMD)) {
+				ttlOff = c3 + 1; ttlLen = end - ttlOff;
+				if (keyLen > 0 && valLen > 0 &&
+				    isPositive(buf, ttlOff, end))
+					cmd = PUT;
+			}
+		}
+		return cmd;
+	}
+
+	/** Find the next ':' in a span of a buffer.
+	 *  @return the index of the separator, or -1 if there is none
+	 */
+	private static int indexOf(byte[] buf, int from, int end) {
+		for (int i = from; i < end; i++)
+			if (buf[i] == ':') return i;
+		return -1;
+	}
+
+	/** Test if the span [from,end) of a buffer is a positive decimal
+	 *  number of at most MAX_TTL_DIGITS digits.
+	 */
+	private static boolean isPositive(byte[] buf, int from, int end) {
+		if (end <= from || end - from > MAX_TTL_DIGITS) return false;
+		boolean nonZero = false;
+		for (int i = from; i < end; i++) {
+			if (buf[i] < '0' || buf[i] > '9') return false;
+			if (buf[i] != '0') nonZero = true;
+		}
+		return nonZero;
+	}
+
+	/** Test if the span [from,end) of a buffer equals a given word. */
+	private static boolean matches(byte[] buf, int from, int end,
+				       byte[] word) {
+		if (end - from != word.length) return false;
+		for (int i = 0; i < word.length; i++)
+			if (buf[from + i] != word[i]) return false;
+		return true;
+	}
+
+	/** Convert a constant string to US-ASCII bytes. */
+	static byte[] ascii(String s) {
+		return s.getBytes(java.nio.charset.StandardCharsets.US_ASCII);
+	}
+}
@@ -0,0 +1,113 @@
+/** Checks the byte-level request parser against the original one.
+ *  usage: RequestCheck [ numRequests ] [ seed ]
+ *
+ *  Builds random requests from the words "get", "put", "remove", a few
+ *  keys, values and times to live, and empty fields, joined by ':' and
+ *  sometimes ending in ':'. For each, Request.parse must give the command
+ *  and the key, value and time to live that String.split(":") gives, as
+ *  the original MapServer did (see ParseBench.stringPath), except that a
+ *  put needs a non-empty key and may end with a positive time to live.
+ *  The batch commands and "get all" are checked on a few fixed requests.
+ *  A request that does not check out throws an AssertionError, which
+ *  exits with status 1. lab2 has the same Request; compiled with lab2's
+ *  classes, this checks that copy.
+ *
+ *  numRequests	is the number of random requests; default 100000
+ *  seed	is the seed of the random requests; default 1
+ */
+
+import java.util.*;
+
+public class RequestCheck {
+	static final String[] WORDS = { "get", "put", "remove", "", "", "a",
+		"key", "v", "3", "0", "x", "1234567890123" };
+
+	public static void main(String[] args) throws Exception {
+		int numRequests = (args.length > 0 ? Integer.parseInt(args[0]) :
+				   100000);
+		long seed = (args.length > 1 ? Long.parseLong(args[1]) : 1);
+		Random r = new Random(seed);
+		Request req = new Request();
+		int valid = 0;
+		for (int i = 0; i < numRequests; i++) {
+			StringBuilder b = new StringBuilder(WORDS[r.nextInt(3)]);
+			for (int n = r.nextInt(5); n > 0; n--)
+				b.append(':').append(WORDS[r.nextInt(WORDS.length)]);
+			for (int n = r.nextInt(4) / 2; n > 0; n--) b.append(':');
+			// the request sits in the middle of a larger buffer
+			String s = b.toString();
+			byte[] buf = Request.ascii("xx:" + s + ":yy");
+			int cmd = req.parse(buf, 3, s.length());
+			String got = describe(req, buf, cmd);
+			String want = expect(s);
+			if (!got.equals(want))
+				throw new AssertionError("\"" + s + "\" parsed as " +
+							 got + ", not " + want);
+			if (cmd != Request.INVALID) valid++;
+		}
+
+		check("get all", "4 [] []");
+		check("get all:k5", "4 [k5] []");
+		check("get all:k5:10", "4 [k5] [10]");
+		check("get all:k5:10:", "4 [k5] [10]");
+		check("get alls", "0");
+		check("mget:a:b:c", "5 [a, b, c]");
+		check("mget:a::c:", "5 [a, , c]");
+		check("mput:a:1:b:2", "6 [a, 1, b, 2]");
+		check("mput:a:1:b", "0");
+		check("put:a:v\r", "2 [a] [v\r]");
+		check("", "0");
+		check(":::", "0");
+		System.out.printf("%d requests, %d valid, ok\n", numRequests, valid);
+	}
+
+	/** Describe what the parser found: the command code, then the key,
+	 *  value and time to live, or the fields of a batch command.
+	 */
+	static String describe(Request req, byte[] buf, int cmd) {
+		if (cmd == Request.INVALID) return "0";
+		if (cmd == Request.MGET || cmd == Request.MPUT) {
+			List<String> args = new ArrayList<String>();
+			for (int i = 0; i < req.nargs; i++)
+				args.add(new String(buf, req.argOff[i], req.argLen[i]));
+			return cmd + " " + args;
+		}
+		String d = cmd + " [" + span(buf, req.keyOff, req.keyLen) + "]";
+		if (cmd == Request.PUT || cmd == Request.GET_ALL)
+			d += " [" + span(buf, req.valOff, req.valLen) + "]";
+		if (req.ttlLen > 0)
+			d += " [" + span(buf, req.ttlOff, req.ttlLen) + "]";
+		return d;
+	}
+
+	/** Describe what the original parser made of a request. */
+	static String expect(String s) {
+		String[] f = s.split(":");
+		if (f[0].equals("get") && f.length == 2)
+			return Request.GET + " [" + f[1] + "]";
+		if (f[0].equals("remove") && f.length == 2)
+			return Request.REMOVE + " [" + f[1] + "]";
+		if (f[0].equals("put") && (f.length == 3 || f.length == 4) &&
+		    !f[1].isEmpty() && !f[2].isEmpty()) {
+			String d = Request.PUT + " [" + f[1] + "] [" + f[2] + "]";
+			if (f.length == 3) return d;
+			if (f[3].matches("[0-9]{1,12}") && !f[3].matches("0+"))
+				return d + " [" + f[3] + "]";
+		}
+		return "0";
+	}
+
+	/** Check the parse of one request. */
+	static void check(String s, String want) {
+		Request req = new Request();
+		byte[] buf = Request.ascii(s);
+		String got = describe(req, buf, req.parse(buf, 0, buf.length));
+		if (!got.equals(want))
+			throw new AssertionError("\"" + s + "\" parsed as " + got +
+						 ", not " + want);
+	}
+
+	static String span(byte[] buf, int off, int len) {
+		return new String(buf, off, len);
+	}
+}
@@ -0,0 +1,105 @@
+/** Memory and latency benchmark for the MapServer stores.
+ *  usage: StoreBench heap|offheap [ numKeys ] [ numOps ] [ valueLen ]
+ *
+ *  Loads numKeys pairs into a HeapStore (a ConcurrentHashMap) or an
+ *  OffHeapStore and reports the memory taken per pair, counting both the
+ *  Java heap and direct buffers, then times numOps single requests (80%
+ *  get, 20% put of a new value) and reports the latency percentiles,
+ *  which include any garbage collection pauses. Run each store in its own
+ *  JVM with the same heap settings, e.g. java -Xmx4g StoreBench heap.
+ *
+ *  numKeys	is the number of pairs; default 2000000
+ *  numOps	is the number of timed requests; default 5000000
+ *  valueLen	is the length of each value; default 32
+ */
+
+import java.lang.management.*;
+import java.nio.*;
+import java.util.*;
+
+public class StoreBench {
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.out.println("usage: StoreBench heap|offheap " +
+				"[ numKeys ] [ numOps ] [ valueLen ]");
+			return;
+		}
+		int numKeys = 2000000, numOps = 5000000, valueLen = 32;
+		if (args.length > 1) numKeys = Integer.parseInt(args[1]);
+		if (args.length > 2) numOps = Integer.parseInt(args[2]);
+		if (args.length > 3) valueLen = Integer.parseInt(args[3]);
+
+		long before = used();
+		Store store = (args[0].equals("offheap") ? new OffHeapStore() :
+			       new HeapStore());
+		byte[] kb = new byte[32];
+		byte[] value = new byte[valueLen];
+		Arrays.fill(value, (byte) 'v');
+		ByteKey probe = new ByteKey();
+		for (int i = 0; i < numKeys; i++)
+			store.put(probe.set(kb, 0, key(kb, i)), value, 0, valueLen);
+		long after = used();
+		System.out.printf("%s: %d pairs, %.1f bytes/pair " +
+			"(key ~%d bytes, value %d bytes)\n", args[0], numKeys,
+			(double) (after - before) / numKeys, key(kb, numKeys / 2),
+			valueLen);
+
+		// time single requests, after a warmup of the same length
+		Random r = new Random(1);
+		ByteBuffer out = ByteBuffer.allocate(valueLen + 100);
+		long[] lat = new long[numOps];
+		for (int round = 0; round < 2; round++) {
+			for (int i = 0; i < numOps; i++) {
+				int len = key(kb, r.nextInt(numKeys));
+				boolean get = r.nextInt(100) < 80;
+				value[0] = (byte) ('a' + (i & 15));
+				long t = System.nanoTime();
+				if (get) {
+					out.clear();
+					store.get(probe.set(kb, 0, len), out);
+				} else {
+					store.put(probe.set(kb, 0, len), value, 0,
+						  valueLen);
+				}
+				lat[i] = System.nanoTime() - t;
+			}
+		}
+		Arrays.sort(lat);
+		System.out.printf("%s: p50 %d ns  p99 %d ns  p99.9 %d ns  " +
+			"max %d us\n", args[0], lat[numOps / 2],
+			lat[(int) (numOps * 0.99)], lat[(int) (numOps * 0.999)],
+			lat[numOps - 1] / 1000);
+		long gcs = 0, gcMs = 0;
+		for (GarbageCollectorMXBean gc :
+		     ManagementFactory.getGarbageCollectorMXBeans()) {
+			gcs += gc.getCollectionCount();
+			gcMs += gc.getCollectionTime();
+		}
+		System.out.printf("%s: %d collections, %d ms in total\n",
+				  args[0], gcs, gcMs);
+	}
+
+	/** Write the ASCII key "key<i>" into kb.
+	 *  @return the length of the key
+	 */
+	static int key(byte[] kb, int i) {
+		kb[0] = 'k'; kb[1] = 'e'; kb[2] = 'y';
+		int n = 3;
+		String s = Integer.toString(i);
+		for (int j = 0; j < s.length(); j++) kb[n++] = (byte) s.charAt(j);
+		return n;
+	}
+
+	/** Get the bytes in use on the heap and in direct buffers,
+	 *  after collecting garbage.
+	 */
+	static long used() throws InterruptedException {
+		for (int i = 0; i < 3; i++) { System.gc(); Thread.sleep(100); }
+		long n = ManagementFactory.getMemoryMXBean()
+				.getHeapMemoryUsage().getUsed();
+		for (BufferPoolMXBean pool : ManagementFactory
+				.getPlatformMXBeans(BufferPoolMXBean.class))
+			if (pool.getName().equals("direct")) n += pool.getMemoryUsed();
+		return n;
+	}
+}
@@ -0,0 +1,134 @@
+/** Checks the stores that keep a map server's pairs.
+ *  usage: StoreCheck [ numOps ] [ seed ]
+ *
+ *  Applies random puts, gets and removes to a HeapStore and to an
+ *  OffHeapStore, and to a plain map as the model. Every call must return
+ *  what the model says: whether the key had a value, whether it was
+ *  removed, and the length and bytes of the value. A get into a buffer
+ *  too small for the value must return its length without copying it.
+ *  Values run from empty to larger than a segment's first arena, and
+ *  keys are replaced and removed often, so the OffHeapStore grows its
+ *  slot tables and arenas and compacts its arenas many times over. A
+ *  scan must then give back exactly the model's pairs. Last, several
+ *  threads apply random operations to keys of their own at once, and
+ *  the store must end up holding the pairs of all their models. A
+ *  check that fails throws an AssertionError, which exits with status 1.
+ *
+ *  numOps	is the number of random operations per store; default 1000000
+ *  seed	is the seed of the random operations; default 1
+ */
+
+import java.nio.*;
+import java.util.*;
+
+public class StoreCheck {
+	static final int THREADS = 4;
+
+	public static void main(String[] args) throws Exception {
+		int numOps = (args.length > 0 ? Integer.parseInt(args[0]) : 1000000);
+		long seed = (args.length > 1 ? Long.parseLong(args[1]) : 1);
+		Store[] stores = { new HeapStore(), new OffHeapStore() };
+		for (Store store : stores) {
+			String name = store.getClass().getName();
+			Map<String, byte[]> model = new HashMap<String, byte[]>();
+			apply(store, model, "", numOps, new Random(seed));
+			compare(name, store, model);
+
+			// several threads at once, each with keys of its own
+			List<Map<String, byte[]>> models =
+				new ArrayList<Map<String, byte[]>>();
+			List<Thread> threads = new ArrayList<Thread>();
+			AssertionError[] failed = new AssertionError[1];
+			for (int t = 0; t < THREADS; t++) {
+				Map<String, byte[]> m = new HashMap<String, byte[]>();
+				models.add(m);
+				String prefix = "t" + t + ":";
+				Random r = new Random(seed + t + 1);
+				threads.add(new Thread(() -> {
+					try {
+						apply(store, m, prefix, numOps / THREADS, r);
+					} catch (AssertionError e) {
+						failed[0] = e;
+					}
+				}));
+			}
+			for (Thread t : threads) t.start();
+			for (Thread t : threads) t.join();
+			if (failed[0] != null) throw failed[0];
+			for (Map<String, byte[]> m : models) model.putAll(m);
+			compare(name + " after " + THREADS + " threads", store, model);
+		}
+		System.out.println("ok");
+	}
+
+	/** Apply random operations to a store and its model, checking the
+	 *  result of each.
+	 *  @param prefix starts every key used
+	 */
+	static void apply(Store store, Map<String, byte[]> model, String prefix,
+			  int numOps, Random r) {
+		ByteKey probe = new ByteKey();
+		ByteBuffer dst = ByteBuffer.allocate(1 << 18);
+		for (int i = 0; i < numOps; i++) {
+			String key = prefix + "key" + r.nextInt(100000);
+			byte[] k = Request.ascii(key);
+			probe.set(k, 0, k.length);
+			byte[] want = model.get(key);
+			int x = r.nextInt(10);
+			if (x < 4) {
+				int len = (r.nextInt(1000) == 0 ? r.nextInt(1 << 17) :
+					   r.nextInt(100));
+				byte[] val = new byte[len + 3];
+				r.nextBytes(val);
+				if (store.put(probe, val, 3, len) != (want != null))
+					throw new AssertionError("put of " + key +
+						" says it was " + (want != null ? "not " : "") +
+						"stored");
+				model.put(key, Arrays.copyOfRange(val, 3, 3 + len));
+			} else if (x < 6) {
+				if (store.remove(probe) != (want != null))
+					throw new AssertionError("remove of " + key +
+						" says it was " + (want != null ? "not " : "") +
+						"stored");
+				model.remove(key);
+			} else {
+				dst.clear();
+				if (want != null && want.length > 0 && x == 9)
+					dst.limit(want.length - 1); // too small
+				int n = store.get(probe, dst);
+				boolean copied = (want != null &&
+						  want.length <= dst.limit());
+				if (n != (want == null ? -1 : want.length) ||
+				    dst.position() != (copied ? n : 0) ||
+				    (copied && !Arrays.equals(want, Arrays.copyOf(
+						dst.array(), n))))
+					throw new AssertionError("get of " + key +
+						" returned " + n + " with " + dst.position() +
+						" bytes copied, not " + (want == null ? -1 :
+						want.length) + (copied ? "" : " with none"));
+			}
+		}
+	}
+
+	/** Check that a scan of a store gives back the model's pairs. */
+	static void compare(String what, Store store, Map<String, byte[]> model) {
+		int n = 0;
+		Set<String> seen = new HashSet<String>();
+		Iterator<Map.Entry<ByteKey, byte[]>> it = store.scan();
+		while (it.hasNext()) {
+			Map.Entry<ByteKey, byte[]> pair = it.next();
+			String key = pair.getKey().toString();
+			if (!seen.add(key))
+				throw new AssertionError(what + ": " + key +
+							 " scanned twice");
+			if (!Arrays.equals(model.get(key), pair.getValue()))
+				throw new AssertionError(what + ": " + key +
+							 " scanned with the wrong value");
+			n++;
+		}
+		if (n != model.size())
+			throw new AssertionError(what + ": " + n + " pairs scanned, not " +
+						 model.size());
+		System.out.printf("%s: %d pairs\n", what, n);
+	}
+}
@@ -0,0 +1,106 @@
+/** Checks the framing of requests on a TcpMapServer connection.
+ *  usage: FramerCheck [ numRequests ] [ seed ]
+ *
+ *  Writes random requests, some ending in "\r\n" and some empty, into a
+ *  LineFramer in reads of random size, from one byte to several requests
+ *  at once, so requests arrive both split and coalesced. next() must give
+ *  back every request, in order and without its '\n', and rest() the
+ *  unterminated one at the end. A request longer than MAX_FRAME must be
+ *  cut at that size. Then it checks that MapHandler answers a request
+ *  ending in '\r', as a client sending "\r\n" leaves it, as it answers
+ *  the same request without it. A check that fails throws an
+ *  AssertionError, which exits with status 1.
+ *
+ *  numRequests	is the number of random requests; default 100000
+ *  seed	is the seed of the random requests and reads; default 1
+ */
+
+import java.nio.*;
+import java.util.*;
+
+public class FramerCheck {
+	public static void main(String[] args) throws Exception {
+		int numRequests = (args.length > 0 ? Integer.parseInt(args[0]) :
+				   100000);
+		long seed = (args.length > 1 ? Long.parseLong(args[1]) : 1);
+		Random r = new Random(seed);
+
+		// split and coalesced requests
+		List<String> sent = new ArrayList<String>();
+		StringBuilder stream = new StringBuilder();
+		for (int i = 0; i < numRequests; i++) {
+			String s = (r.nextInt(20) == 0 ? "" :
+				    "put:key" + r.nextInt(1000) + ":" +
+				    "v".repeat(r.nextInt(3000)));
+			if (r.nextInt(4) == 0) s += "\r";
+			sent.add(s);
+			stream.append(s).append('\n');
+		}
+		sent.add("get:last");
+		stream.append("get:last");
+		List<String> got = feed(Request.ascii(stream.toString()), r);
+		if (!got.equals(sent)) {
+			int i = 0;
+			while (i < got.size() && got.get(i).equals(sent.get(i))) i++;
+			throw new AssertionError("request " + i + " framed as \"" +
+				(i < got.size() ? got.get(i) : null) + "\", not \"" +
+				sent.get(i) + "\"");
+		}
+
+		// a request that is too long
+		byte[] big = new byte[2 * LineFramer.MAX_FRAME + 10];
+		Arrays.fill(big, (byte) 'x');
+		big[big.length - 1] = '\n';
+		got = feed(big, r);
+		if (got.size() != 3 ||
+		    got.get(0).length() != LineFramer.MAX_FRAME ||
+		    got.get(1).length() != LineFramer.MAX_FRAME ||
+		    got.get(2).length() != 9)
+			throw new AssertionError("long request framed as " +
+						 got.size() + " requests");
+
+		// "\r\n"
+		String[] reqs = { "put:a:1", "put:a:2", "get:a", "mget:a:b",
+				  "put:b:3:60", "get all", "remove:a", "get:a",
+				  "bogus" };
+		MapHandler plain = new MapHandler(
+			new CacheStore(new HeapStore(), 0), null);
+		MapHandler crlf = new MapHandler(
+			new CacheStore(new HeapStore(), 0), null);
+		for (String s : reqs) {
+			String want = reply(plain, s);
+			String have = reply(crlf, s + "\r");
+			if (!have.equals(want))
+				throw new AssertionError("\"" + s + "\\r\" answered " +
+					have.trim() + ", not " + want.trim());
+		}
+		System.out.printf("%d requests framed, ok\n", sent.size());
+	}
+
+	/** Feed bytes to a new framer in reads of random size.
+	 *  @return the requests it gives back, then the unterminated rest
+	 */
+	static List<String> feed(byte[] bytes, Random r) {
+		LineFramer f = new LineFramer();
+		List<String> got = new ArrayList<String>();
+		for (int pos = 0; pos < bytes.length; ) {
+			ByteBuffer b = f.buffer();
+			int n = Math.min(Math.min(bytes.length - pos, b.remaining()),
+					 (r.nextBoolean() ? 1 + r.nextInt(16) :
+					  1 + r.nextInt(20000)));
+			b.put(bytes, pos, n);
+			pos += n;
+			while (f.next())
+				got.add(new String(f.array(), f.off, f.len));
+		}
+		if (f.rest()) got.add(new String(f.array(), f.off, f.len));
+		return got;
+	}
+
+	/** Get a handler's reply to one request. */
+	static String reply(MapHandler h, String s) {
+		byte[] b = Request.ascii(s);
+		ByteBuffer reply = h.handle(b, 0, b.length);
+		return new String(reply.array(), 0, reply.position());
+	}
+}
@@ -0,0 +1,33 @@
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Store that keeps its pairs in a ConcurrentSkipListMap on the Java heap.
+ *  Pairs are kept in key order, so a scan can start after any key.
+ */
+public class HeapStore implements Store {
+	private ConcurrentSkipListMap<ByteKey, byte[]> map; // key/value pairs
+
+	/** Initialize a new, empty HeapStore object. */
+	public HeapStore() { map = new ConcurrentSkipListMap<>(); }
+
+	public int get(ByteKey key, ByteBuffer dst) {
+		byte[] value = map.get(key);
+		if (value == null) return -1;
+		if (value.length <= dst.remaining()) dst.put(value);
+		return value.length;
+	}
+
+	public boolean put(ByteKey key, byte[] buf, int off, int len) {
+		byte[] value = new byte[len];
+		System.arraycopy(buf, off, value, 0, len);
+		return map.put(key.copy(), value) != null;
+	}
+
+	public boolean remove(ByteKey key) { return map.remove(key) != null; }
+
+	public Iterator<Map.Entry<ByteKey, byte[]>> scan(ByteKey after) {
+		return (after == null ? map : map.tailMap(after.copy(), false))
+			.entrySet().iterator();
+	}
+}
@@ -0,0 +1,83 @@
+import java.nio.*;
+
+/** Splits the byte stream of a connection into '\n' terminated requests.
+ *
+ *  Bytes are read from the connection into the framer's buffer, then
+ *  next() is called until it returns false, each call exposing one
+ *  complete request as the span [off,off+len) of array(). A read may hold
+ *  part of a request, or several requests at once; a partial request is
+ *  kept until the rest of it arrives. The buffer grows as needed up to
+ *  MAX_FRAME bytes; a longer request is cut at that size.
+ */
+public class LineFramer {
+	public static final int MAX_FRAME = 1 << 16; // longest request
+
+	private ByteBuffer buf;	// read bytes occupy [start,position())
+	private int start;	// offset of the first unconsumed byte
+	private int scan;	// offset where the search for '\n' resumes
+
+	public int off;		// offset of the last request in array()
+	public int len;		// length of the last request, without '\n'
+
+	/** Initialize a new LineFramer object. */
+	public LineFramer() { buf = ByteBuffer.allocate(1000); }
+
+	/** Get the buffer to read the next bytes into.
+	 *  Consumed bytes are dropped first so there is room to read.
+	 *  @return a buffer whose position is where the next byte goes
+	 */
+	public ByteBuffer buffer() {
+		int end = buf.position();
+		if (start > 0) {
+			System.arraycopy(buf.array(), start, buf.array(), 0,
+					 end - start);
+			buf.position(end - start);
+			scan -= start; start = 0;
+		}
+		if (!buf.hasRemaining() && buf.capacity() < MAX_FRAME) {
+			ByteBuffer bigger = ByteBuffer.allocate(
+				Math.min(2 * buf.capacity(), MAX_FRAME));
+			buf.flip();
+			bigger.put(buf);
+			buf = bigger;
+		}
+		return buf;
+	}
+
+	/** Get the array that holds the requests. */
+	public byte[] array() { return buf.array(); }
+
+	/** Find the next complete request.
+	 *  @return true if a request was found, in which case off and len
+	 *  give its position in array()
+	 */
+	public boolean next() {
+		byte[] b = buf.array();
+		int end = buf.position();
+		for (; scan < end; scan++) {
+			if (b[scan] == '\n') {
+				off = start; len = scan - start;
+				start = ++scan;
+				return true;
+			}
+		}
+		if (end - start >= MAX_FRAME) { // too long, cut it here
+			off = start; len = end - start;
+			start = scan = end;
+			return true;
+		}
+		return false;
+	}
+
+	/** Take the unterminated request left at the end of the stream.
+	 *  @return true if there was one, in which case off and len give
+	 *  its position in array()
+	 */
+	public boolean rest() {
+		int end = buf.position();
+		if (start == end) return false;
+		off = start; len = end - start;
+		start = scan = end;
+		return true;
+	}
+}
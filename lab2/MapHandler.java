@@ -0,0 +1,290 @@
+import java.nio.*;
+import java.util.*;
+
+/** Request handler for the TcpMapServer.
+ *
+ *  A handler applies requests to the server's store and writes the replies
+ *  into a reused buffer. Requests are parsed in place in the buffer they
+ *  were read into, and keys are looked up without building Strings, so
+ *  handling a request does not allocate beyond whatever the store
+ *  allocates to keep a new pair.
+ *
+ *  The batch commands "mget" and "mput" are answered with one reply line
+ *  holding one result per key, in request order and separated by "::";
+ *  each result is what the single command would have returned.
+ *
+ *  The reply to "get all" can be far larger than any buffer, so it is
+ *  produced in chunks of about CHUNK bytes. If handle() returns only the
+ *  first chunk, pending() returns the unfinished Scan and the caller
+ *  fetches the remaining chunks with resume() whenever it has room to
+ *  send them. "get all:cursor:limit" returns at most limit pairs whose
+ *  keys follow cursor in the store's order (key order for a HeapStore);
+ *  an empty cursor starts at the first key. To scan the whole map page
+ *  by page, a client passes the last key of each page as the cursor for
+ *  the next one, until a page holds fewer than limit pairs.
+ *
+ *  A put may end with a time to live in seconds ("put:key:value:ttl"),
+ *  after which the pair expires. When the store has a memory limit, the
+ *  handler lets it evict pairs after each write, once no locks are held.
+ *
+ *  If the server was given a log, every put and remove is applied to the
+ *  store and then logged while holding the log's lock for that key.
+ */
+public class MapHandler {
+	private static final byte[] OK = Request.ascii("Ok");
+	private static final byte[] OK_VAL = Request.ascii("ok:");
+	private static final byte[] NO_MATCH = Request.ascii("no match");
+	private static final byte[] UPDATED = Request.ascii("updated:");
+	private static final byte[] ERROR = Request.ascii(
+					"error:unrecognizable  input:");
+	private static final byte[] SEP = Request.ascii("::");
+
+	public static final int CHUNK = 8192; // size of a "get all" chunk
+
+	private CacheStore store;	// key/value pairs
+	private MapLog log;		// write-ahead log, or null if none
+	private ByteBuffer reply;	// reply buffer, reused for every reply
+	private Request req;		// parsed form of the current request
+	private ByteKey probe;		// key used to look up the current request
+	private Scan pending;		// unfinished scan of the last request
+
+	/** State of an unfinished "get all" reply. */
+	public static class Scan {
+		private Iterator<Map.Entry<ByteKey, byte[]>> it; // next pairs
+		private int left;	// pairs still allowed by the limit
+		private boolean first;	// true until the first pair is written
+		private boolean done;	// true once the final '\n' is written
+
+		/** Test if the whole reply has been produced. */
+		public boolean done() { return done; }
+	}
+
+	/** Initialize a new MapHandler object.
+	 *  @param store is the store the requests are applied to
+	 *  @param log is the write-ahead log for the store (may be null)
+	 */
+	MapHandler(CacheStore store, MapLog log) {
+		this.store = store;
+		this.log = log;
+		reply = ByteBuffer.allocate(2000);
+		req = new Request();
+		probe = new ByteKey();
+	}
+
+	/** Apply one request to the store.
+	 *  Leading and trailing white space around the request is ignored.
+	 *  @param buf is a buffer containing the request
+	 *  @param off is the offset of the request in buf
+	 *  @param len is the length of the request
+	 *  @return the reply buffer, holding the '\n' terminated reply
+	 *  (or its first chunk, if pending() is not null) in [0,position())
+	 */
+	public ByteBuffer handle(byte[] buf, int off, int len) {
+		int end = off + len;
+		while (off < end && buf[off] <= ' ') off++;
+		while (end > off && buf[end - 1] <= ' ') end--;
+		len = end - off;
+		reply.clear();
+		pending = null;
+		switch (req.parse(buf, off, len)) {
+		case Request.GET:
+			get(probe.set(buf, req.keyOff, req.keyLen));
+			break;
+		case Request.PUT: {
+			long expires = 0;
+			if (req.ttlLen > 0) {
+				long ttl = parseLong(buf, req.ttlOff, req.ttlLen);
+				if (ttl <= 0) {
+					put(ERROR); put(buf, off, len);
+					break;
+				}
+				expires = System.currentTimeMillis() + 1000 * ttl;
+			}
+			boolean previous = put(probe.set(buf, req.keyOff, req.keyLen),
+					       buf, req.valOff, req.valLen, expires);
+			if (!previous) {
+				put(OK);
+			} else {
+				put(UPDATED); put(buf, req.keyOff, req.keyLen);
+			}
+			break;
+		}
+		case Request.REMOVE: {
+			boolean removed = remove(
+					probe.set(buf, req.keyOff, req.keyLen));
+			if (!removed) {
+				put(NO_MATCH);
+			} else {
+				put(OK);
+			}
+			break;
+		}
+		case Request.MGET: {
+			for (int i = 0; i < req.nargs; i++) {
+				if (i > 0) put(SEP);
+				get(probe.set(buf, req.argOff[i], req.argLen[i]));
+			}
+			break;
+		}
+		case Request.MPUT: {
+			for (int i = 0; i < req.nargs; i += 2) {
+				int keyOff = req.argOff[i], keyLen = req.argLen[i];
+				boolean previous = put(probe.set(buf, keyOff, keyLen),
+					buf, req.argOff[i + 1], req.argLen[i + 1], 0);
+				if (i > 0) put(SEP);
+				if (!previous) {
+					put(OK);
+				} else {
+					put(UPDATED); put(buf, keyOff, keyLen);
+				}
+			}
+			break;
+		}
+		case Request.GET_ALL: {
+			int limit = Integer.MAX_VALUE;
+			if (req.valLen > 0 && (limit = parseInt(buf, req.valOff,
+						req.valLen)) < 0) {
+				put(ERROR); put(buf, off, len);
+				break;
+			}
+			Scan scan = new Scan();
+			scan.it = store.scan(req.keyLen == 0 ? null :
+					probe.set(buf, req.keyOff, req.keyLen));
+			scan.left = limit;
+			scan.first = true;
+			fill(scan);
+			if (!scan.done) pending = scan;
+			return reply;
+		}
+		default: // invalid instruction
+			put(ERROR); put(buf, off, len);
+		}
+		put((byte) '\n'); // String terminates with '\n'
+		return reply;
+	}
+
+	/** Write the result of a get into the reply. */
+	private void get(ByteKey key) {
+		int mark = reply.position();
+		put(OK_VAL);
+		int n, pos = reply.position();
+		// the store copies the value only if it fits
+		while ((n = store.get(key, reply)) > 0 && reply.position() == pos)
+			ensure(n);
+		if (n < 0) {
+			reply.position(mark);
+			put(NO_MATCH);
+		}
+	}
+
+	/** Put a pair into the store, log it and trim the store. */
+	private boolean put(ByteKey key, byte[] buf, int off, int len,
+			    long expires) {
+		boolean previous;
+		if (log == null) {
+			previous = store.put(key, buf, off, len, expires);
+		} else {
+			synchronized (log.lockFor(key)) {
+				previous = store.put(key, buf, off, len, expires);
+				log.put(key, buf, off, len, expires);
+			}
+		}
+		store.trim();
+		return previous;
+	}
+
+	/** Remove a key from the store and log it. */
+	private boolean remove(ByteKey key) {
+		if (log == null) return store.remove(key);
+		synchronized (log.lockFor(key)) {
+			boolean removed = store.remove(key);
+			if (removed) log.remove(key);
+			return removed;
+		}
+	}
+
+	/** Get the reply buffer of the last request (or chunk). */
+	public ByteBuffer reply() { return reply; }
+
+	/** Get the unfinished "get all" scan left by the last request.
+	 *  @return the scan, or null if the last reply is complete
+	 */
+	public Scan pending() { return pending; }
+
+	/** Produce the next chunk of an unfinished "get all" reply.
+	 *  @param scan is a scan returned by pending()
+	 *  @return the reply buffer, holding the chunk in [0,position());
+	 *  the last chunk ends with '\n' and sets scan.done()
+	 */
+	public ByteBuffer resume(Scan scan) {
+		reply.clear();
+		fill(scan);
+		return reply;
+	}
+
+	/** Write pairs of a scan into the reply until about CHUNK bytes
+	 *  have been written or the scan is done.
+	 */
+	private void fill(Scan scan) {
+		while (reply.position() < CHUNK && scan.left > 0 &&
+		       scan.it.hasNext()) {
+			Map.Entry<ByteKey, byte[]> pair = scan.it.next();
+			if (!scan.first) { put((byte) ':'); put((byte) ':'); }
+			scan.first = false;
+			ByteKey key = pair.getKey();
+			ensure(key.length());
+			key.getBytes(reply.array(), reply.position());
+			reply.position(reply.position() + key.length());
+			put((byte) ':'); put(pair.getValue());
+			scan.left--;
+		}
+		if (scan.left == 0 || !scan.it.hasNext()) {
+			put((byte) '\n'); // String terminates with '\n'
+			scan.done = true;
+		}
+	}
+
+	/** Parse a non-negative decimal number.
+	 *  @return the number, or -1 if the span is not a valid number
+	 */
+	private static int parseInt(byte[] buf, int off, int len) {
+		if (len == 0 || len > 9) return -1;
+		int n = 0;
+		for (int i = off; i < off + len; i++) {
+			if (buf[i] < '0' || buf[i] > '9') return -1;
+			n = 10 * n + (buf[i] - '0');
+		}
+		return n;
+	}
+
+	/** Parse a non-negative decimal number.
+	 *  @return the number, or -1 if the span is not a valid number
+	 */
+	private static long parseLong(byte[] buf, int off, int len) {
+		if (len == 0 || len > 12) return -1;
+		long n = 0;
+		for (int i = off; i < off + len; i++) {
+			if (buf[i] < '0' || buf[i] > '9') return -1;
+			n = 10 * n + (buf[i] - '0');
+		}
+		return n;
+	}
+
+	/** Make room for n more bytes in the reply buffer. */
+	private void ensure(int n) {
+		if (reply.remaining() >= n) return;
+		ByteBuffer bigger = ByteBuffer.allocate(
+			Math.max(2 * reply.capacity(), reply.position() + n));
+		reply.flip();
+		bigger.put(reply);
+		reply = bigger;
+	}
+
+	private void put(byte b) { ensure(1); reply.put(b); }
+
+	private void put(byte[] b) { put(b, 0, b.length); }
+
+	private void put(byte[] b, int off, int len) {
+		ensure(len); reply.put(b, off, len);
+	}
+}
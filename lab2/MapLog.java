@@ -0,0 +1,347 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+/** Write-ahead log and snapshots for a map server.
+ *
+ *  Every put and remove applied to the map is also appended to a log, so
+ *  the map can be rebuilt after a restart. Appended records collect in a
+ *  memory buffer and a flusher thread writes and fsyncs them as one group
+ *  every SYNC_MS milliseconds, or as soon as SYNC_BYTES are waiting, so
+ *  writes are never synced one at a time. A write is acknowledged before
+ *  it is synced; a crash loses at most the last SYNC_MS milliseconds.
+ *
+ *  The log is a series of segment files log.0, log.1, ... in the log
+ *  directory. A snapshot thread writes a compacted copy of the whole map
+ *  through memory mapped windows into the file snapshot, once a minute
+ *  or whenever the log has grown by SNAPSHOT_BYTES. Before a snapshot the
+ *  log moves on to a new segment; the snapshot records that segment's
+ *  number and the older segments are deleted once it is safely on disk.
+ *  A restart loads the snapshot and replays only the segments after it.
+ *
+ *  A log record is an op byte (PUT, PUT_TTL or REMOVE), the key length
+ *  and value length as ints, for PUT_TTL the expiry time in ms as a long,
+ *  then the key and value bytes. The snapshot starts with MAGIC, the
+ *  number of the first segment to replay and the number of pairs,
+ *  followed by the pairs as key length, value length, expiry time (0 if
+ *  none), key, value. Expiries and evictions are logged as removes.
+ */
+public class MapLog implements Runnable {
+	public static final long SYNC_MS = 10;	// longest wait for a sync
+	public static final int SYNC_BYTES = 1 << 20; // sync early at this size
+	public static final long SNAPSHOT_MS = 60000; // time between snapshots
+	public static final long SNAPSHOT_BYTES = 64 << 20; // log size trigger
+
+	private static final byte PUT = 1;	// log record types
+	private static final byte REMOVE = 2;
+	private static final byte PUT_TTL = 3;
+	private static final int MAGIC = 0x4d617054;	// "MapT"
+	private static final int HEADER = 20;	// magic, segment, count
+	private static final int WINDOW = 64 << 20; // mapped snapshot window
+
+	private File dir;			// directory of log and snapshot
+	private CacheStore store;		// store being logged
+	private Object[] stripes;		// locks ordering writes per key
+
+	private ByteBuffer pending;	// records waiting to be written
+	private ByteBuffer spare;	// buffer being written by the flusher
+	private final Object ioLock = new Object(); // serializes file IO
+	private FileChannel logChan;	// current log segment
+	private long seg;		// number of the current log segment
+	private volatile long tailBytes; // bytes logged since last snapshot
+	private volatile long lastSnapshot; // time of the last snapshot in ms
+
+	private Thread myThread;
+
+	/** Initialize a new MapLog object.
+	 *  @param dir is the directory holding the log and snapshot
+	 *  @param store is the store whose writes are logged
+	 */
+	MapLog(File dir, CacheStore store) {
+		this.dir = dir;
+		this.store = store;
+		stripes = new Object[64];
+		for (int i = 0; i < stripes.length; i++) stripes[i] = new Object();
+		pending = ByteBuffer.allocate(SYNC_BYTES);
+		spare = ByteBuffer.allocate(SYNC_BYTES);
+	}
+
+	/** Rebuild the map from the snapshot and log, and open a new segment.
+	 *  A record cut short by a crash at the end of a segment is dropped.
+	 */
+	public void recover() throws IOException {
+		dir.mkdirs();
+		long first = 0; // first segment not covered by the snapshot
+		File snap = new File(dir, "snapshot");
+		if (snap.exists()) first = loadSnapshot(snap);
+		long last = first - 1;
+		for (long s : segments()) {
+			if (s < first) {
+				segFile(s).delete(); // left over from a snapshot
+			} else if (segFile(s).length() == 0) {
+				segFile(s).delete(); // nothing was logged in it
+			} else {
+				replay(segFile(s));
+				last = s;
+			}
+		}
+		seg = last + 1;
+		logChan = FileChannel.open(segFile(seg).toPath(),
+			StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		lastSnapshot = System.currentTimeMillis();
+	}
+
+	/** Start the flusher and snapshot threads. */
+	public void start() {
+		myThread = new Thread(this);
+		myThread.setDaemon(true);
+		myThread.start();
+		Thread snapper = new Thread(() -> {
+			while (true) {
+				try {
+					Thread.sleep(1000);
+					long now = System.currentTimeMillis();
+					if (tailBytes >= SNAPSHOT_BYTES || (tailBytes > 0 &&
+					    now - lastSnapshot >= SNAPSHOT_MS))
+						snapshot();
+				} catch (Exception e) {
+					System.err.println("MapLog: snapshot failed " + e);
+				}
+			}
+		});
+		snapper.setDaemon(true);
+		snapper.start();
+	}
+
+	/** Get the lock that orders the writes to a key.
+	 *  A writer holds this lock while it applies a write to the map and
+	 *  then logs it, so the log holds the writes to each key in the
+	 *  order they were applied.
+	 */
+	public Object lockFor(ByteKey key) {
+		return stripes[key.hashCode() & (stripes.length - 1)];
+	}
+
+	/** Log a put of the value [off,off+len) of buf, for a pair that
+	 *  expires at a given time in ms (0 if never); the caller holds
+	 *  lockFor(key).
+	 */
+	public void put(ByteKey key, byte[] buf, int off, int len,
+			long expires) {
+		if (expires == 0) append(PUT, key, buf, off, len, 0);
+		else append(PUT_TTL, key, buf, off, len, expires);
+	}
+
+	/** Log a remove; the caller holds lockFor(key). */
+	public void remove(ByteKey key) { append(REMOVE, key, null, 0, 0, 0); }
+
+	/** Append a record to the pending buffer. */
+	private synchronized void append(byte op, ByteKey key, byte[] buf,
+					 int off, int vlen, long expires) {
+		int n = 17 + key.length() + vlen;
+		if (pending.remaining() < n) {
+			ByteBuffer bigger = ByteBuffer.allocate(
+				Math.max(2 * pending.capacity(), pending.position() + n));
+			pending.flip();
+			bigger.put(pending);
+			pending = bigger;
+		}
+		pending.put(op).putInt(key.length()).putInt(vlen);
+		if (op == PUT_TTL) pending.putLong(expires);
+		key.getBytes(pending.array(), pending.position());
+		pending.position(pending.position() + key.length());
+		if (buf != null) pending.put(buf, off, vlen);
+		if (pending.position() >= SYNC_BYTES) notify();
+	}
+
+	/** Main thread of the flusher.
+	 *  Writes and syncs the pending records every SYNC_MS milliseconds,
+	 *  or earlier if SYNC_BYTES are waiting.
+	 */
+	public void run() {
+		while (true) {
+			try {
+				synchronized (this) {
+					if (pending.position() < SYNC_BYTES) wait(SYNC_MS);
+				}
+				synchronized (ioLock) { flush(); }
+			} catch (Exception e) {
+				System.err.println("MapLog: cannot write log " + e);
+				System.exit(1);
+			}
+		}
+	}
+
+	/** Write and sync all pending records; the caller holds ioLock. */
+	private void flush() throws IOException {
+		ByteBuffer b;
+		synchronized (this) {
+			if (pending.position() == 0) return;
+			b = pending; pending = spare; spare = b;
+		}
+		b.flip();
+		tailBytes += b.remaining();
+		while (b.hasRemaining()) logChan.write(b);
+		logChan.force(false);
+		b.clear();
+	}
+
+	/** Write a compacted snapshot of the map and drop the old log.
+	 *  The log first moves on to a new segment. Every write that is not
+	 *  in an older segment is in the new one, and replaying it on top of
+	 *  the snapshot gives the same result whether or not the snapshot
+	 *  already saw it, so the map need not be frozen while it is copied.
+	 */
+	public void snapshot() throws IOException {
+		long first;
+		synchronized (ioLock) {
+			flush();
+			logChan.close();
+			first = ++seg;
+			logChan = FileChannel.open(segFile(seg).toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			tailBytes = 0;
+		}
+		lastSnapshot = System.currentTimeMillis();
+
+		File tmp = new File(dir, "snapshot.tmp");
+		FileChannel ch = FileChannel.open(tmp.toPath(),
+			StandardOpenOption.CREATE, StandardOpenOption.READ,
+			StandardOpenOption.WRITE,
+			StandardOpenOption.TRUNCATE_EXISTING);
+		long base = HEADER; // file offset of the current window
+		MappedByteBuffer m = ch.map(FileChannel.MapMode.READ_WRITE,
+					    base, WINDOW);
+		long count = 0;
+		Iterator<Map.Entry<ByteKey, byte[]>> it = store.scan(null);
+		while (it.hasNext()) {
+			Map.Entry<ByteKey, byte[]> pair = it.next();
+			ByteKey key = pair.getKey();
+			byte[] val = pair.getValue();
+			int n = 16 + key.length() + val.length;
+			if (m.remaining() < n) {
+				m.force();
+				base += m.position();
+				m = ch.map(FileChannel.MapMode.READ_WRITE, base,
+					   Math.max(WINDOW, n));
+			}
+			m.putInt(key.length()).putInt(val.length);
+			m.putLong(store.expires(key));
+			byte[] k = new byte[key.length()];
+			key.getBytes(k, 0);
+			m.put(k).put(val);
+			count++;
+		}
+		m.force();
+		long end = base + m.position();
+		m = ch.map(FileChannel.MapMode.READ_WRITE, 0, HEADER);
+		m.putInt(MAGIC).putLong(first).putLong(count);
+		m.force();
+		ch.truncate(end);
+		ch.force(true);
+		ch.close();
+		Files.move(tmp.toPath(), new File(dir, "snapshot").toPath(),
+			   StandardCopyOption.REPLACE_EXISTING,
+			   StandardCopyOption.ATOMIC_MOVE);
+		for (long s : segments())
+			if (s < first) segFile(s).delete();
+	}
+
+	/** Load the pairs of a snapshot into the map.
+	 *  @return the number of the first log segment to replay after it
+	 */
+	private long loadSnapshot(File snap) throws IOException {
+		FileChannel ch = FileChannel.open(snap.toPath(),
+						  StandardOpenOption.READ);
+		long size = ch.size();
+		MappedByteBuffer m = ch.map(FileChannel.MapMode.READ_ONLY, 0,
+					    Math.min(size, WINDOW));
+		long base = 0;
+		if (m.getInt() != MAGIC) {
+			ch.close();
+			throw new IOException("bad snapshot " + snap);
+		}
+		long first = m.getLong();
+		long count = m.getLong();
+		for (long i = 0; i < count; i++) {
+			if (m.remaining() < 16) {
+				base += m.position();
+				m = ch.map(FileChannel.MapMode.READ_ONLY, base,
+					   Math.min(size - base, WINDOW));
+			}
+			int klen = m.getInt(), vlen = m.getInt();
+			long expires = m.getLong();
+			if (m.remaining() < klen + vlen) {
+				base += m.position();
+				m = ch.map(FileChannel.MapMode.READ_ONLY, base,
+				   Math.min(size - base, Math.max(WINDOW, klen + vlen)));
+			}
+			byte[] k = new byte[klen];
+			byte[] v = new byte[vlen];
+			m.get(k).get(v);
+			store.put(new ByteKey(k, 0, klen), v, 0, vlen, expires);
+			store.trim();
+		}
+		ch.close();
+		return first;
+	}
+
+	/** Replay the records of a log segment into the map.
+	 *  A partial record at the end is cut off the file.
+	 */
+	private void replay(File f) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+						new FileInputStream(f)));
+		long good = 0; // length of the complete records
+		try {
+			while (true) {
+				int op = in.read();
+				if (op != PUT && op != REMOVE && op != PUT_TTL) break;
+				int klen = in.readInt(), vlen = in.readInt();
+				long expires = (op == PUT_TTL ? in.readLong() : 0);
+				if (klen < 0 || vlen < 0 || klen + vlen > (1 << 26))
+					break;
+				byte[] k = new byte[klen];
+				byte[] v = new byte[vlen];
+				in.readFully(k); in.readFully(v);
+				ByteKey key = new ByteKey(k, 0, klen);
+				if (op == REMOVE) store.remove(key);
+				else store.put(key, v, 0, vlen, expires);
+				store.trim();
+				good += (op == PUT_TTL ? 17 : 9) + klen + vlen;
+			}
+		} catch (EOFException e) {
+			// record cut short by a crash
+		}
+		in.close();
+		if (good < f.length()) {
+			FileChannel ch = FileChannel.open(f.toPath(),
+						  StandardOpenOption.WRITE);
+			ch.truncate(good);
+			ch.close();
+		}
+	}
+
+	/** Get the numbers of the existing log segments, in order. */
+	private long[] segments() {
+		ArrayList<Long> segs = new ArrayList<Long>();
+		String[] names = dir.list();
+		if (names != null) {
+			for (String name : names) {
+				if (!name.startsWith("log.")) continue;
+				try {
+					segs.add(Long.parseLong(name.substring(4)));
+				} catch (NumberFormatException e) { }
+			}
+		}
+		Collections.sort(segs);
+		long[] result = new long[segs.size()];
+		for (int i = 0; i < result.length; i++) result[i] = segs.get(i);
+		return result;
+	}
+
+	/** Get the file of a log segment. */
+	private File segFile(long s) { return new File(dir, "log." + s); }
+}
@@ -0,0 +1,161 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Event loop for the selector based mode of the TcpMapServer.
+ *
+ *  Each loop runs as a separate thread with its own Selector and serves
+ *  every connection that the accepting thread hands to it with add().
+ *  Connections are non-blocking and each has its own read and write
+ *  buffer. Requests are framed by a LineFramer; every complete request
+ *  in the read buffer is handled and its reply appended to the write
+ *  buffer, so a client may pipeline requests and gets the replies back
+ *  in order. Replies are only produced while the write buffer holds less
+ *  than MapHandler.CHUNK bytes, and while a connection has unsent replies
+ *  the loop stops reading from it, so a slow client cannot make the
+ *  server queue without bound. A "get all" reply is produced one chunk at
+ *  a time as the client drains it, so dumping a large map does not hold
+ *  up the other connections of the loop.
+ */
+public class SelectorLoop implements Runnable {
+	private Selector selector;	// selector for all our connections
+	private MapHandler handler;	// applies requests to the shared store
+	// connections accepted but not yet registered with the selector
+	private ConcurrentLinkedQueue<SocketChannel> newConns;
+
+	private Thread myThread;
+
+	/** Per connection state, attached to its selection key. */
+	private static class Conn {
+		LineFramer in = new LineFramer();	    // unhandled requests
+		ByteBuffer out = ByteBuffer.allocate(1000); // unsent replies
+		MapHandler.Scan scan;	// unfinished "get all" reply, if any
+		boolean eof;		// true once the client closed its side
+	}
+
+	/** Initialize a new SelectorLoop object.
+	 *  @param store is the store shared by all loops
+	 *  @param log is the write-ahead log for the store (may be null)
+	 */
+	SelectorLoop(CacheStore store, MapLog log) throws IOException {
+		selector = Selector.open();
+		handler = new MapHandler(store, log);
+		newConns = new ConcurrentLinkedQueue<SocketChannel>();
+	}
+
+	/** Start the loop running. */
+	public void start() { myThread = new Thread(this); myThread.start(); }
+
+	/** Wait for the loop to stop. */
+	public void join() throws Exception { myThread.join(); }
+
+	/** Hand a newly accepted connection to this loop.
+	 *  @param chan is the connection's socket channel
+	 */
+	public void add(SocketChannel chan) {
+		newConns.add(chan);
+		selector.wakeup();
+	}
+
+	/** Main thread for the loop.
+	 *
+	 *  Registers new connections, then serves every connection that is
+	 *  ready for reading or writing. A connection that fails is closed
+	 *  without affecting the others.
+	 */
+	public void run() {
+		while (true) {
+			try {
+				selector.select();
+				SocketChannel chan;
+				while ((chan = newConns.poll()) != null) {
+					chan.configureBlocking(false);
+					chan.register(selector, SelectionKey.OP_READ,
+						      new Conn());
+				}
+				Iterator<SelectionKey> it =
+					selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next(); it.remove();
+					try {
+						if (key.isReadable()) read(key);
+						else if (key.isWritable()) serve(key);
+					} catch (IOException e) {
+						close(key);
+					}
+				}
+			} catch (IOException e) {
+				System.err.println("SelectorLoop: exception " + e);
+			}
+		}
+	}
+
+	/** Read from a connection, then serve it.
+	 *  @param key is the connection's selection key
+	 */
+	private void read(SelectionKey key) throws IOException {
+		SocketChannel chan = (SocketChannel) key.channel();
+		Conn c = (Conn) key.attachment();
+		if (chan.read(c.in.buffer()) < 0) c.eof = true;
+		serve(key);
+	}
+
+	/** Handle requests and send replies until the connection has no
+	 *  complete request left or the socket accepts no more bytes.
+	 *  Reading is suspended while there are queued replies; once the
+	 *  client has closed its side and every reply is sent, the
+	 *  connection is closed.
+	 *  @param key is the connection's selection key
+	 */
+	private void serve(SelectionKey key) throws IOException {
+		SocketChannel chan = (SocketChannel) key.channel();
+		Conn c = (Conn) key.attachment();
+		while (true) {
+			boolean idle = false;
+			while (c.out.position() < MapHandler.CHUNK) {
+				if (c.scan != null) {
+					queue(c, handler.resume(c.scan));
+					if (c.scan.done()) c.scan = null;
+				} else if (c.in.next() || (c.eof && c.in.rest())) {
+					queue(c, handler.handle(c.in.array(),
+						c.in.off, c.in.len));
+					c.scan = handler.pending();
+				} else {
+					idle = true; break;
+				}
+			}
+			c.out.flip();
+			chan.write(c.out);
+			c.out.compact();
+			if (c.out.position() > 0) {
+				key.interestOps(SelectionKey.OP_WRITE);
+				return;
+			}
+			if (idle) {
+				if (c.eof) close(key);
+				else key.interestOps(SelectionKey.OP_READ);
+				return;
+			}
+		}
+	}
+
+	/** Queue a reply (or reply chunk) on the connection. */
+	private void queue(Conn c, ByteBuffer r) {
+		if (c.out.remaining() < r.position()) {
+			ByteBuffer bigger = ByteBuffer.allocate(Math.max(
+				2 * c.out.capacity(), c.out.position() + r.position()));
+			c.out.flip();
+			bigger.put(c.out);
+			c.out = bigger;
+		}
+		c.out.put(r.array(), 0, r.position());
+	}
+
+	/** Close a connection and forget its state. */
+	private void close(SelectionKey key) {
+		key.cancel();
+		try { key.channel().close(); } catch (IOException e) { }
+	}
+}
@@ -0,0 +1,45 @@
+import java.nio.*;
+import java.util.*;
+
+/** Storage for the key/value pairs of a map server.
+ *
+ *  Keys are looked up with a ByteKey, which may be a probe pointing into
+ *  a request buffer; a store keeps its own copy of any key it adds.
+ *  Values are passed in as spans of a buffer and copied out into a
+ *  buffer, so a store can keep them in whatever form it likes.
+ *  All methods may be called by several threads at once.
+ */
+public interface Store {
+	/** Look up a key and copy its value into a buffer.
+	 *  The value is only copied if it fits in dst.remaining(); in that
+	 *  case dst's position is advanced past it.
+	 *  @param key is the key to look up
+	 *  @param dst is the buffer the value is copied into
+	 *  @return the length of the value, or -1 if the key is not stored
+	 */
+	int get(ByteKey key, ByteBuffer dst);
+
+	/** Add a pair or change the value of a stored key.
+	 *  @param key is the key
+	 *  @param buf is a buffer containing the value
+	 *  @param off is the offset of the value in buf
+	 *  @param len is the length of the value
+	 *  @return true if the key had a value before
+	 */
+	boolean put(ByteKey key, byte[] buf, int off, int len);
+
+	/** Remove a key.
+	 *  @param key is the key to remove
+	 *  @return true if the key was stored
+	 */
+	boolean remove(ByteKey key);
+
+	/** Iterate over the stored pairs.
+	 *  The iterator is weakly consistent: it never fails because of
+	 *  concurrent changes, but may or may not reflect them.
+	 *  @param after is null to start at the first pair, or a key to
+	 *  start just after; stores without a key order only accept null
+	 *  @return an iterator over copies of the pairs
+	 */
+	Iterator<Map.Entry<ByteKey, byte[]>> scan(ByteKey after);
+}
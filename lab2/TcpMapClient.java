@@ -11,10 +11,14 @@
  the client program is listed as follows: the first argument is the name/IP
  address of the host that the server is running on; the second argument
  is the server's port number, which is optional and will use 30123 if not 
- sprcified. In the input line, the "get" instruction should be in the format
+ sprcified; the optional third argument is the number of requests the
+ client may have outstanding (1 by default, so that each request waits for
+ its reply; a larger value pipelines the input lines to the server, and
+ the replies are printed in order as they arrive). In the input line, the "get" instruction should be in the format
  of "get:key"; the "get all" instruction should just be "get all"; the "put" 
- instruction should be in the format of "put:key:value"; the "remove" 
- instruction should be in the format of "remove:key". Any other 
+ instruction should be in the format of "put:key:value" (or
+ "put:key:value:ttl" to give the pair a time to live in seconds); the
+ "remove" instruction should be in the format of "remove:key". Any other 
  instruction will be considered ill-formatted. When the server receives 
  an instruction, it will send back a feedback to the client.When the user 
  inputs a blank line, the connection will be closed. To start the server, the
@@ -25,12 +29,15 @@
 ****************************************************************************/
 import java.io.*;
 import java.net.*;
+import java.util.concurrent.*;
 
 public class TcpMapClient {
 	public static void main(String args[]) throws Exception {
 		// Connect to remote server
 		int port = 30123; // Default port number
 		if (args.length > 1) port = Integer.parseInt(args[1]); // Specified port number
+		int window = 1; // Default number of outstanding requests
+		if (args.length > 2) window = Integer.parseInt(args[2]);
 		Socket sock = new Socket(args[0], port); // Socket created
 		// Create buffered reader & writer for socket's in/out streams
 		BufferedReader  in = new BufferedReader(new InputStreamReader(
@@ -40,14 +47,36 @@ public class TcpMapClient {
 		// Create buffered reader for System.in
 		BufferedReader sysin = new BufferedReader(new InputStreamReader(
 						 System.in));
+		// One permit per request that may be outstanding; the printer
+		// thread returns a permit for every reply it prints
+		Semaphore permits = new Semaphore(window);
+		Thread printer = new Thread(() -> {
+			try {
+				String reply;
+				while ((reply = in.readLine()) != null) {
+					System.out.println(reply);
+					permits.release();
+				}
+			} catch (IOException e) { }
+		});
+		printer.start();
 		String line; // Input line
 		while (true) {
 			line = sysin.readLine(); // Read the line
 			if (line == null || line.length() == 0) break; // Blank line
-			// Write line on socket and print feedback to System.out
-			out.write(line); out.newLine(); out.flush();
-			System.out.println(in.readLine());
+			// Write line on socket, flushing when the window is full
+			// or no more input is waiting
+			if (!permits.tryAcquire()) {
+				out.flush();
+				permits.acquire();
+			}
+			out.write(line); out.newLine();
+			if (!sysin.ready()) out.flush();
 		}
+		out.flush();
+		// Wait for the outstanding replies
+		permits.acquire(window);
 		sock.close(); // Close connection
+		printer.join();
 	}
 }
@@ -0,0 +1,153 @@
+/** Load generator for the TcpMapServer.
+ *  usage: TcpMapLoad serverIp port numConns numThreads seconds [ numKeys ]
+ *
+ *  Opens numConns connections to the server up front, then uses numThreads
+ *  client threads to send '\n' terminated get and put requests (90% get) on
+ *  them for the given number of seconds. Each thread owns every numThreads-th
+ *  connection and cycles through them, waiting for each reply before it
+ *  uses the connection again, so every connection has at most one request
+ *  outstanding. A connection that cannot be opened, or whose reply does not
+ *  arrive, within one second is counted as stalled and dropped; this is
+ *  what happens to all but one connection when the server runs in serial
+ *  mode.
+ *
+ *  At the end the program prints the number of connections that completed
+ *  at least one request, the number that stalled, the request rate and
+ *  the 50th/99th percentile latency, which makes it easy to compare the
+ *  serving modes of TcpMapServer, for example
+ *	java TcpMapServer 127.0.0.1 30123 virtual
+ *	java TcpMapLoad 127.0.0.1 30123 10000 8 10
+ *
+ *  numKeys	is the number of distinct keys used; default 1000
+ */
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+public class TcpMapLoad {
+	public static void main(String[] args) throws Exception {
+		if (args.length < 5) {
+			System.out.println("usage: TcpMapLoad serverIp port " +
+				"numConns numThreads seconds [ numKeys ]");
+			System.exit(1);
+		}
+		InetAddress serverIp = InetAddress.getByName(args[0]);
+		int port = Integer.parseInt(args[1]);
+		int numConns = Integer.parseInt(args[2]);
+		int numThreads = Integer.parseInt(args[3]);
+		double seconds = Double.parseDouble(args[4]);
+		int numKeys = (args.length > 5 ? Integer.parseInt(args[5]) : 1000);
+
+		// open all connections before generating any load
+		AtomicInteger served = new AtomicInteger();
+		AtomicInteger stalled = new AtomicInteger();
+		Socket[] socks = new Socket[numConns];
+		for (int i = 0; i < numConns; i++) {
+			socks[i] = new Socket();
+			try {
+				socks[i].connect(new InetSocketAddress(serverIp, port),
+						 1000);
+			} catch (IOException e) {
+				socks[i] = null;
+				stalled.incrementAndGet();
+				continue;
+			}
+			socks[i].setSoTimeout(1000);
+			socks[i].setTcpNoDelay(true);
+		}
+
+		long deadline = System.nanoTime() + (long) (seconds * 1e9);
+		long[][] lat = new long[numThreads][];
+		int[] count = new int[numThreads];
+		Thread[] threads = new Thread[numThreads];
+		for (int t = 0; t < numThreads; t++) {
+			final int me = t;
+			threads[t] = new Thread(() -> {
+				lat[me] = new long[1 << 16];
+				run(socks, me, numThreads, numKeys, deadline,
+				    lat, count, served, stalled);
+			});
+			threads[t].start();
+		}
+		for (Thread t : threads) t.join();
+		for (Socket s : socks) if (s != null) s.close();
+
+		// merge the latency samples and report
+		int total = 0;
+		for (int c : count) total += c;
+		long[] all = new long[total];
+		int n = 0;
+		for (int t = 0; t < numThreads; t++) {
+			System.arraycopy(lat[t], 0, all, n, count[t]);
+			n += count[t];
+		}
+		Arrays.sort(all);
+		System.out.printf("conns %d served %d stalled %d\n", numConns,
+				  served.get(), stalled.get());
+		System.out.printf("requests %d rate %.0f/s\n", total,
+				  total / seconds);
+		if (total > 0) {
+			System.out.printf("latency p50 %.1f us p99 %.1f us\n",
+				all[total / 2] / 1e3,
+				all[Math.min(total - 1, (int) (total * 0.99))] / 1e3);
+		}
+	}
+
+	/** Body of one client thread.
+	 *  Cycles through the connections owned by thread me until the
+	 *  deadline, recording the latency of every completed request.
+	 */
+	static void run(Socket[] socks, int me, int numThreads, int numKeys,
+			long deadline, long[][] lat, int[] count,
+			AtomicInteger served, AtomicInteger stalled) {
+		Random r = new Random(me);
+		int mine = (socks.length - me + numThreads - 1) / numThreads;
+		InputStream[] in = new InputStream[mine];
+		OutputStream[] out = new OutputStream[mine];
+		boolean[] done = new boolean[mine]; // completed a request
+		int live = mine;
+		try {
+			for (int j = 0; j < mine; j++) {
+				Socket s = socks[me + j * numThreads];
+				if (s == null) { live--; continue; }
+				in[j] = s.getInputStream();
+				out[j] = s.getOutputStream();
+			}
+		} catch (IOException e) {
+			System.err.println("TcpMapLoad: " + e);
+			return;
+		}
+		byte[] buf = new byte[2000];
+		while (live > 0 && System.nanoTime() < deadline) {
+			for (int j = 0; j < mine; j++) {
+				if (out[j] == null) continue;
+				if (System.nanoTime() >= deadline) break;
+				int key = r.nextInt(numKeys);
+				String req = (r.nextInt(10) == 0 ?
+					"put:key" + key + ":value" + key :
+					"get:key" + key) + "\n";
+				long t0 = System.nanoTime();
+				try {
+					out[j].write(req.getBytes("US-ASCII"));
+					out[j].flush();
+					// read up to the end of the reply line
+					int n;
+					do {
+						n = in[j].read(buf);
+					} while (n > 0 && buf[n - 1] != '\n');
+					if (n < 0) throw new EOFException();
+				} catch (IOException e) {
+					out[j] = null; live--;
+					stalled.incrementAndGet();
+					continue;
+				}
+				if (count[me] == lat[me].length)
+					lat[me] = Arrays.copyOf(lat[me], 2 * count[me]);
+				lat[me][count[me]++] = System.nanoTime() - t0;
+				if (!done[j]) { done[j] = true; served.incrementAndGet(); }
+			}
+		}
+	}
+}
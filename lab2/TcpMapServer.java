@@ -14,102 +14,259 @@
  sprcified. In the input line, the "get" instruction should be in the format
  of "get:key"; the "get all" instruction should just be "get all"; the "put" 
  instruction should be in the format of "put:key:value"; the "remove" 
- instruction should be in the format of "remove:key". Any other 
- instruction will be considered ill-formatted. When the server receives 
- an instruction, it will send back a feedback to the client.When the user 
- inputs a blank line, the connection will be closed. To start the server, the
- first optional argument should be the IP address (wildcard address if not
- specified), and the second optional argument should be the port number.
- (30123 by default and if the port number is specified, IP address should also
- be specified)
+ instruction should be in the format of "remove:key"; the batch "mget" and
+ "mput" instructions should be in the format of "mget:key1:key2:..." and
+ "mput:key1:value1:key2:value2:..." and are answered with one result per
+ key, separated by "::". Any other instruction will be considered
+ ill-formatted. When the server receives an instruction, it will send back a
+ feedback to the client.When the user inputs a blank line, the connection
+ will be closed. To start the server, the first optional argument should be
+ the IP address (wildcard address if not specified), and the second optional
+ argument should be the port number. (30123 by default and if the port number
+ is specified, IP address should also be specified). The optional third
+ argument selects how connections are served: "serial" (the default) serves
+ one connection at a time as described above; "nio" serves all connections at
+ once from a few selector threads, whose number may be given as the fourth
+ argument (the number of cores by default). "threads" serves each connection
+ on its own platform thread and "virtual" on its own virtual thread (this
+ needs Java 21; older runtimes fall back to platform threads), using the same
+ blocking code as the serial mode. In every mode requests are terminated by
+ '\n', as TcpMapClient sends them, and a request may arrive in several pieces
+ or together with others. A client may pipeline many requests on a connection
+ without waiting; the replies come back in the order of the requests. The
+ reply to "get all" is streamed to the client in chunks. Large maps can also
+ be read page by page with "get all:cursor:limit", which returns at most
+ limit pairs with keys after cursor (an empty cursor starts at the first
+ key); the last key of a page is the cursor for the next page.
+ Options of the form name=value may follow all the other arguments. If
+ log=<dir> is given, the server keeps a write-ahead log and snapshots of
+ the map in that directory and rebuilds the map from them when it starts.
+ store=offheap keeps the pairs outside the Java heap in an OffHeapStore
+ instead of the default store=heap, a ConcurrentSkipListMap; the off-heap
+ store returns "get all" pairs in hash order rather than key order.
+ A put may give a time to live in seconds as "put:key:value:ttl"; the pair is
+ removed once it expires. The option maxmem=<bytes> (with an optional k, m or
+ g suffix) bounds the memory used by the pairs; when it is reached the least
+ recently used pairs, as approximated by the CLOCK algorithm, are evicted.
+ Expiries and evictions are logged as removes.
 ****************************************************************************/
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.*;
 public class TcpMapServer {
 	public static void main(String args[]) throws Exception {
+		// Take out the trailing options
+		String logDir = null, storeType = "heap";
+		long maxBytes = 0;
+		while (args.length > 0 && args[args.length - 1].contains("=")) {
+			String opt = args[args.length - 1];
+			if (opt.startsWith("log=")) logDir = opt.substring(4);
+			else if (opt.startsWith("store=")) storeType = opt.substring(6);
+			else if (opt.startsWith("maxmem=")) maxBytes = size(opt.substring(7));
+			else storeType = null; // unknown option
+			args = Arrays.copyOf(args, args.length - 1);
+		}
 		// Process arguments
 		int port = 30123; // Default port number
 		if (args.length > 1) port = Integer.parseInt(args[1]);
 		InetAddress bindAdr = null;
 		if (args.length > 0) bindAdr = InetAddress.getByName(args[0]);
+		String mode = "serial"; // Default serving mode
+		if (args.length > 2) mode = args[2];
+		int numThreads = Runtime.getRuntime().availableProcessors();
+		if (args.length > 3) numThreads = Integer.parseInt(args[3]);
+		// Create the store for the data; both stores keep an order in
+		// which "get all" can resume after a cursor key
+		Store base = null;
+		if ("heap".equals(storeType)) base = new HeapStore();
+		else if ("offheap".equals(storeType)) base = new OffHeapStore();
+		if (base == null || maxBytes < 0) mode = "usage";
+		// Add expiry and the memory limit
+		CacheStore store = new CacheStore(base, maxBytes);
+		// Rebuild the map from the log and keep logging
+		MapLog log = null;
+		if (base != null && logDir != null) {
+			log = new MapLog(new File(logDir), store);
+			store.setLog(log);
+			log.recover();
+			log.start();
+		}
+		if (base != null) store.start();
+		if (mode.equals("nio")) {
+			serveNio(bindAdr, port, numThreads, store, log);
+		} else if (mode.equals("serial")) {
+			serveSerial(bindAdr, port, store, log);
+		} else if (mode.equals("threads")) {
+			serveThreads(bindAdr, port, store, log,
+				     Executors.newCachedThreadPool());
+		} else if (mode.equals("virtual")) {
+			serveThreads(bindAdr, port, store, log, virtualThreads());
+		} else {
+			System.err.println("usage: TcpMapServer [ ip ] [ port ] " +
+				"[ serial | nio [ threads ] | threads | virtual ] " +
+				"[ log=dir ] [ store=heap|offheap ] [ maxmem=bytes ]");
+			System.exit(1);
+		}
+	}
+
+	/** Serve one connection at a time until the client closes it.
+	 *  @param bindAdr is the IP address to listen on (null for wildcard)
+	 *  @param port is the port number to listen on
+	 *  @param store is the store that holds the data
+	 *  @param log is the write-ahead log for the store (may be null)
+	 */
+	static void serveSerial(InetAddress bindAdr, int port,
+				CacheStore store,
+				MapLog log) throws Exception {
 		// Create and bind listening socket
 		ServerSocket listenSock = new ServerSocket(port,0,bindAdr);
-		// Stream buffer
-		byte[] buf = new byte[1000];
-		// Create HashMap to store the data
-		HashMap<String, String> map = new HashMap<>();
+		// Handler that applies requests to the map
+		MapHandler handler = new MapHandler(store, log);
 		while (true) {
 			// Wait for incoming connection request and
 			// Create new socket to handle it
 			Socket connSock = listenSock.accept();
-			// Create buffered versions of socket's in/out streams
-			BufferedInputStream in = new BufferedInputStream(
-						   connSock.getInputStream());
-			BufferedOutputStream out = new BufferedOutputStream(
-						   connSock.getOutputStream());
-			// Connect with one client
-			while (true) {
-				int nbytes = in.read(buf, 0, buf.length);
-				if (nbytes < 0) break; // -1: the end of the stream
-				// Turn the data into string
-				String dataString = new String(buf, 0, nbytes, "US-ASCII");
-				// Manipulate the data
-				dataString = dataString.trim();
-				String[] dataStrings = dataString.split(":");
-				// Return string
-				String returnString = "";
-				// get instruction
-				if("get".equals(dataStrings[0]) && 
-						dataStrings.length == 2) {
-					String value = map.get(dataStrings[1]);
-					if(value == null) {
-						returnString = "no match";
-					} else {
-						returnString = "ok:"+value;
-					}
-				}
-				// put instruction
-				else if("put".equals(dataStrings[0]) && 
-						dataStrings.length == 3) {
-					String previous = map.put(dataStrings[1], dataStrings[2]);
-					if(previous == null) {
-						returnString = "Ok";
-					} else {
-						returnString = "updated:"+dataStrings[1];
-					}
-				}
-				// remove instruction
-				else if("remove".equals(dataStrings[0]) &&
-						dataStrings.length == 2) {
-					String removed = map.remove(dataStrings[1]);
-					if(removed == null) {
-						returnString = "no match";
-					} else {
-						returnString = "Ok";
-					}
-				} 
-				// get all instruction
-				else if ("get all".equals(dataStrings[0]) &&
-						dataStrings.length == 1) {
-					Iterator<Map.Entry<String,String>> it =map.entrySet().iterator();
-					// Iterate all entries
-					if(it.hasNext()) {
-						Map.Entry<String,String> pair = it.next();
-						returnString+=(pair.getKey()+":"+pair.getValue());
-					}
-					while(it.hasNext()) {
-						Map.Entry<String,String> pair = it.next();
-						returnString+=("::"+pair.getKey()+":"+pair.getValue());
-					}
-				} else { // invalid instruction
-					returnString = "error:unrecognizable  input:"+dataString;
+			serveConn(connSock, handler);
+		}
+	}
+
+	/** Serve every connection on its own thread.
+	 *  @param bindAdr is the IP address to listen on (null for wildcard)
+	 *  @param port is the port number to listen on
+	 *  @param store is the store shared by all connections
+	 *  @param log is the write-ahead log for the store (may be null)
+	 *  @param pool is an executor that runs each task on a new thread
+	 */
+	static void serveThreads(InetAddress bindAdr, int port,
+				 CacheStore store,
+				 MapLog log, ExecutorService pool)
+				 throws Exception {
+		// Create and bind listening socket with a deep accept backlog
+		ServerSocket listenSock = new ServerSocket(port,4096,bindAdr);
+		while (true) {
+			Socket connSock = listenSock.accept();
+			pool.execute(() -> {
+				try {
+					serveConn(connSock, new MapHandler(store, log));
+				} catch (Exception e) {
+					System.err.println("TcpMapServer: " + e);
 				}
-				returnString+="\n"; // String terminates with '\n'
-				out.write(returnString.getBytes(),0,returnString.length());
-				out.flush(); // Flush the buffer
+			});
+		}
+	}
+
+	/** Create an executor that starts a virtual thread per task.
+	 *  The executor is looked up reflectively so that the server still
+	 *  builds and runs on runtimes without virtual threads.
+	 *  @return the executor; a cached pool of platform threads if the
+	 *  runtime has no virtual threads
+	 */
+	static ExecutorService virtualThreads() {
+		try {
+			return (ExecutorService) Executors.class.getMethod(
+				"newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (Exception e) {
+			System.err.println("TcpMapServer: no virtual threads, " +
+					   "using platform threads");
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+	/** Process operations from one client until it closes the connection.
+	 *  @param connSock is the connected socket
+	 *  @param handler applies the requests to the map
+	 */
+	static void serveConn(Socket connSock,
+			      MapHandler handler) throws Exception {
+		// The framer buffers the input stream; buffer the output stream
+		InputStream in = connSock.getInputStream();
+		BufferedOutputStream out = new BufferedOutputStream(
+					   connSock.getOutputStream());
+		LineFramer framer = new LineFramer();
+		// Connect with one client
+		while (true) {
+			ByteBuffer buf = framer.buffer();
+			int nbytes = in.read(buf.array(), buf.position(),
+					     buf.remaining());
+			if (nbytes < 0) break; // -1: the end of the stream
+			buf.position(buf.position() + nbytes);
+			// Handle every complete request in place
+			while (framer.next()) {
+				handler.handle(framer.array(), framer.off, framer.len);
+				send(handler, out);
 			}
-			connSock.close();
+			// Flush once all requests received so far are answered
+			if (in.available() == 0) out.flush();
+		}
+		// Answer an unterminated last request
+		if (framer.rest()) {
+			handler.handle(framer.array(), framer.off, framer.len);
+			send(handler, out);
+		}
+		out.flush();
+		connSock.close();
+	}
+
+	/** Write the reply of the last request handled to a stream.
+	 *  A "get all" reply is written chunk by chunk as it is produced.
+	 *  @param handler is the handler of the last request
+	 *  @param out is the connection's output stream
+	 */
+	static void send(MapHandler handler, OutputStream out) throws Exception {
+		ByteBuffer reply = handler.reply();
+		out.write(reply.array(), 0, reply.position());
+		MapHandler.Scan scan = handler.pending();
+		while (scan != null && !scan.done()) {
+			reply = handler.resume(scan);
+			out.write(reply.array(), 0, reply.position());
+		}
+	}
+
+	/** Serve many connections at once from a few selector threads.
+	 *  The calling thread accepts connections and hands them to the
+	 *  selector loops in turn.
+	 *  @param bindAdr is the IP address to listen on (null for wildcard)
+	 *  @param port is the port number to listen on
+	 *  @param numThreads is the number of selector loops
+	 *  @param store is the store shared by all loops
+	 *  @param log is the write-ahead log for the store (may be null)
+	 */
+	static void serveNio(InetAddress bindAdr, int port, int numThreads,
+			     CacheStore store,
+			     MapLog log) throws Exception {
+		SelectorLoop[] loops = new SelectorLoop[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			loops[i] = new SelectorLoop(store, log);
+			loops[i].start();
+		}
+		// Create and bind listening channel with a deep accept backlog
+		ServerSocketChannel listenChan = ServerSocketChannel.open();
+		listenChan.bind(new InetSocketAddress(bindAdr, port), 4096);
+		for (int next = 0; true; next = (next + 1) % numThreads) {
+			SocketChannel chan = listenChan.accept();
+			chan.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			loops[next].add(chan);
+		}
+	}
+
+	/** Parse a number of bytes with an optional k, m or g suffix.
+	 *  @return the number, or -1 if it is not valid
+	 */
+	static long size(String s) {
+		long unit = 1;
+		char c = s.isEmpty() ? ' ' : Character.toLowerCase(
+						s.charAt(s.length() - 1));
+		if (c == 'k') unit = 1L << 10;
+		else if (c == 'm') unit = 1L << 20;
+		else if (c == 'g') unit = 1L << 30;
+		if (unit > 1) s = s.substring(0, s.length() - 1);
+		try {
+			return Long.parseLong(s) * unit;
+		} catch (NumberFormatException e) {
+			return -1;
 		}
 	}
 }
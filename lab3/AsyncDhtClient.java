@@ -0,0 +1,202 @@
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** Client library for the DHT that keeps many requests in flight.
+ *
+ *  All requests go out on one UDP socket, each with a tag of its own,
+ *  and a receiver thread matches every reply to its request by tag and
+ *  completes the request's future. A request that gets no reply within
+ *  the timeout is sent again, with the same tag, up to the given number
+ *  of retries; after that its future fails with a TimeoutException. Any
+ *  number of requests may be outstanding at once, so callers that want
+ *  to limit the load on the DHT bound it themselves.
+ *
+ *  The client negotiates the packet format with each server the way the
+ *  servers do among themselves: it sends text packets with the wire
+ *  field set until a server answers in binary, and binary packets to
+ *  that server from then on.
+ */
+public class AsyncDhtClient {
+	private DatagramSocket sock;
+	private int timeoutMs;		// time to wait for a reply
+	private int retries;		// times a request is sent again
+	private boolean binaryOn;	// false to stick to the text format
+
+	private ConcurrentHashMap<Integer, Request> pending; // by tag
+	private AtomicInteger nextTag;
+	private ScheduledThreadPoolExecutor timer; // fires the timeouts
+	private Set<InetSocketAddress> binaryPeers; // servers reading binary
+	private AtomicLong retransmits;	// requests sent again
+	private Thread receiver;
+
+	/** State of an outstanding request. */
+	private class Request implements Runnable {
+		Packet p;		// the request
+		InetSocketAddress server; // where it is sent
+		CompletableFuture<Packet> result;
+		int triesLeft;		// retransmits left
+		ScheduledFuture<?> timeout; // pending timeout, if any
+
+		/** Handle a timeout: send the request again or give up. */
+		public void run() {
+			if (pending.get(p.tag) != this) return; // answered
+			if (triesLeft-- > 0) {
+				retransmits.incrementAndGet();
+				send(this);
+			} else if (pending.remove(p.tag, this)) {
+				result.completeExceptionally(new TimeoutException(
+					p.type + " " + p.key + " timed out"));
+			}
+		}
+	}
+
+	/** Initialize a new AsyncDhtClient object and start its receiver.
+	 *  @param myIp is the IP address to bind the client's socket to
+	 *  @param timeoutMs is the number of ms to wait for each reply
+	 *  @param retries is the number of times a request is sent again
+	 *  @param binaryOn is true to use the binary format with servers
+	 *  that read it, false to send only text packets
+	 */
+	public AsyncDhtClient(InetAddress myIp, int timeoutMs, int retries,
+			      boolean binaryOn) throws SocketException {
+		sock = new DatagramSocket(0, myIp);
+		sock.setReceiveBufferSize(4 << 20);
+		this.timeoutMs = timeoutMs;
+		this.retries = retries;
+		this.binaryOn = binaryOn;
+		pending = new ConcurrentHashMap<Integer, Request>();
+		nextTag = new AtomicInteger(new Random().nextInt(100000));
+		timer = new ScheduledThreadPoolExecutor(1, r -> {
+			Thread t = new Thread(r, "AsyncDhtClient timer");
+			t.setDaemon(true);
+			return t;
+		});
+		timer.setRemoveOnCancelPolicy(true);
+		binaryPeers = ConcurrentHashMap.newKeySet();
+		retransmits = new AtomicLong();
+		receiver = new Thread(this::receive, "AsyncDhtClient receiver");
+		receiver.setDaemon(true);
+		receiver.start();
+	}
+
+	/** Get the value of a key.
+	 *  @param server is the socket address of a DhtServer
+	 *  @param key is the key
+	 *  @return a future for the reply
+	 */
+	public CompletableFuture<Packet> get(InetSocketAddress server,
+					     String key) {
+		Packet p = new Packet();
+		p.type = "get";
+		p.key = key;
+		return request(server, p);
+	}
+
+	/** Put a pair, or remove a key.
+	 *  @param server is the socket address of a DhtServer
+	 *  @param key is the key
+	 *  @param val is the value, or null to remove the key
+	 *  @return a future for the reply
+	 */
+	public CompletableFuture<Packet> put(InetSocketAddress server,
+					     String key, String val) {
+		Packet p = new Packet();
+		p.type = "put";
+		p.key = key;
+		p.val = val;
+		return request(server, p);
+	}
+
+	/** Send a request packet; its tag is set by the client.
+	 *  @param server is the socket address of a DhtServer
+	 *  @param p is the request
+	 *  @return a future for the reply, which fails with a
+	 *  TimeoutException if no reply arrives
+	 */
+	public CompletableFuture<Packet> request(InetSocketAddress server,
+						 Packet p) {
+		Request r = new Request();
+		r.p = p;
+		r.server = server;
+		r.result = new CompletableFuture<Packet>();
+		r.triesLeft = retries;
+		do {
+			p.tag = nextTag.getAndIncrement() & Integer.MAX_VALUE;
+		} while (pending.putIfAbsent(p.tag, r) != null);
+		send(r);
+		return r.result;
+	}
+
+	/** Get the number of requests that have been sent again. */
+	public long retransmits() { return retransmits.get(); }
+
+	/** Get the number of requests still waiting for a reply. */
+	public int outstanding() { return pending.size(); }
+
+	/** Close the socket; requests still outstanding are failed. */
+	public void close() {
+		sock.close();
+		timer.shutdownNow();
+		for (Request r : pending.values()) {
+			if (pending.remove(r.p.tag, r))
+				r.result.completeExceptionally(
+					new SocketException("client closed"));
+		}
+	}
+
+	/** Send or resend a request and set its timeout. */
+	private void send(Request r) {
+		Packet p = r.p;
+		synchronized (p) {
+			p.binary = binaryOn && binaryPeers.contains(r.server);
+			p.wire = (binaryOn && !p.binary ? Packet.WIRE_VERSION : -1);
+			byte[] buf = p.pack();
+			if (buf == null) {
+				if (pending.remove(p.tag, r))
+					r.result.completeExceptionally(
+						new IllegalArgumentException(
+							"request too long"));
+				return;
+			}
+			try {
+				sock.send(new DatagramPacket(buf, buf.length, r.server));
+			} catch (Exception e) {
+				// lost like any datagram; the timeout resends it
+			}
+			if (!timer.isShutdown())
+				r.timeout = timer.schedule(r, timeoutMs,
+							   TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/** Receive replies and complete the requests they answer. */
+	private void receive() {
+		byte[] buf = new byte[2000];
+		DatagramPacket pkt = new DatagramPacket(buf, buf.length);
+		while (!sock.isClosed()) {
+			try {
+				sock.receive(pkt);
+			} catch (Exception e) {
+				continue; // closed, or a stray error
+			}
+			Packet reply = new Packet();
+			if (!reply.unpack(buf, pkt.getLength())) continue;
+			InetSocketAddress from =
+				(InetSocketAddress) pkt.getSocketAddress();
+			if (binaryOn) {
+				if (reply.binary || reply.wire >= Packet.WIRE_VERSION)
+					binaryPeers.add(from);
+				else
+					binaryPeers.remove(from);
+			}
+			Request r = pending.remove(reply.tag);
+			if (r == null) continue; // late reply to a resent request
+			synchronized (r.p) {
+				if (r.timeout != null) r.timeout.cancel(false);
+			}
+			r.result.complete(reply);
+		}
+	}
+}
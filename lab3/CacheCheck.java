@@ -0,0 +1,101 @@
+/*
+ * CacheCheck.java
+ * Checks the RelayCache. It checks that a pair is served until its lease
+ * runs out and not after, that refreshDue says a refresh is due after
+ * three quarters of a lease and again every eighth of a lease until the
+ * pair is put again, that a pair without a lease is not cached, that
+ * remove and clear empty the cache, and that the cache never holds more
+ * pairs than its capacity. For admission, it fills a cache with hot keys
+ * and then sends it a scan of keys that are each asked for once, while
+ * the hot keys are still asked for, one for every four keys of the scan
+ * (so an LRU cache would lose them all); the hot keys must stay cached,
+ * and a one-shot key must not replace a hot key unless the hot key's
+ * lease has run out. The optional arguments are the capacity (default
+ * 1024) and the number of keys in the scan (default 200000). A check
+ * that fails throws an AssertionError, which exits with status 1.
+ */
+public class CacheCheck {
+
+	public static void main(String args[]) throws Exception {
+		int capacity = (args.length > 0 ? Integer.parseInt(args[0]) : 1024);
+		int scanKeys = (args.length > 1 ? Integer.parseInt(args[1]) : 200000);
+
+		// leases
+		RelayCache c = new RelayCache(capacity);
+		if (c.put("k", "v", 0, 0) || c.put("k", "v", 0, -5) ||
+		    c.get("k", 0) != null)
+			throw new AssertionError("pair without a lease cached");
+		if (!c.put("k", "v", 1000, 1000) || !"v".equals(c.get("k", 1999)))
+			throw new AssertionError("pair not served in its lease");
+		if (c.get("k", 2000) != null || c.size() != 0)
+			throw new AssertionError("pair kept after its lease");
+
+		// refreshes
+		c.put("k", "v", 1000, 1000);
+		if (c.refreshDue("k", 1749) || !c.refreshDue("k", 1750))
+			throw new AssertionError("refresh not due at 3/4 of lease");
+		if (c.refreshDue("k", 1800) || c.refreshDue("x", 1800))
+			throw new AssertionError("refresh due twice or for no pair");
+		c.put("k", "w", 1800, 1000);
+		if (!"w".equals(c.get("k", 1900)) || c.refreshDue("k", 2549) ||
+		    !c.refreshDue("k", 2550))
+			throw new AssertionError("renewed lease not served or refreshed");
+		if (c.refreshDue("k", 2674) || !c.refreshDue("k", 2675))
+			throw new AssertionError("lost refresh not retried");
+
+		// remove and clear
+		c.put("a", "1", 0, 1000000);
+		c.remove("k");
+		if (c.get("k", 3000) != null || c.size() != 1)
+			throw new AssertionError("remove failed");
+		c.remove("k");
+		c.clear();
+		if (c.get("a", 3000) != null || c.size() != 0)
+			throw new AssertionError("clear failed");
+
+		// admission, with one pair
+		RelayCache one = new RelayCache(1);
+		for (int i = 0; i < 5; i++) one.get("hot", 0);
+		one.put("hot", "h", 0, 1000);
+		one.get("cold", 0);
+		if (one.put("cold", "c", 0, 1000) || !"h".equals(one.get("hot", 0)))
+			throw new AssertionError("one-shot key replaced a hot key");
+		if (!one.put("cold", "c", 1000, 1000) ||
+		    !"c".equals(one.get("cold", 1000)) || one.size() != 1)
+			throw new AssertionError("expired key not replaced");
+
+		// admission, hot keys against a scan
+		int numHot = capacity / 2;
+		for (int round = 0; round < 10; round++) {
+			for (int i = 0; i < numHot; i++) {
+				String key = "hot" + i;
+				if (c.get(key, 0) == null) c.put(key, "h", 0, 1000000);
+			}
+		}
+		int maxSize = 0, hotMisses = 0;
+		for (int i = 0; i < scanKeys; i++) {
+			String key = "scan" + i;
+			if (c.get(key, 0) == null) c.put(key, "s", 0, 1000000);
+			maxSize = Math.max(maxSize, c.size());
+			if (i % 4 != 3) continue;
+			key = "hot" + i / 4 % numHot;
+			if (c.get(key, 0) == null) {
+				hotMisses++;
+				c.put(key, "h", 0, 1000000);
+			}
+		}
+		int hotCached = 0;
+		for (int i = 0; i < numHot; i++)
+			if (c.get("hot" + i, 0) != null) hotCached++;
+		System.out.printf("scan of %d keys: %d of %d hot keys cached, " +
+			"%d hot misses, max size %d\n", scanKeys, hotCached,
+			numHot, hotMisses, maxSize);
+		System.out.println(c.stats());
+		if (maxSize > capacity)
+			throw new AssertionError("size " + maxSize + " over capacity");
+		if (hotCached < numHot * 9 / 10)
+			throw new AssertionError("only " + hotCached + " of " +
+				numHot + " hot keys survived the scan");
+		System.out.println("ok");
+	}
+}
@@ -0,0 +1,135 @@
+import java.net.*;
+import java.util.*;
+
+/** The gets that a DhtServer relay has in flight, for coalescing them.
+ *
+ *  A relay has at most one get in flight for each key: a get from a
+ *  client for a key that the relay forwarded a get for less than
+ *  INFLIGHT_MS ms ago, and has not had answered yet, is not forwarded;
+ *  the client waits for the answer to the get in flight instead, which
+ *  the relay passes on to every client that waited, each with its own
+ *  tag. So when many clients ask a relay for a hot key at once, its owner
+ *  gets one get from the relay rather than one from every client. A get
+ *  that has been in flight for longer is presumed lost, and the next get
+ *  for the key is forwarded in its place, for all the clients waiting.
+ *
+ *  A put that the relay forwards closes the key's get in flight: its
+ *  answer still goes to the clients that waited for it, but gets for the
+ *  key that come after the put are forwarded, so none of them is answered
+ *  with the value from before the put.
+ */
+public class Coalescer {
+	private static final long INFLIGHT_MS = 250; // max time a get is
+						     // waited for
+	private static final int INFLIGHT_MAX = 4096; // gets in flight kept
+
+	private HashMap<String, InFlight> inFlight; // gets forwarded for
+						    // clients, by key
+	private long coalesced;		// gets answered with another's answer
+
+	/**
+	 * A get that a relay has forwarded for a client and that has not been
+	 * answered yet, and the other clients that wait for its answer.
+	 */
+	private static class InFlight {
+		InetSocketAddress client; // client the get was forwarded for
+		int tag;		// tag of that get
+		long since;		// time it was forwarded, in ms
+		boolean closed;		// true once a put for the key is forwarded
+		// other clients and the tags of their gets
+		List<Pair<InetSocketAddress, Integer>> waiters =
+			new ArrayList<Pair<InetSocketAddress, Integer>>();
+	}
+
+	/** Initialize a new Coalescer object with no gets in flight. */
+	public Coalescer() {
+		inFlight = new HashMap<String, InFlight>();
+	}
+
+	/**
+	 * Note a get from a client that is about to be forwarded, unless a
+	 * get for the same key is in flight already, in which case the client
+	 * is added to the ones that wait for its answer. A get that has been
+	 * in flight for INFLIGHT_MS ms is presumed lost: the new get is
+	 * forwarded in its place, and the clients that waited for it wait for
+	 * the new one. A get in flight that was closed by a put is not waited
+	 * for (see close). Gets whose answers were lost are dropped once
+	 * INFLIGHT_MAX keys have gets in flight.
+	 *
+	 * @param key    is the key of the get
+	 * @param client is the socket address of the client
+	 * @param tag    is the tag of the get
+	 * @return true if the client waits for a get in flight, false if
+	 *         its get must be forwarded
+	 */
+	public synchronized boolean coalesce(String key, InetSocketAddress client,
+					     int tag) {
+		long now = System.currentTimeMillis();
+		Pair<InetSocketAddress, Integer> w =
+			new Pair<InetSocketAddress, Integer>(client, tag);
+		InFlight f = inFlight.get(key);
+		if (f != null && f.closed && now - f.since < INFLIGHT_MS)
+			return false;
+		if (f != null && now - f.since < INFLIGHT_MS) {
+			if ((f.tag != tag || !f.client.equals(client)) &&
+			    !f.waiters.contains(w))
+				f.waiters.add(w);
+			return true;
+		}
+		if (f == null) {
+			if (inFlight.size() >= INFLIGHT_MAX)
+				inFlight.values().removeIf(
+					g -> now - g.since >= INFLIGHT_MS);
+			f = new InFlight();
+			inFlight.put(key, f);
+		} else if (f.tag != tag || !f.client.equals(client)) {
+			f.waiters.add(new Pair<InetSocketAddress, Integer>(
+				f.client, f.tag));
+			f.waiters.remove(w);
+		}
+		f.client = client;
+		f.tag = tag;
+		f.since = now;
+		f.closed = false;
+		return false;
+	}
+
+	/**
+	 * Close the get in flight for a key, if any, as a put for the key is
+	 * forwarded. Its answer may hold the value from before the put, so
+	 * it goes only to the clients that wait for it already; gets for the
+	 * key are forwarded until it is answered or presumed lost.
+	 *
+	 * @param key is the key of the put
+	 */
+	public synchronized void close(String key) {
+		InFlight f = inFlight.get(key);
+		if (f != null) f.closed = true;
+	}
+
+	/**
+	 * Take the clients that wait for the answer to a get in flight, once
+	 * that answer has arrived; the get is then no longer in flight.
+	 *
+	 * @param key    is the key of the answer
+	 * @param tag    is the tag of the answer
+	 * @param client is the socket address of the client that the get
+	 *               was forwarded for
+	 * @return the other clients and the tags of their gets, or null if
+	 *         the answer is not for the get in flight
+	 */
+	public synchronized List<Pair<InetSocketAddress, Integer>> answered(
+			String key, int tag, InetSocketAddress client) {
+		InFlight f = inFlight.get(key);
+		if (f == null || f.tag != tag || !f.client.equals(client))
+			return null;
+		inFlight.remove(key);
+		coalesced += f.waiters.size();
+		return f.waiters;
+	}
+
+	/** Get the number of gets answered with the answer to another get. */
+	public synchronized long coalesced() {
+		return coalesced;
+	}
+}
@@ -0,0 +1,104 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/*
+ * DhtBalance.java
+ * Reports how evenly the DhtServers share the keys. The first argument
+ * is the IP address of the socket the program binds to, the second is
+ * the number of keys to use and the remaining arguments are the
+ * configuration files of the DhtServers. It puts every key through a
+ * randomly chosen server, then asks every server for its stats and
+ * prints, for each server, the number of pairs it stores, its number of
+ * virtual nodes and the share of the hash space it owns. The summary
+ * line gives the largest number of pairs and the largest share divided
+ * by their means; 1.00 means the load is perfectly even.
+ */
+public class DhtBalance {
+
+	public static void main(String args[]) throws Exception {
+		if (args.length < 3) {
+			System.err.println("usage: DhtBalance myIp numKeys " +
+					   "cfgFile ...");
+			System.exit(1);
+		}
+		InetAddress myIp = InetAddress.getByName(args[0]);
+		int numKeys = Integer.parseInt(args[1]);
+		InetSocketAddress[] servers = new InetSocketAddress[args.length - 2];
+		for (int i = 2; i < args.length; i++) {
+			BufferedReader serv = new BufferedReader(
+					new InputStreamReader(
+					new FileInputStream(args[i]), "US-ASCII"));
+			String[] chunks = serv.readLine().split(" ");
+			serv.close();
+			servers[i - 2] = new InetSocketAddress(
+					chunks[0], Integer.parseInt(chunks[1]));
+		}
+		DatagramSocket sock = new DatagramSocket(0, myIp);
+		sock.setSoTimeout(2000);
+		Random r = new Random(1);
+
+		// put every key
+		int lost = 0;
+		for (int i = 0; i < numKeys; i++) {
+			if (request(sock, servers[r.nextInt(servers.length)],
+				    "put", "key" + i, "value" + i, i) == null)
+				lost++;
+		}
+		// collect the stats of every server
+		long[] pairs = new long[servers.length];
+		double[] share = new double[servers.length];
+		long totalPairs = 0;
+		double totalShare = 0;
+		for (int i = 0; i < servers.length; i++) {
+			Packet reply = request(sock, servers[i], "stats", null, null,
+					       numKeys + i);
+			if (reply == null || reply.val == null) {
+				System.out.println(args[i + 2] + ": no stats");
+				continue;
+			}
+			String vnodes = "?";
+			for (String field : reply.val.split(" ")) {
+				if (field.startsWith("pairs="))
+					pairs[i] = Long.parseLong(field.substring(6));
+				else if (field.startsWith("vnodes="))
+					vnodes = field.substring(7);
+				else if (field.startsWith("share="))
+					share[i] = Double.parseDouble(field.substring(6));
+			}
+			totalPairs += pairs[i];
+			totalShare += share[i];
+			System.out.printf("%-12s %7d pairs  %3s vnodes  share %.4f\n",
+				args[i + 2], pairs[i], vnodes, share[i]);
+		}
+		long maxPairs = 0;
+		double maxShare = 0;
+		for (int i = 0; i < servers.length; i++) {
+			maxPairs = Math.max(maxPairs, pairs[i]);
+			maxShare = Math.max(maxShare, share[i]);
+		}
+		int n = servers.length;
+		System.out.printf("%d servers, %d pairs: max/mean pairs %.2f, " +
+			"max/mean share %.2f (%d lost)\n", n, totalPairs,
+			totalPairs == 0 ? 0.0 : (double) maxPairs * n / totalPairs,
+			totalShare == 0 ? 0.0 : maxShare * n / totalShare, lost);
+	}
+
+	/** Send a request and wait for the reply with the same tag.
+	 *  @return the reply, or null if none arrived in time
+	 */
+	static Packet request(DatagramSocket sock, InetSocketAddress server,
+			      String type, String key, String val, int tag) {
+		Packet p = new Packet();
+		p.type = type;
+		p.key = key;
+		p.val = val;
+		p.tag = tag;
+		p.send(sock, server, false);
+		Packet reply = new Packet();
+		while (true) {
+			if (reply.receive(sock, false) == null) return null;
+			if (reply.tag == tag) return reply;
+		}
+	}
+}
@@ -2,6 +2,9 @@ import java.io.BufferedReader;
 import java.net.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
 /*
  * DhtClient.java
  * This is the DhtClient. This program will take from 4 or 5
@@ -10,15 +13,43 @@ import java.util.*;
  * name of a configuration file containing the IP address and
  * port number of one of the DhtServers. The third is an
  * operation like "get" or "put" and the remaining arguments
- * specify the key and/or value for the operation.
+ * specify the key and/or value for the operation. The operation
+ * "stats", which takes no key, asks the server for its counters.
+ *
+ * The operation "load" instead runs a load test using an
+ * AsyncDhtClient; its second argument may then name several
+ * configuration files, separated by commas, and each request goes
+ * to one of those servers at random:
+ *
+ *   DhtClient myIp cfgFile[,cfgFile...] load [ name=value ... ]
+ *
+ * It first puts every key once, then sends ops requests, keeping
+ * window of them outstanding, and reports the throughput, the
+ * latency percentiles of the answered requests and how the
+ * requests ended. The options are
+ *
+ *   ops=n	number of requests (default 100000)
+ *   window=n	requests outstanding at once (default 1000)
+ *   keys=n	number of distinct keys (default 10000)
+ *   get=pct	percentage of gets; the rest are puts (default 90)
+ *   dist=d	key distribution, "uniform" or "zipf:s" for a Zipf
+ *		distribution with exponent s (default uniform)
+ *   value=n	length of the values put (default 16)
+ *   timeout=ms	time to wait for a reply (default 500)
+ *   retries=n	times a request is sent again (default 3)
+ *   text	send only text packets
  */
 public class DhtClient {
 	
 	public static void main(String args[]) throws Exception {
+		if (args.length >= 3 && args[2].equals("load")) {
+			load(args);
+			return;
+		}
 		// Check the argument number
-		if (args.length != 4 && args.length != 5) {
+		if (args.length < 3 || args.length > 5) {
 			System.err.println("usage: DhtClient myIp " +
-					   "serverFile put/get [ key ] [ value ] ");
+					   "serverFile put/get/stats [ key ] [ value ] ");
 			System.exit(1);
 		}
 		InetAddress myIp = null;
@@ -40,23 +71,27 @@ public class DhtClient {
 					chunks[0],Integer.parseInt(chunks[1]));
 		} catch(Exception e) {
 			System.err.println("usage: DhtClient myIp " +
-					   "cfgFile put/get [ key ] [ value ] ");
+					   "cfgFile put/get/stats [ key ] [ value ] ");
 			System.exit(1);
 		}
 		// Construct the packet
 		Packet request = new Packet();
 		if(args[2].equals("get")) {
 			request.type = "get";
+		}else if(args[2].equals("stats")) {
+			request.type = "stats";
 		}else if(args[2].equals("put")) {
 			request.type = "put";
 			if(args.length == 5)
 				request.val = args[4];
-		}else {
+		}
+		if(request.type == null || (args.length == 3) != request.type.equals("stats")) {
 			System.err.println("usage: DhtClient myIp " +
-					   "cfgFile put/get [ key ] [ value ] ");
+					   "cfgFile put/get/stats [ key ] [ value ] ");
 			System.exit(1);
 		}
-		request.key = args[3];
+		if(args.length > 3)
+			request.key = args[3];
 		request.tag = new Random().nextInt(100000);
 		// Send the request
 		request.send(sock,server,true);
@@ -68,4 +103,160 @@ public class DhtClient {
 		}
 		return;
 	}
-}
\ No newline at end of file
+
+	/** Run the load mode; see the comment at the top. */
+	static void load(String args[]) throws Exception {
+		int ops = 100000, window = 1000, keys = 10000, getPct = 90;
+		int valueLen = 16, timeout = 500, retries = 3;
+		double zipf = 0;
+		boolean binary = true;
+		InetAddress myIp = null;
+		ArrayList<InetSocketAddress> servers =
+			new ArrayList<InetSocketAddress>();
+		try {
+			myIp = InetAddress.getByName(args[0]);
+			for (String cfg : args[1].split(",")) {
+				BufferedReader serv = new BufferedReader(
+					new InputStreamReader(
+					new FileInputStream(cfg), "US-ASCII"));
+				String[] chunks = serv.readLine().split(" ");
+				serv.close();
+				servers.add(new InetSocketAddress(
+					chunks[0], Integer.parseInt(chunks[1])));
+			}
+			for (int i = 3; i < args.length; i++) {
+				String[] nv = args[i].split("=", 2);
+				if (nv[0].equals("text") && nv.length == 1)
+					binary = false;
+				else if (nv.length != 2)
+					throw new IllegalArgumentException(args[i]);
+				else if (nv[0].equals("ops"))
+					ops = Integer.parseInt(nv[1]);
+				else if (nv[0].equals("window"))
+					window = Integer.parseInt(nv[1]);
+				else if (nv[0].equals("keys"))
+					keys = Integer.parseInt(nv[1]);
+				else if (nv[0].equals("get"))
+					getPct = Integer.parseInt(nv[1]);
+				else if (nv[0].equals("value"))
+					valueLen = Integer.parseInt(nv[1]);
+				else if (nv[0].equals("timeout"))
+					timeout = Integer.parseInt(nv[1]);
+				else if (nv[0].equals("retries"))
+					retries = Integer.parseInt(nv[1]);
+				else if (nv[0].equals("dist") && nv[1].equals("uniform"))
+					zipf = 0;
+				else if (nv[0].equals("dist") && nv[1].startsWith("zipf:"))
+					zipf = Double.parseDouble(nv[1].substring(5));
+				else
+					throw new IllegalArgumentException(args[i]);
+			}
+			if (ops <= 0 || window <= 0 || keys <= 0 || getPct < 0 ||
+			    getPct > 100 || valueLen < 0 || timeout <= 0 ||
+			    retries < 0 || zipf < 0)
+				throw new IllegalArgumentException();
+		} catch (Exception e) {
+			System.err.println("usage: DhtClient myIp " +
+				"cfgFile[,cfgFile...] load [ ops=n ] [ window=n ] " +
+				"[ keys=n ] [ get=pct ] [ dist=uniform|zipf:s ] " +
+				"[ value=n ] [ timeout=ms ] [ retries=n ] [ text ]");
+			System.exit(1);
+		}
+
+		// cumulative distribution of the keys, for zipf
+		double[] cdf = null;
+		if (zipf > 0) {
+			cdf = new double[keys];
+			double sum = 0;
+			for (int i = 0; i < keys; i++) {
+				sum += 1 / Math.pow(i + 1, zipf);
+				cdf[i] = sum;
+			}
+			for (int i = 0; i < keys; i++) cdf[i] /= sum;
+		}
+		char[] vc = new char[valueLen];
+		Arrays.fill(vc, 'v');
+		String value = new String(vc);
+
+		AsyncDhtClient client = new AsyncDhtClient(myIp, timeout,
+							   retries, binary);
+		Random r = new Random(1);
+		// put every key once, so gets find them
+		runPhase("preload", client, keys, window, i -> client.put(
+			servers.get(r.nextInt(servers.size())), "key" + i, value));
+		final double[] keyCdf = cdf;
+		final int numKeys = keys, gets = getPct;
+		runPhase("load", client, ops, window, i -> {
+			int k;
+			if (keyCdf == null) {
+				k = r.nextInt(numKeys);
+			} else {
+				k = Arrays.binarySearch(keyCdf, r.nextDouble());
+				if (k < 0) k = Math.min(-k - 1, keyCdf.length - 1);
+			}
+			InetSocketAddress server =
+				servers.get(r.nextInt(servers.size()));
+			if (r.nextInt(100) < gets)
+				return client.get(server, "key" + k);
+			else
+				return client.put(server, "key" + k, value);
+		});
+		client.close();
+	}
+
+	/** Send n requests, keeping up to window of them outstanding, and
+	 *  report the throughput, latencies and outcomes.
+	 *  @param name is the name of the phase in the report
+	 *  @param client is the client that sends the requests
+	 *  @param n is the number of requests
+	 *  @param window is the number of requests outstanding at once
+	 *  @param op sends request i and returns its future
+	 */
+	static void runPhase(String name, AsyncDhtClient client, int n,
+			     int window, IntFunction<CompletableFuture<Packet>> op)
+			     throws InterruptedException {
+		long[] lat = new long[n];	// ns per answered request
+		AtomicInteger answered = new AtomicInteger();
+		LongAdder success = new LongAdder(), noMatch = new LongAdder();
+		LongAdder failure = new LongAdder(), timedOut = new LongAdder();
+		long retransmits = client.retransmits();
+		Semaphore slots = new Semaphore(window);
+		long start = System.nanoTime();
+		for (int i = 0; i < n; i++) {
+			slots.acquire();
+			long t = System.nanoTime();
+			op.apply(i).whenComplete((reply, e) -> {
+				if (reply == null) {
+					timedOut.increment();
+				} else {
+					lat[answered.getAndIncrement()] =
+						System.nanoTime() - t;
+					if (reply.type.equals("success"))
+						success.increment();
+					else if (reply.type.equals("no match"))
+						noMatch.increment();
+					else
+						failure.increment();
+				}
+				slots.release();
+			});
+		}
+		slots.acquire(window); // wait for the last requests
+		slots.release(window);
+		double secs = (System.nanoTime() - start) / 1e9;
+		int m = answered.get();
+		Arrays.sort(lat, 0, m);
+		System.out.printf("%s: %d requests in %.2f s, %.0f requests/s\n",
+				  name, n, secs, n / secs);
+		if (m > 0) {
+			System.out.printf("%s: latency us p50 %d  p90 %d  p99 %d  " +
+				"p99.9 %d  max %d\n", name, lat[m / 2] / 1000,
+				lat[(int) (m * 0.9)] / 1000, lat[(int) (m * 0.99)] / 1000,
+				lat[(int) (m * 0.999)] / 1000, lat[m - 1] / 1000);
+		}
+		System.out.printf("%s: %d success, %d no match, %d failure, " +
+			"%d timed out, %d retransmits\n", name, success.sum(),
+			noMatch.sum(), failure.sum(), timedOut.sum(),
+			client.retransmits() - retransmits);
+	}
+}
@@ -0,0 +1,98 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/*
+ * DhtHops.java
+ * Measures how many hops DHT lookups take. The first argument is the
+ * IP address of the socket the program binds to, the second is the
+ * number of keys to use and the remaining arguments are the
+ * configuration files of the DhtServers. It puts every key through a
+ * randomly chosen server, then gets every key through another random
+ * server, and reports the number of hops per get.
+ *
+ * The hops are read off the ttl of the reply, which every receiver
+ * decrements: a get answered by the first server costs 2 (that server
+ * and the client), and a get forwarded h times costs h+3 (the servers
+ * on the way, the relay that passes the reply back and the client), or
+ * h+2 if the reply comes straight from the server that answered it, as
+ * in the servers' direct mode.
+ */
+public class DhtHops {
+	static InetSocketAddress from; // sender of the last reply
+
+	public static void main(String args[]) throws Exception {
+		if (args.length < 3) {
+			System.err.println("usage: DhtHops myIp numKeys " +
+					   "cfgFile ...");
+			System.exit(1);
+		}
+		InetAddress myIp = InetAddress.getByName(args[0]);
+		int numKeys = Integer.parseInt(args[1]);
+		InetSocketAddress[] servers = new InetSocketAddress[args.length - 2];
+		for (int i = 2; i < args.length; i++) {
+			BufferedReader serv = new BufferedReader(
+					new InputStreamReader(
+					new FileInputStream(args[i]), "US-ASCII"));
+			String[] chunks = serv.readLine().split(" ");
+			serv.close();
+			servers[i - 2] = new InetSocketAddress(
+					chunks[0], Integer.parseInt(chunks[1]));
+		}
+		DatagramSocket sock = new DatagramSocket(0, myIp);
+		sock.setSoTimeout(2000);
+		Random r = new Random(1);
+
+		// put every key
+		int lost = 0;
+		for (int i = 0; i < numKeys; i++) {
+			if (request(sock, servers[r.nextInt(servers.length)],
+				    "put", "key" + i, "value" + i, i) == null)
+				lost++;
+		}
+		// get every key and count the hops
+		int[] hops = new int[numKeys];
+		int n = 0, missing = 0;
+		for (int i = 0; i < numKeys; i++) {
+			InetSocketAddress server = servers[r.nextInt(servers.length)];
+			Packet reply = request(sock, server, "get", "key" + i, null,
+					       numKeys + i);
+			if (reply == null) { lost++; continue; }
+			if (!"success".equals(reply.type)) missing++;
+			int d = 100 - reply.ttl;
+			if (!from.equals(server))
+				hops[n++] = d - 2; // a direct reply
+			else
+				hops[n++] = (d <= 2 ? 0 : d - 3);
+		}
+		Arrays.sort(hops, 0, n);
+		long sum = 0;
+		for (int i = 0; i < n; i++) sum += hops[i];
+		System.out.printf("%d servers, %d gets: mean %.2f hops, " +
+			"median %d, p99 %d, max %d (%d lost, %d missing)\n",
+			servers.length, n, n == 0 ? 0.0 : (double) sum / n,
+			n == 0 ? 0 : hops[n / 2],
+			n == 0 ? 0 : hops[(int) (n * 0.99)],
+			n == 0 ? 0 : hops[n - 1], lost, missing);
+	}
+
+	/** Send a request and wait for the reply with the same tag.
+	 *  @return the reply, or null if none arrived in time; its sender
+	 *  is left in from
+	 */
+	static Packet request(DatagramSocket sock, InetSocketAddress server,
+			      String type, String key, String val, int tag) {
+		Packet p = new Packet();
+		p.type = type;
+		p.key = key;
+		p.val = val;
+		p.tag = tag;
+		p.send(sock, server, false);
+		Packet reply = new Packet();
+		while (true) {
+			from = reply.receive(sock, false);
+			if (from == null) return null;
+			if (reply.tag == tag) return reply;
+		}
+	}
+}
@@ -1,7 +1,10 @@
 
 /** Server for simple distributed hash table that stores (key,value) strings.
  *  
- *  usage: DhtServer myIp numRoutes cfgFile [ cache ] [ debug ] [ predFile ]
+ *  usage: DhtServer myIp numRoutes cfgFile [ cache ] [ coalesce ] [ debug ]
+ *		     [ direct ] [ fingers ] [ keyhash=H ] [ lease=ms ]
+ *		     [ proximity ] [ replicas=k ] [ text ] [ vnodes=V ]
+ *		     [ workers=W ] [ predFile ]
  *  
  *  myIp	is the IP address to use for this server's socket
  *  numRoutes	is the max number of nodes allowed in the DHT's routing table;
@@ -9,11 +12,52 @@
  *  cfgFile	is the name of a file in which the server writes the IP
  *		address and port number of its socket
  *  cache	is an optional argument; if present it is the literal string
- *		"cache"; when cache is present, the caching feature of the
- *		server is enabled; otherwise it is not
+ *		"cache" or "cache=" followed by the cache's capacity in
+ *		pairs (DEFAULT_CACHE if not given); when cache is present,
+ *		the caching feature of the server is enabled; otherwise it
+ *		is not
+ *  coalesce	is an optional argument; if present it is the literal string
+ *		"coalesce"; when coalesce is present, the server forwards one
+ *		get at a time for each key for its clients (see below); all
+ *		servers of a ring should be started with it, or none
  *  debug	is an optional argument; if present it is the literal string
  *		"debug"; when debug is present, a copy of every packet received
  *		and sent is printed on stdout
+ *  direct	is an optional argument; if present it is the literal string
+ *		"direct"; when direct is present, the server answers the
+ *		clients of other servers directly (see below); all servers
+ *		of a ring should be started with it, or none
+ *  fingers	is an optional argument; if present it is the literal string
+ *		"fingers"; when fingers is present, the server also keeps a
+ *		Chord style finger table and uses it to forward packets
+ *  keyhash	is an optional argument; if present it is "keyhash=" followed
+ *		by the version of the hash function that maps keys to the
+ *		ring: 0 for the original one, 1 for MurmurHash3 (the
+ *		default); it only matters for the first server, since the
+ *		others use the version of the ring they join
+ *  lease	is an optional argument; if present it is "lease=" followed
+ *		by the number of ms for which relays may serve the values
+ *		this server owns from their caches (DEFAULT_LEASE if not
+ *		given); with lease=0 no relay caches them
+ *  proximity	is an optional argument; if present it is the literal string
+ *		"proximity"; when proximity is present, the server measures
+ *		the round trip times to its routes and prefers near ones
+ *		when it forwards packets (see below)
+ *  replicas	is an optional argument; if present it is "replicas=" followed
+ *		by the number of servers after the owner of a range that keep
+ *		a copy of its pairs and answer gets for them; all servers of
+ *		a ring should be started with the same number
+ *  text	is an optional argument; if present it is the literal string
+ *		"text"; when text is present, the server sends all packets in
+ *		the text format; otherwise it uses the binary format with
+ *		peers that can read it
+ *  vnodes	is an optional argument; if present it is "vnodes=" followed
+ *		by the number of virtual nodes the server places on the ring
+ *		at random positions; otherwise the server has one virtual
+ *		node, which takes the upper half of its predecessor's range
+ *  workers	is an optional argument; if present it is "workers=" followed
+ *		by the number of worker threads that handle packets
+ *		(NUM_WORKERS if not given; see below)
  *  predFile	is an optional argument specifying the configuration file of
  *		this node's predecessor in the DHT; this file is used to obtain
  *		the IP address and port number of the predecessor's socket,
@@ -67,11 +111,176 @@
  *  or hash range of another DHT server, usually when a join or leave even 
  *  happens. 
  *
+ *  The pairs that change owner on a join or leave are not sent as
+ *  transfer packets, though (a server still accepts those), but streamed
+ *  over TCP: every server listens for TCP connections on the same port
+ *  number as its UDP socket. The old owner connects to the new owner and
+ *  sends the byte XFER_STREAM and the ring's key hash version, then the
+ *  pairs, then the end of the stream and the number of pairs sent; the
+ *  new owner stores the pairs as they arrive and, if it got them all,
+ *  answers with an acknowledgement. TCP's own flow control keeps the
+ *  old owner from sending faster than the new owner stores.
+ *  The old owner finds the pairs through the hash index of its map (see
+ *  HashStore), so the cost of a split grows with the number of pairs
+ *  that move rather than with the number it stores.
+ *  Only after the acknowledgement does the old owner delete the pairs;
+ *  if the transfer fails, it is retried up to XFER_TRIES times. On a
+ *  join, the old owner first answers with a success packet that gives
+ *  the new server its links and the ring's key hash, then streams the
+ *  pairs, and only once they are acknowledged hands over the range and
+ *  sends a "handover" packet with the same fields. Until then it keeps
+ *  the range and serves it, puts included: it streams the pairs without
+ *  holding the ring lock, noting the keys that are written meanwhile,
+ *  and then takes the lock and streams their final values and removals
+ *  before the handover (see moveRange). If every try fails, it answers
+ *  with a failure packet instead, and the new server drops the range
+ *  and its partial pairs. So the new owner never answers "no match" for
+ *  a pair still on its way, and no pair is stranded; requests sent to
+ *  it meanwhile wait in its socket buffer. Any of these packets may be
+ *  lost: the stream carries the key hash as well, and a new server that
+ *  has had no handover or failure for JOIN_MS ms sends its join again,
+ *  straight to the old owner once it knows it. The old owner answers a
+ *  join it has answered already with the same handover or failure. On
+ *  a leave, the leaving server streams its pairs to its predecessor
+ *  before it sends the updates that hand over its range.
+ *
+ *  A relay caches the pairs in the success replies it passes back to
+ *  clients, in a RelayCache of bounded size that admits a new pair only
+ *  if its key is asked for more often than the pair it would replace.
+ *  The owner of a key grants every success reply a lease, carried in the
+ *  lease field, and a relay serves the cached value only while the lease
+ *  lasts, so a value that changes at its owner is served stale for at
+ *  most one lease. When a cached value is served in the last quarter of
+ *  its lease, the relay also sends a get of its own to the owner; the
+ *  reply, which has no clientAdr, renews the lease (or, if it is a no
+ *  match, drops the pair) and goes no further. A "stats" packet from a
+ *  client is answered with a success packet whose value field reports
+ *  the number of stored pairs and the cache's size and counters, for
+ *  sizing the cache.
+ *
+ *  A server may own several ranges, one for each of its virtual nodes.
+ *  A virtual node is a position on the ring: it owns the hashes from its
+ *  position up to the next position, and has a predecessor and a
+ *  successor of its own. Without "vnodes=", a server has a single virtual
+ *  node and joins by taking the upper half of its predecessor's range, so
+ *  the ranges halve with every join through the same server. With
+ *  "vnodes=V", the server picks V random positions and joins once at
+ *  each: the join packet carries the position in its hash field and
+ *  the joining server's address in relayAdr, it is forwarded like a get,
+ *  and the owner of the position splits its range there and answers the
+ *  joining server directly. A position that falls in one of the server's
+ *  own ranges is split off locally, without any pairs moving. Each range
+ *  is then close to 1/(nV) of the ring, rather than anything from 1/2 to
+ *  1/2^n, so with more virtual nodes no server stores far more pairs than
+ *  the others. Packets that concern one virtual node (update, leave,
+ *  stabilize and stabilized) name it by its position in the hash field.
+ *  A server owns a key if any of its ranges holds the key's hash, and it
+ *  forwards other packets as if its own positions were routes that lead
+ *  to their successors. Since the ring has V times as many nodes, a
+ *  lookup takes more hops, so with many virtual nodes use "fingers" too.
+ *  When it leaves, each of its virtual nodes hands its range to its
+ *  predecessor.
+ *
+ *  A server started with "fingers" keeps a finger table in addition to
+ *  its routing table: finger i is the server that owns the hash
+ *  myHash+2^i (modulo 2^31), where myHash is the first hash in the range
+ *  of this server's first virtual node. Every FIX_MS milliseconds the
+ *  server refreshes the next FIX_BATCH fingers by sending a "find"
+ *  packet for each target hash; a find is forwarded like a get, and the
+ *  server whose range holds the hash answers the originator directly
+ *  with a "found" packet whose senderInfo becomes the finger. At the
+ *  same time the server stabilizes its successor pointer: it sends a
+ *  "stabilize" packet to its successor, which answers with a
+ *  "stabilized" packet carrying its predInfo, and if that predecessor
+ *  lies between the two servers it becomes the new successor. Since the
+ *  fingers are spaced at powers of two around the ring, each forwarding
+ *  step at least halves the remaining distance to the target, so a
+ *  lookup takes O(log n) hops. All distances on the ring, for fingers
+ *  and forwarding alike, are taken modulo 2^31 (see ringDist).
+ *
+ *  The server handles packets on several threads. The main thread only
+ *  receives and checks packets; it hands each one to a pool of
+ *  NUM_WORKERS worker threads, or, if the packet changes the ring (join,
+ *  leave, update and stabilized), to a single control thread, so ring
+ *  changes are applied one at a time and in the order they arrived. On a
+ *  machine with a single processor there are no workers and the main
+ *  thread handles the other packets itself.
+ *  Workers hold the read side of a read/write lock while they handle a
+ *  packet and the control thread holds the write side, so a join or leave
+ *  never overlaps a get or put, except while a join streams its pairs
+ *  (the puts made meanwhile follow the stream, see moveRange). The map
+ *  is a concurrent HashStore, the cache locks each of its segments, and
+ *  the routing table and fingers are copy-on-write lists, so forwarding
+ *  reads them without locking.
+ *
+ *  With "replicas=k", the pairs of every range are also kept by the k
+ *  servers that follow its owner on the ring, which answer gets for the
+ *  keys they have copies of. The owner streams the copies down the chain
+ *  whenever the range or its successor changes, passes every put down it
+ *  in a "replicate" packet, and every SYNC_MS ms streams the keys put
+ *  since the last sync, which makes up for lost packets. A relay learns
+ *  from the replies which servers hold each range and sends each get
+ *  from a client to one of them, picked at random (see Replicas).
+ *
+ *  In "direct" mode, the server that answers a get or put that came
+ *  through a relay (its owner, a replica or a server with the value
+ *  cached) sends the answer straight to clientAdr, which saves the client
+ *  the last hop, and tells the relay what it would have learned from the
+ *  answer in "hint" packets (see HintBatcher). A relay's own refreshes
+ *  are still answered to the relay.
+ *
+ *  With "coalesce", a relay has at most one get in flight for each key;
+ *  clients that ask for the key meanwhile wait for its answer, and a put
+ *  that the relay forwards for the key closes it (see Coalescer). In
+ *  direct mode, the hint that follows the answer to a get also carries
+ *  the answer's key, value and tag and the clientAdr of the get, so that
+ *  the relay can pass the answer on.
+ *
+ *  With "proximity", a server times the answers to the requests it
+ *  forwards for its clients, keeps a smoothed RTT for every server it has
+ *  samples for, and keeps the numRoutes nearest of them as candidates for
+ *  forwarding besides its routes; it may forward a packet to a candidate
+ *  that makes less progress than the closest one if it is much nearer on
+ *  the network (see Proximity).
+ *
+ *  Every server of a ring must map keys to hashes the same way, so the
+ *  key hash is versioned like the binary format. A joining server puts
+ *  the newest version it implements in the keyHash field of its join
+ *  packet; the owner refuses the join if that is older than the ring's
+ *  version (a server without the field implements only version 0) and
+ *  otherwise puts the ring's version in its success reply, which the
+ *  new server adopts. A reply without the field comes from a ring of
+ *  older servers, which use version 0. Version 0 is the original hash,
+ *  under which keys that repeat, such as "ab" and "abab", collide;
+ *  version 1 is MurmurHash3, which is also about twice as fast. Both
+ *  hash the key in place, without allocating anything (see HashBench).
+ *
+ *  A server sends and receives everything through a Transport. The one
+ *  that main uses, SocketTransport, is a UDP socket plus a TCP server
+ *  socket with the same port number, as described above. Since all of a
+ *  server's state belongs to its DhtServer object, many servers can also
+ *  run in one process: each gets its own transport, either a
+ *  SocketTransport on the loopback address or a transport of a
+ *  MemNetwork, which passes packets and streams between the servers in
+ *  memory. DhtSim uses that to measure rings of thousands of servers.
+ *
+ *  Packets can also be sent in a compact binary format (see Packet),
+ *  which is negotiated per peer. Unless started with "text", a server
+ *  adds the field wire:2 to its text packets, to say that it reads
+ *  version 2 of the binary format, and it sends binary packets to every
+ *  address from which it has received a binary packet of version 2 or a
+ *  text packet with that field. A server of version 1 gets text, though
+ *  the binary packets it sends are still read. Everything else, such as clients and servers that
+ *  only know the text format, gets text packets, so replies to a client
+ *  are in text even when the request went around the DHT in binary.
+ *
  *  Other fields and their use are described briefly below
  *  clientAdr 	is used to specify the IP address and port number of the 
  *              client that sent a particular request; it is added to a request
  *              packet by the first server to receive the request, before 
- *              forwarding the packet to another node in the DHT; an example of
+ *              forwarding the packet to another node in the DHT; in direct
+ *              mode with coalescing on, it is also included in the hint
+ *              that follows the answer to a get; an example of
  *              the format is clientAdr:123.45.67.89:51349.
  *  relayAdr  	is used to specify the IP address and port number of the first
  *              server to receive a request packet from the client; it is added
@@ -80,18 +289,38 @@
  *              of hash indices; it is included in the response to a "join" 
  *              packet, to inform the new DHT server of the set of hash values
  *              it is responsible for; it is also included in the update packet
- *              to update the hash range a server is responsible for.
+ *              to update the hash range a server is responsible for, and,
+ *              with replicas on, in the replies to a relay's gets, to give
+ *              the range that holds the key.
  *  succInfo  	is the IP address and port number of a server, followed by its
  *              first hash index; this information is included in the response
  *              to a join packet to inform the new DHT server about its 
  *              immediate successor; it's also included in the update packet 
- *              to change the immediate successor of a DHT server; an example 
- *              of the format is succInfo:123.45.6.7:5678:987654321.
+ *              to change the immediate successor of a DHT server; with
+ *              replicas on, it is included in the replies to a relay's gets
+ *              to give the next server that holds a copy of the range; an
+ *              example of the format is succInfo:123.45.6.7:5678:987654321.
  *  predInfo	is also the IP address and port number of a server, followed
  *              by its first hash index; this information is included in a join
  *              packet to inform the successor DHT server of its new 
  *              predecessor; it is also included in update packets to update 
  *              the new predecessor of a server.
+ *  hash	is a hash value; it is included in find and found packets to
+ *              specify the hash being looked up, in join packets to specify
+ *              the position of a virtual node, and in update, leave,
+ *              stabilize and stabilized packets to specify the virtual node
+ *              of the receiver that they are for, by its first hash, and in
+ *              replicate packets to specify the range, by its first hash.
+ *  lease	is a number of ms; it is included in success replies from
+ *              the owner of a key, to say for how long relays may serve the
+ *              value from their caches.
+ *  wire	is the highest version of the binary format that the sender
+ *              of a text packet reads.
+ *  hint	is a (key,value) pair that a relay may cache, under the
+ *              packet's lease; a hint packet may have many of them.
+ *  keyHash	is a key hash version; it is included in join packets to give
+ *              the newest one that the joining server implements, and in
+ *              the replies to give the one that the ring uses.
  *  senderInfo	is the IP address and port number of a DHT server, followed by
  *              its first hash index; this information is sent by a DHT to 
  *              provide routing information that can be used by other servers.
@@ -103,29 +332,100 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.lang.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 
 import sun.misc.Signal;
 import sun.misc.SignalHandler;
 
 public class DhtServer {
-	private static int numRoutes; // number of routes in routing table
-	private static boolean cacheOn; // enables caching when true
-	private static boolean debug; // enables debug messages when true
-
-	private static HashMap<String, String> map; // key/value pairs
-	private static HashMap<String, String> cache; // cached pairs
-	private static List<Pair<InetSocketAddress, Integer>> rteTbl;
-
-	private static DatagramSocket sock;
-	private static InetSocketAddress myAdr;
-	private static InetSocketAddress predecessor; // DHT predecessor
-	private static Pair<InetSocketAddress, Integer> myInfo;
-	private static Pair<InetSocketAddress, Integer> predInfo;
-	private static Pair<InetSocketAddress, Integer> succInfo; // successor
-	private static Pair<Integer, Integer> hashRange; // my DHT hash range
-	private static int sendTag; // tag for new outgoing packets
-	// flag for waiting leave message circle back
-	private static boolean stopFlag;
+	private int numRoutes; // number of routes in routing table
+	private boolean cacheOn; // enables caching when true
+	private int cacheSize; // capacity of the cache in pairs
+	private int leaseMs; // lease granted on the values we own
+	private boolean debug; // enables debug messages when true
+	private boolean fingersOn; // enables the finger table when true
+	private boolean binaryOn; // enables the binary format when true
+	private int numVnodes; // virtual nodes at random positions, or
+				      // 0 for one that halves its predecessor's
+	private volatile int keyHash; // version of the ring's key hash
+	private int numReplicas; // servers after the owner with a copy
+	private int numWorkers; // threads handling gets, puts and such
+	private boolean directOn; // owners answer clients directly when true
+	private boolean coalesceOn; // one get in flight per key when true
+	private boolean proximityOn; // forward to near routes when true
+
+	private static final int NUM_FINGERS = 31; // one per bit of a hash
+	private static final long FIX_MS = 500; // time between finger fixes
+	private static final int FIX_BATCH = 4; // fingers refreshed per fix
+	// threads handling packets, leaving a processor for the main thread
+	private static final int NUM_WORKERS =
+		Runtime.getRuntime().availableProcessors() - 1;
+	private static final int QUEUE_LEN = 1024; // packets waiting for workers
+	private static final int DEFAULT_CACHE = 4096; // default cache capacity
+	private static final int DEFAULT_LEASE = 5000; // default lease in ms
+	private static final int XFER_TRIES = 5; // attempts to stream pairs
+	private static final int JOIN_TRIES = 5; // positions tried per vnode
+	private static final int JOIN_MS = 1000; // time between join requests
+	private static final int JOINS_KEPT = 64; // answers to joins kept
+	private static final int LEAVE_TRIES = 5; // leave packets sent per vnode
+	private static final int LEAVE_MS = 1000; // time between leave packets
+	private static final int XFER_STREAM = 3; // first byte of a stream of
+						  // pairs that change owner
+	private static final int KEY_HASH = 1; // newest key hash version
+	private static final long SYNC_MS = 10000; // time between replica syncs
+
+	private HashStore map; // key/value pairs, indexed by hash
+	private Replicas replicas; // copies of other servers' pairs
+	private volatile boolean replicating; // true once we have joined
+	private AtomicLong served; // gets answered from map or replicas
+	private AtomicLong received; // packets received once we have joined
+	private HintBatcher hints; // hints to relays; null unless direct
+	private Coalescer inFlight; // gets forwarded for clients
+	private Proximity proximity; // round trip times to other servers
+	private RelayCache cache; // cached pairs
+	private List<Pair<InetSocketAddress, Integer>> rteTbl;
+	// addresses known to read the binary format
+	private Set<InetSocketAddress> binaryPeers;
+	// fingers.get(i) owns myHash+2^i; null if unknown or this server
+	private List<Pair<InetSocketAddress, Integer>> fingers;
+	private int nextFinger; // next finger to refresh
+
+	private ExecutorService workers; // handle gets, puts and such;
+						// null if the main thread does
+	private ExecutorService control; // handles ring changes in order
+	// held for reading by workers and for writing by the control thread
+	private ReadWriteLock ringLock;
+
+	private Timer timer; // fixes fingers and syncs replicas; null if neither
+	// carries packets and streams of pairs to and from other servers
+	private Transport transport;
+	// opened once keyHash is known, so pairs are indexed by the right hash
+	private CountDownLatch hashKnown;
+	private InetSocketAddress myAdr;
+	private List<VNode> vnodes; // this server's virtual nodes
+	// packets received while joining, handled once we have joined
+	private List<Pair<Packet, InetSocketAddress>> deferred;
+	// last answers to joins, by address and tag of the joining server
+	private LinkedHashMap<Pair<InetSocketAddress, Integer>, Packet> joinsDone;
+	private int sendTag; // tag for new outgoing packets
+	// released when one of our leave packets has come back around the ring
+	private Semaphore leaveBack;
+	private volatile int leaveTag; // tag of the leave packet waited for
+
+	/**
+	 * A virtual node: a position on the ring, the range of hashes from
+	 * there up to the next position, and its neighbours on the ring. The
+	 * fields are only replaced, never changed in place.
+	 */
+	private static class VNode {
+		// this server's address and the first hash of the range
+		volatile Pair<InetSocketAddress, Integer> myInfo;
+		volatile Pair<InetSocketAddress, Integer> predInfo;
+		volatile Pair<InetSocketAddress, Integer> succInfo;
+		volatile Pair<Integer, Integer> hashRange; // the range
+	}
 
 	/**
 	 * Main method for DHT server. Processes command line arguments, initializes
@@ -135,37 +435,41 @@ public class DhtServer {
 		// process command-line arguments
 		if (args.length < 3) {
 			System.err.println("usage: DhtServer myIp numRoutes " + 
-					"cfgFile [ cache ] [ debug ] " + 
-					"[ predFile ] ");
+					"cfgFile [ cache ] [ coalesce ] [ debug ] " + 
+					"[ direct ] [ fingers ] [ keyhash=H ] " +
+					"[ lease=ms ] [ proximity ] [ replicas=k ] " +
+					"[ text ] [ vnodes=V ] [ workers=W ] [ predFile ] ");
 			System.exit(1);
 		}
-		numRoutes = Integer.parseInt(args[1]);
 		String cfgFile = args[2];
-		cacheOn = debug = false;
-		stopFlag = false;
 		String predFile = null;
+		List<String> options = new ArrayList<String>();
 		for (int i = 3; i < args.length; i++) {
-			if (args[i].equals("cache"))
-				cacheOn = true;
-			else if (args[i].equals("debug"))
-				debug = true;
+			if (isOption(args[i]))
+				options.add(args[i]);
 			else
 				predFile = args[i];
 		}
 
-		// open socket for receiving packets
+		// open sockets for receiving packets and streams
 		// write ip and port to config file
 		// read predecessor's ip/port from predFile (if there is one)
-		InetAddress myIp = null;
-		sock = null;
-		predecessor = null;
+		DhtServer server = null;
+		InetSocketAddress predecessor = null;
 		try {
-			myIp = InetAddress.getByName(args[0]);
-			sock = new DatagramSocket(0, myIp);
+			Transport t = new SocketTransport(InetAddress.getByName(args[0]));
+			try {
+				server = new DhtServer(t, Integer.parseInt(args[1]),
+						       options.toArray(new String[0]));
+			} catch (IllegalArgumentException e) {
+				System.err.println("DhtServer: " + e.getMessage());
+				System.exit(1);
+			}
+			InetSocketAddress myAdr = t.getLocalAddress();
 			BufferedWriter cfg = new BufferedWriter(new OutputStreamWriter(
 					new FileOutputStream(cfgFile), "US-ASCII"));
-			cfg.write("" + myIp.getHostAddress() + 
-					" " + sock.getLocalPort());
+			cfg.write("" + myAdr.getAddress().getHostAddress() + 
+					" " + myAdr.getPort());
 			cfg.newLine();
 			cfg.close();
 			if (predFile != null) {
@@ -179,43 +483,24 @@ public class DhtServer {
 			}
 		} catch (Exception e) {
 			System.err.println("usage: DhtServer myIp numRoutes " + 
-					"cfgFile [ cache ] [ debug ] " + 
-					"[ predFile ] ");
+					"cfgFile [ cache ] [ coalesce ] [ debug ] " + 
+					"[ direct ] [ fingers ] [ keyhash=H ] " +
+					"[ lease=ms ] [ proximity ] [ replicas=k ] " +
+					"[ text ] [ vnodes=V ] [ workers=W ] [ predFile ] ");
 			System.exit(1);
 		}
-		myAdr = new InetSocketAddress(myIp, sock.getLocalPort());
-
-		// initialize data structures
-		map = new HashMap<String, String>();
-		cache = new HashMap<String, String>();
-		rteTbl = new LinkedList<Pair<InetSocketAddress, Integer>>();
 
 		// join the DHT (if not the first node)
-		hashRange = new Pair<Integer, Integer>(0, Integer.MAX_VALUE);
-		myInfo = null;
-		succInfo = null;
-		predInfo = null;
-		if (predecessor != null) {
-			join(predecessor); 
-		} else { 
-			myInfo = new Pair<InetSocketAddress, Integer>(myAdr, 0);
-			succInfo = new Pair<InetSocketAddress, Integer>(myAdr, 0);
-			predInfo = new Pair<InetSocketAddress, Integer>(myAdr, 0);
-		}
-
-		// start processing requests from clients
-		Packet p = new Packet();
-		Packet reply = new Packet();
-		InetSocketAddress sender = null;
-		sendTag = 1;
+		server.start(predecessor);
 
 		/*
 		 * this function will be called if there's a "TERM" or "INT" captured by the
 		 * signal handler. It simply execute the leave function and leave the program.
 		 */
+		DhtServer s = server;
 		SignalHandler handler = new SignalHandler() {
 			public void handle(Signal signal) {
-				leave();
+				s.leave();
 				System.exit(0);
 			}
 		};
@@ -223,110 +508,529 @@ public class DhtServer {
 		Signal.handle(new Signal("TERM"), handler); // capture kill -15 signal
 		Signal.handle(new Signal("INT"), handler); // capture ctrl+c
 
+		server.run();
+	}
+
+	/**
+	 * Tell the optional arguments of a server from a predFile.
+	 * 
+	 * @param arg is a command line argument after cfgFile
+	 * @return true if arg is an option that a DhtServer takes
+	 */
+	public static boolean isOption(String arg) {
+		return arg.equals("cache") || arg.equals("debug") ||
+		       arg.equals("fingers") || arg.equals("text") ||
+		       arg.equals("direct") || arg.equals("coalesce") ||
+		       arg.equals("proximity") ||
+		       arg.startsWith("cache=") || arg.startsWith("keyhash=") ||
+		       arg.startsWith("lease=") || arg.startsWith("replicas=") ||
+		       arg.startsWith("vnodes=") || arg.startsWith("workers=");
+	}
+
+	/**
+	 * Initialize a server that has not joined a DHT yet.
+	 * 
+	 * @param transport carries the server's packets and streams; the
+	 *                  server closes it when it is closed
+	 * @param numRoutes is the max number of nodes in the routing table
+	 * @param options   are the optional arguments of main, except predFile
+	 * @throws IllegalArgumentException if an option is invalid
+	 *
+	 *              Many servers can run in one process, each on its own
+	 *              transport (see MemNetwork and DhtSim).
+	 */
+	public DhtServer(Transport transport, int numRoutes, String... options) {
+		this.transport = transport;
+		this.numRoutes = numRoutes;
+		cacheOn = debug = fingersOn = directOn = coalesceOn = false;
+		proximityOn = false;
+		binaryOn = true;
+		cacheSize = DEFAULT_CACHE;
+		leaseMs = DEFAULT_LEASE;
+		numVnodes = 0;
+		keyHash = KEY_HASH;
+		numReplicas = 0;
+		numWorkers = NUM_WORKERS;
+		for (String opt : options) {
+			if (opt.equals("cache"))
+				cacheOn = true;
+			else if (opt.startsWith("cache=")) {
+				cacheOn = true;
+				cacheSize = number(opt, "cache capacity");
+				if (cacheSize <= 0)
+					throw new IllegalArgumentException("invalid cache " +
+						"capacity " + opt.substring(6));
+			}
+			else if (opt.startsWith("lease="))
+				leaseMs = number(opt, "lease");
+			else if (opt.startsWith("keyhash=")) {
+				keyHash = number(opt, "key hash version");
+				if (keyHash > KEY_HASH)
+					throw new IllegalArgumentException("invalid key hash " +
+						"version " + opt.substring(8));
+			}
+			else if (opt.startsWith("replicas="))
+				numReplicas = number(opt, "number of replicas");
+			else if (opt.startsWith("vnodes=")) {
+				numVnodes = number(opt, "number of virtual nodes");
+				if (numVnodes == 0)
+					throw new IllegalArgumentException("invalid number " +
+						"of virtual nodes 0");
+			}
+			else if (opt.startsWith("workers="))
+				numWorkers = number(opt, "number of workers");
+			else if (opt.equals("debug"))
+				debug = true;
+			else if (opt.equals("fingers"))
+				fingersOn = true;
+			else if (opt.equals("direct"))
+				directOn = true;
+			else if (opt.equals("coalesce"))
+				coalesceOn = true;
+			else if (opt.equals("proximity"))
+				proximityOn = true;
+			else if (opt.equals("text"))
+				binaryOn = false;
+			else
+				throw new IllegalArgumentException("unknown option " + opt);
+		}
+		myAdr = transport.getLocalAddress();
+
+		// initialize data structures
+		map = new HashStore();
+		replicas = new Replicas(this, transport, map, numReplicas, debug);
+		served = new AtomicLong();
+		received = new AtomicLong();
+		inFlight = new Coalescer();
+		proximity = new Proximity(myAdr, numRoutes, this::send);
+		cache = new RelayCache(cacheSize);
+		rteTbl = new CopyOnWriteArrayList<Pair<InetSocketAddress, Integer>>();
+		fingers = new CopyOnWriteArrayList<Pair<InetSocketAddress, Integer>>(
+				Collections.nCopies(NUM_FINGERS,
+					(Pair<InetSocketAddress, Integer>) null));
+		nextFinger = 0;
+		ringLock = new ReentrantReadWriteLock();
+		binaryPeers = ConcurrentHashMap.newKeySet();
+		leaveBack = new Semaphore(0);
+		hashKnown = new CountDownLatch(1);
+		joinsDone = new LinkedHashMap<Pair<InetSocketAddress, Integer>, Packet>() {
+			protected boolean removeEldestEntry(
+				Map.Entry<Pair<InetSocketAddress, Integer>, Packet> e) {
+				return size() > JOINS_KEPT;
+			}
+		};
+		vnodes = new CopyOnWriteArrayList<VNode>();
+		sendTag = 1;
+	}
+
+	/**
+	 * Get the value of a numeric option.
+	 * 
+	 * @param opt  is the option, a name, "=" and the value
+	 * @param what names the value in the error message
+	 * @return the value
+	 * @throws IllegalArgumentException if the value is not a number >= 0
+	 */
+	private static int number(String opt, String what) {
+		String val = opt.substring(opt.indexOf('=') + 1);
+		int n;
+		try {
+			n = Integer.parseInt(val);
+		} catch (NumberFormatException e) {
+			n = -1;
+		}
+		if (n < 0)
+			throw new IllegalArgumentException("invalid " + what + " " + val);
+		return n;
+	}
+
+	/**
+	 * Join the DHT, or start a new one, and get ready to handle packets;
+	 * the packets are handled by run.
+	 * 
+	 * @param predecessor is the socket address of a server in the DHT,
+	 *                    or null to start a new DHT
+	 */
+	public void start(InetSocketAddress predecessor) {
+		Thread listener = new Thread(this::acceptXfers);
+		listener.setDaemon(true);
+		listener.start();
+
+		// join the DHT (if not the first node)
+		deferred = new ArrayList<Pair<Packet, InetSocketAddress>>();
+		if (predecessor != null) {
+			join(predecessor); 
+		} else { 
+			VNode v = new VNode();
+			v.myInfo = new Pair<InetSocketAddress, Integer>(myAdr, 0);
+			v.succInfo = v.myInfo;
+			v.predInfo = v.myInfo;
+			v.hashRange = new Pair<Integer, Integer>(0, Integer.MAX_VALUE);
+			vnodes.add(v);
+			Random r = new Random();
+			for (int i = 1; i < numVnodes; i++) {
+				int x = newPosition(r);
+				split(owner(x), x);
+			}
+		}
+		hashKnown.countDown();
+
+		// the timer (see below) also flushes the hints, which answers
+		// to the deferred packets may need already
+		if (fingersOn || numReplicas > 0 || directOn)
+			timer = new Timer(true);
+		if (directOn)
+			hints = new HintBatcher(timer, leaseMs, this::send);
+
+		// start processing requests from clients; when the workers
+		// fall QUEUE_LEN packets behind, the thread that receives
+		// handles the next packet itself, which stops it receiving
+		// for a while
+		if (numWorkers > 0) {
+			workers = new ThreadPoolExecutor(numWorkers, numWorkers,
+					0, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(QUEUE_LEN),
+					new ThreadPoolExecutor.CallerRunsPolicy());
+		}
+		control = Executors.newSingleThreadExecutor();
+		for (Pair<Packet, InetSocketAddress> d : deferred)
+			dispatch(d.left, d.right);
+		deferred = null;
+		// our ranges are complete, so copies of them can go out
+		replicating = true;
+		syncReplicas();
+
+		/*
+		 * with fingers on, a timer thread periodically stabilizes the
+		 * successor and refreshes some fingers; like a worker, it holds
+		 * the read side of the ring lock while it does so. With
+		 * replicas on, it also syncs the copies of our ranges, and in
+		 * direct mode it sends the hints.
+		 */
+		if (fingersOn) {
+			timer.schedule(new TimerTask() {
+				public void run() {
+					ringLock.readLock().lock();
+					try {
+						stabilize();
+						fixFingers();
+					} finally {
+						ringLock.readLock().unlock();
+					}
+				}
+			}, FIX_MS, FIX_MS);
+		}
+		if (numReplicas > 0) {
+			timer.schedule(new TimerTask() {
+				public void run() {
+					ringLock.readLock().lock();
+					try {
+						syncReplicas();
+					} finally {
+						ringLock.readLock().unlock();
+					}
+				}
+			}, SYNC_MS, SYNC_MS);
+		}
+	}
+
+	/**
+	 * Receive packets and hand them to the threads that handle them,
+	 * until the transport is closed.
+	 */
+	public void run() {
+		Packet p = new Packet();
+		Packet reply = new Packet();
+		InetSocketAddress sender = null;
 		while (true) {
 			try {
-				sender = p.receive(sock, debug);
+				sender = transport.receive(p, debug);
 			} catch (Exception e) {
 				System.err.println("received packet failure");
 				continue;
 			}
 			if (sender == null) {
+				if (transport.isClosed()) return;
 				System.err.println("received packet failure");
 				continue;
 			}
+			received.incrementAndGet();
+			learnWire(p, sender);
 			if (!p.check()) {
 				reply.clear();
 				reply.type = "failure";
 				reply.reason = p.reason;
 				reply.tag = p.tag;
 				reply.ttl = p.ttl;
-				reply.send(sock, sender, debug);
+				send(reply, sender);
 				continue;
 			}
-			handlePacket(p, sender);
+			dispatch(p, sender);
+			p = new Packet(); // p now belongs to the thread handling it
 		}
 	}
 
 	/**
-	 * Hash a string, returning a 32 bit integer.
+	 * Stop at once, without leaving the DHT, as a crashed server would;
+	 * call leave first to hand the ranges over. Closes the transport,
+	 * which ends run, and stops the server's threads.
+	 */
+	public void close() {
+		transport.close();
+		if (timer != null) timer.cancel();
+		if (workers != null) workers.shutdown();
+		if (control != null) control.shutdown();
+		replicas.close();
+	}
+
+	/** Get the socket address that the server receives packets on. */
+	public InetSocketAddress getAddress() {
+		return myAdr;
+	}
+
+	/**
+	 * Get the number of gets that the server has answered from its map
+	 * or its copies.
+	 */
+	public long getServed() {
+		return served.get();
+	}
+
+	/** Get the number of packets that the server has received. */
+	public long getReceived() {
+		return received.get();
+	}
+
+	/** Get the number of pairs that the server stores. */
+	public int getPairs() {
+		return map.size();
+	}
+
+	/**
+	 * Hand a received packet to the thread that will handle it.
+	 * 
+	 * @param p      is a checked packet
+	 * @param sender is the socket address of the sender
+	 *
+	 *               Packets that change the ring go to the control thread,
+	 *               which handles them one at a time while holding the
+	 *               write side of the ring lock (a join lets go of it
+	 *               while the pairs stream); all others go to the
+	 *               workers (if any), which hold the read side.
+	 */
+	public void dispatch(Packet p, InetSocketAddress sender) {
+		boolean ring = p.type.equals("join") || p.type.equals("leave") ||
+			       p.type.equals("update") || p.type.equals("stabilized");
+		Lock lock = (ring ? ringLock.writeLock() : ringLock.readLock());
+		Runnable task = () -> {
+			lock.lock();
+			try {
+				handlePacket(p, sender);
+			} catch (Exception e) {
+				System.err.println("packet handling failure: " + e);
+			} finally {
+				lock.unlock();
+			}
+		};
+		if (ring) control.execute(task);
+		else if (workers != null) workers.execute(task);
+		else task.run();
+	}
+
+	/**
+	 * Send a packet, in the binary format if the destination is known
+	 * to read it and in the text format otherwise.
+	 * 
+	 * @param p    is the packet
+	 * @param dest is the socket address of the destination
+	 * @return true on success, false on failure
+	 */
+	public boolean send(Packet p, InetSocketAddress dest) {
+		p.binary = binaryOn && binaryPeers.contains(dest);
+		p.wire = (binaryOn && !p.binary ? Packet.WIRE_VERSION : -1);
+		return transport.send(p, dest, debug);
+	}
+
+	/**
+	 * Note whether the sender of a packet reads the binary format: it
+	 * does if it sent the packet in binary of the current version or said
+	 * so in its wire field.
+	 * 
+	 * @param p      is a received packet
+	 * @param sender is the socket address of the sender
+	 */
+	public void learnWire(Packet p, InetSocketAddress sender) {
+		if (!binaryOn) return;
+		if (p.binary || p.wire >= Packet.WIRE_VERSION)
+			binaryPeers.add(sender);
+		else
+			binaryPeers.remove(sender);
+	}
+
+	/**
+	 * Hash a string with the key hash that the ring uses.
 	 * 
 	 * @param s is a string, typically the key from some get/put operation.
 	 * @return and integer hash value in the interval [0,2^31).
 	 */
-	public static int hashit(String s) {
-		while (s.length() < 16)
-			s += s;
-		byte[] sbytes = null;
-		try {
-			sbytes = s.getBytes("US-ASCII");
-		} catch (Exception e) {
-			System.out.println("illegal key string");
-			System.exit(1);
-		}
-		int i = 0;
+	public int hashit(String s) {
+		return hashit(s, keyHash);
+	}
+
+	/**
+	 * Hash a string, returning a 32 bit integer. Neither hash allocates
+	 * anything; each reads the characters of the string as the US-ASCII
+	 * bytes they are sent as.
+	 * 
+	 * @param s       is a string
+	 * @param version is the key hash: 0 for the original one, 1 for
+	 *                32 bit MurmurHash3
+	 * @return an integer hash value in the interval [0,2^31).
+	 */
+	public static int hashit(String s, int version) {
+		int h = (version == 0 ? hash0(s) : murmur3(s, 0x37ace45d));
+		if (h < 0)
+			h = -(h + 1);
+		return h;
+	}
+
+	/**
+	 * The original key hash. It multiplies in the string's bytes two at
+	 * a time, after doubling the string until it is 16 long; here the
+	 * doubled string is read in place, going back to the start of the
+	 * string at its end. So "ab" and "abab" collide, as they always have.
+	 */
+	private static int hash0(String s) {
+		int n = s.length();
+		int len = n;
+		while (len > 0 && len < 16)
+			len += len;
 		int h = 0x37ace45d;
-		while (i + 1 < sbytes.length) {
-			int x = (sbytes[i] << 8) | sbytes[i + 1];
+		int j = 0; // index in s of the next byte
+		for (int i = 0; i + 1 < len; i += 2) {
+			int x = asciiAt(s, j) << 8;
+			if (++j == n) j = 0;
+			x |= asciiAt(s, j);
+			if (++j == n) j = 0;
 			h *= x;
 			int top = h & 0xffff0000;
 			int bot = h & 0xffff;
 			h = top | (bot ^ ((top >> 16) & 0xffff));
-			i += 2;
 		}
-		if (h < 0)
-			h = -(h + 1);
 		return h;
 	}
 
+	/** 32 bit MurmurHash3 (x86 variant) of the string's bytes. */
+	private static int murmur3(String s, int seed) {
+		int n = s.length();
+		int h = seed;
+		int i = 0;
+		for (; i + 4 <= n; i += 4) {
+			int k = asciiAt(s, i) | (asciiAt(s, i + 1) << 8) |
+				(asciiAt(s, i + 2) << 16) | (asciiAt(s, i + 3) << 24);
+			h ^= murmurMix(k);
+			h = Integer.rotateLeft(h, 13) * 5 + 0xe6546b64;
+		}
+		// the last one to three bytes, the first in the low byte
+		if (i < n) {
+			int k = 0;
+			for (int j = n - 1; j >= i; j--)
+				k = (k << 8) | asciiAt(s, j);
+			h ^= murmurMix(k);
+		}
+		h ^= n;
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	/** Scramble a block of four bytes for murmur3. */
+	private static int murmurMix(int k) {
+		k *= 0xcc9e2d51;
+		k = Integer.rotateLeft(k, 15);
+		return k * 0x1b873593;
+	}
+
+	/** The US-ASCII byte that a character is sent as. */
+	private static int asciiAt(String s, int i) {
+		char c = s.charAt(i);
+		return (c < 128 ? c : '?');
+	}
+
 	/**
 	 * Leave an existing DHT.
 	 * 
-	 * Send a leave packet to it's successor and wait until stopFlag is set to
-	 * "true", which means leave packet is circle back.
+	 * For each virtual node, send a leave packet to its successor and wait
+	 * until leaveBack is released, which means leave packet is circle back.
+	 * The packet is sent again every LEAVE_MS ms, as it or its way back may
+	 * be lost, and after LEAVE_TRIES tries we leave without it.
 	 *
-	 * Send an update packet with the new hashRange and succInfo fields to its
-	 * predecessor, and sends an update packet with the predInfo field to its
-	 * successor.
-	 * 
-	 * Transfers all keys and values to predecessor. Clear all the existing cache,
-	 * map and rteTbl information
+	 * Then, for each virtual node, send an update packet with the new
+	 * hashRange and succInfo fields to its predecessor, and an update packet
+	 * with the predInfo field to its successor. Before the updates, the
+	 * node's keys and values are streamed to its predecessor, unless that
+	 * is one of our own virtual nodes, which has them already. Clear all
+	 * the existing cache and rteTbl information
 	 */
-	public static void leave() {
+	public void leave() {
 		// your code here
 		// a random generator
 		Random r = new Random();
-		// send leave packet to successor
+		replicating = false; // our predecessors take over the copies
+		// send leave packets to successors
 		Packet p = new Packet();
-		p.type = "leave";
-		p.tag = r.nextInt(100000);
-		p.senderInfo = myInfo;
-		p.send(sock, succInfo.left, debug);
-		// wait until stopFlag is set to "true"
-		while(!stopFlag);
-		// send update packet to pred and succ
-		p.clear();
-		p.type = "update";
-		p.tag = r.nextInt(100000);
-		p.succInfo = succInfo;
-		p.hashRange = new Pair<Integer, Integer>(predInfo.right,hashRange.right);
-		p.send(sock,predInfo.left,debug);
-		p.clear();
-		p.type = "update";
-		p.tag = r.nextInt(100000);
-		p.predInfo = predInfo;
-		p.send(sock,succInfo.left,debug);
-		// transfer all keys and empty data structures
-		p.clear();
-		p.type = "transfer";
-		for (Map.Entry<String, String> entry : map.entrySet()) {
+		for (VNode v : vnodes) {
+			p.clear();
+			p.type = "leave";
 			p.tag = r.nextInt(100000);
-			p.key = entry.getKey();
-			p.val = entry.getValue();
-			p.send(sock,predInfo.left,debug);
+			p.senderInfo = v.myInfo;
+			p.hash = v.succInfo.right;
+			// wait until the packet has come back around the ring
+			leaveTag = p.tag;
+			leaveBack.drainPermits();
+			for (int tries = 1; tries <= LEAVE_TRIES; tries++) {
+				send(p, v.succInfo.left);
+				try {
+					if (leaveBack.tryAcquire(LEAVE_MS,
+								 TimeUnit.MILLISECONDS))
+						break;
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+		}
+		// no more joins, updates, gets or puts from here on
+		ringLock.writeLock().lock();
+		try {
+			for (VNode v : vnodes) {
+				vnodes.remove(v);
+				Pair<InetSocketAddress, Integer> pred = v.predInfo;
+				Pair<InetSocketAddress, Integer> succ = v.succInfo;
+				// hand the pairs to pred before it takes over the range
+				if (!pred.left.equals(myAdr))
+					moveKeys(pred.left, v.hashRange.left, v.hashRange.right);
+				// send update packet to pred and succ
+				p.clear();
+				p.type = "update";
+				p.tag = r.nextInt(100000);
+				p.succInfo = succ;
+				p.hashRange = new Pair<Integer, Integer>(pred.right, v.hashRange.right);
+				sendUpdate(p, pred);
+				p.clear();
+				p.type = "update";
+				p.tag = r.nextInt(100000);
+				p.predInfo = pred;
+				sendUpdate(p, succ);
+			}
+			// empty data structures
+			cache.clear();
+			rteTbl.clear();
+		} finally {
+			ringLock.writeLock().unlock();
 		}
-		map.clear();
-		cache.clear();
-		rteTbl.clear();
 	}
 
 	/**
@@ -336,22 +1040,41 @@ public class DhtServer {
 	 * @param adr is the socket address of the host that
 	 * 
 	 *            The update message might contains information need update,
-	 *            including predInfo, succInfo, and hashRange. And add the new
+	 *            including predInfo, succInfo, and hashRange, for the virtual
+	 *            node named by its hash field. And add the new
 	 *            Predecessor/Successor into the routing table. If succInfo is
 	 *            updated, succInfo should be removed from the routing table and the
 	 *            new succInfo should be added into the new routing table.
 	 */
-	public static void handleUpdate(Packet p, InetSocketAddress adr) {
+	public void handleUpdate(Packet p, InetSocketAddress adr) {
+		VNode v = target(p);
+		if (v == null) return;
 		if (p.predInfo != null) {
-			predInfo = p.predInfo;
+			v.predInfo = p.predInfo;
 		}
 		if (p.succInfo != null) {
-			succInfo = p.succInfo;
-			addRoute(succInfo);
+			v.succInfo = p.succInfo;
+			addRoute(v.succInfo);
 		}
 		if (p.hashRange != null) {
-			hashRange = p.hashRange;
+			v.hashRange = p.hashRange;
 		}
+		sync(v);
+	}
+
+	/**
+	 * Send an update packet to a virtual node, or, if it is one of ours,
+	 * apply it directly.
+	 * 
+	 * @param p    is the update packet
+	 * @param dest is the virtual node's address and first hash
+	 */
+	public void sendUpdate(Packet p, Pair<InetSocketAddress, Integer> dest) {
+		p.hash = dest.right;
+		if (dest.left.equals(myAdr))
+			handleUpdate(p, myAdr);
+		else
+			send(p, dest.left);
 	}
 
 	/**
@@ -360,48 +1083,197 @@ public class DhtServer {
 	 * @param p   is the received leave packet
 	 * @param adr is the socket address of the host that sent the leave packet
 	 *
-	 *            If the leave packet is sent by this server, set the stopFlag.
-	 *            Otherwise firstly send the received leave packet to its successor,
-	 *            and then remove the routing entry with the senderInfo of the
-	 *            packet.
-	 */
-	public static void handleLeave(Packet p, InetSocketAddress adr) {
-		if (p.senderInfo.equals(myInfo)) {
-			stopFlag = true;
+	 *            If the leave packet is sent by the virtual node it is for,
+	 *            release leaveBack, unless it is an old one. Otherwise firstly send the received leave
+	 *            packet to that node's successor, and then remove the routing
+	 *            entry with the senderInfo of the packet.
+	 */
+	public void handleLeave(Packet p, InetSocketAddress adr) {
+		VNode v = target(p);
+		if (v == null) return;
+		if (p.senderInfo.equals(v.myInfo)) {
+			if (p.tag == leaveTag) leaveBack.release();
 			return;
 		}
 		// send the leave message to successor
-		p.send(sock, succInfo.left, debug);
+		p.hash = v.succInfo.right;
+		send(p, v.succInfo.left);
 
-		// remove the senderInfo from route table
+		// remove the senderInfo from route table and fingers
 		removeRoute(p.senderInfo);
+		for (int i = 0; i < NUM_FINGERS; i++) {
+			if (p.senderInfo.equals(fingers.get(i)))
+				setFinger(i, null);
+		}
 	}
 
 	/**
 	 * Join an existing DHT.
 	 * 
 	 * @param predAdr is the socket address of a server in the DHT,
+	 * 			Join once for every virtual node (see joinAt), or, at
+	 * 			a position in one of our own ranges, split that range.
+	 * 			A refused join is tried again at another position.
+	 */
+	public void join(InetSocketAddress predAdr) {
+		// your code here
+		if (numVnodes == 0) {
+			joinAt(predAdr, -1);
+		} else {
+			Random r = new Random();
+			for (int i = 0; i < numVnodes; i++) {
+				// try other positions if a join is refused
+				for (int tries = 0; tries < JOIN_TRIES; tries++) {
+					int x = newPosition(r);
+					VNode u = owner(x);
+					if (u != null) {
+						split(u, x);
+						break;
+					}
+					if (joinAt(predAdr, x)) break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add a virtual node by joining at a position.
+	 * 
+	 * @param predAdr is the socket address of a server in the DHT
+	 * @param x       is the position, or -1 to take the upper half of the
+	 *                range of predAdr's first virtual node
+	 * @return true if the node was added, false if the join was refused,
+	 *         because the position is taken or its owner is joining, or
+	 *         if the pairs in the range could not be transferred
 	 * 			Send a join packet to the predecessor, and then wait
 	 * 			for reply. The reply should typically be success
 	 * 			packet which contains succInfo, predInfo, and 
-	 * 			hashRange. All the informtaion is set and the sucInfo
-	 * 			is added to the route table.              
+	 * 			hashRange. The owner then streams the pairs in the
+	 * 			range, and sends a handover packet with the same
+	 * 			fields once it has handed the range over. Only then
+	 * 			is the informtaion set and the sucInfo added to the
+	 * 			route table. Without a handover or failure for
+	 * 			JOIN_MS ms, the join is sent again, to the owner if
+	 * 			its success packet came, which then answers again.
 	 */
-	public static void join(InetSocketAddress predAdr) {
-		// your code here
+	public boolean joinAt(InetSocketAddress predAdr, int x) {
 		// send join packet
 		Packet p = new Packet();
-		p.tag = new Random().nextInt(100000);
+		int tag = new Random().nextInt(100000);
+		p.tag = tag;
 		p.type = "join";
-		p.send(sock,predAdr,debug);
-		// wait for receiving information
-		p.clear();
-		p.receive(sock,debug);
-		succInfo = p.succInfo;
-		predInfo = p.predInfo;
-		hashRange = p.hashRange;
-		myInfo = new Pair<InetSocketAddress, Integer>(myAdr, hashRange.left);
-		addRoute(succInfo);
+		if (x >= 0) {
+			p.hash = x;
+			p.relayAdr = myAdr;
+		}
+		p.keyHash = KEY_HASH;
+		send(p, predAdr);
+		Packet join = p;
+		InetSocketAddress joinDest = predAdr; // where the join goes again
+		long resendAt = System.currentTimeMillis() + JOIN_MS;
+		// wait for receiving information; updates for the virtual nodes
+		// we have are applied, joins are passed on or, if they are for
+		// our ranges, whose pairs may still be on their way, refused
+		// (so two joining servers never wait for each other), and
+		// anything else waits until we have joined
+		String reason;
+		VNode v = null; // the new node, once the owner has answered
+		while (true) {
+			long now = System.currentTimeMillis();
+			if (now >= resendAt) {
+				// our join or the owner's answer may have been lost
+				send(join, joinDest);
+				resendAt = now + JOIN_MS;
+			}
+			p = new Packet();
+			InetSocketAddress adr = transport.receive(p, debug,
+							  (int) (resendAt - now));
+			if (adr == null) continue;
+			learnWire(p, adr);
+			reason = p.reason; // check() clears it
+			if (!p.check()) continue;
+			if (p.tag == tag && v == null && (p.type.equals("success") ||
+							  p.type.equals("handover"))) {
+				// the pairs are indexed by the ring's key hash
+				keyHash = (p.keyHash < 0 ? 0 : p.keyHash);
+				hashKnown.countDown();
+				v = new VNode();
+				v.succInfo = p.succInfo;
+				v.predInfo = p.predInfo;
+				v.hashRange = p.hashRange;
+				joinDest = adr;
+			}
+			if (p.tag == tag && (p.type.equals("handover") ||
+					     p.type.equals("failure")))
+				break;
+			if (p.tag == tag && p.type.equals("success"))
+				continue; // the links again
+			if (p.type.equals("update"))
+				handleUpdate(p, adr);
+			else if (p.type.equals("join") && p.hash >= 0 &&
+				 owner(p.hash) == null)
+				forward(p, p.hash);
+			else if (p.type.equals("join") && p.hash >= 0) {
+				p.type = "failure";
+				p.reason = "server is joining";
+				InetSocketAddress joinAdr =
+					(p.relayAdr != null ? p.relayAdr : adr);
+				p.relayAdr = null;
+				send(p, joinAdr);
+			} else
+				deferred.add(new Pair<Packet, InetSocketAddress>(p, adr));
+		}
+		if (!p.type.equals("handover")) {
+			System.err.println("join: " + reason);
+			// drop whatever part of the pairs did arrive
+			Pair<Integer, Integer> range =
+				(v != null ? v.hashRange : p.hashRange);
+			if (range != null)
+				map.removeRange(range.left, range.right);
+			return false;
+		}
+		v.myInfo = new Pair<InetSocketAddress, Integer>(myAdr, v.hashRange.left);
+		vnodes.add(v);
+		addRoute(v.succInfo);
+		return true;
+	}
+
+	/**
+	 * Split one of our virtual nodes at a position, adding a virtual node
+	 * that takes the range from there on; the pairs stay where they are.
+	 * 
+	 * @param u is the virtual node whose range holds x
+	 * @param x is the position, above the first hash of u's range
+	 */
+	public void split(VNode u, int x) {
+		VNode w = new VNode();
+		w.myInfo = new Pair<InetSocketAddress, Integer>(myAdr, x);
+		w.hashRange = new Pair<Integer, Integer>(x, u.hashRange.right);
+		w.predInfo = u.myInfo;
+		w.succInfo = u.succInfo;
+		vnodes.add(w);
+		Packet p = new Packet();
+		p.type = "update";
+		p.tag = new Random().nextInt(100000);
+		p.senderInfo = w.myInfo;
+		p.predInfo = w.myInfo;
+		sendUpdate(p, u.succInfo);
+		u.succInfo = w.myInfo;
+		u.hashRange = new Pair<Integer, Integer>(u.hashRange.left, x - 1);
+		sync(u);
+		sync(w);
+	}
+
+	/**
+	 * Pick a random position for a new virtual node, other than 0 (which
+	 * begins the first range) and the positions of our virtual nodes.
+	 */
+	public int newPosition(Random r) {
+		while (true) {
+			int x = 1 + r.nextInt(Integer.MAX_VALUE);
+			VNode u = owner(x);
+			if (u == null || u.hashRange.left != x) return x;
+		}
 	}
 
 	/**
@@ -410,148 +1282,625 @@ public class DhtServer {
 	 * @param p       is the received join packet
 	 * @param succAdr is the socket address of the host that sent the join packet
 	 *                (the new successor)
-	 *				This function handls join request. It divides its hash
-	 *				range by half and send the top half to the join server.
-	 *				It also sends succInfo and predInfo to the server to
-	 *				set up the links. It then sends update packet to its
-	 *				original successor to update its predecessor. It
-	 *				finally updates its own information and send transfer
-	 *				packets to the new server.
-	 */
-	public static void handleJoin(Packet p, InetSocketAddress succAdr) {
+	 *				This function handls join request. If the packet has
+	 *				a hash, it is the position of the new virtual node: if
+	 *				one of our ranges holds it, that range is split there,
+	 *				and otherwise the packet is forwarded. Without a hash,
+	 *				the range of our first virtual node is divided by half
+	 *				and the top half goes to the join server.
+	 *				It sends succInfo and predInfo to the server to set
+	 *				up the links, and streams it the pairs in its range,
+	 *				keeping the range until they are acknowledged, but
+	 *				letting go of the ring lock meanwhile (see
+	 *				moveRange). It
+	 *				then sends update packet to its original successor
+	 *				to update its predecessor, updates its own
+	 *				information and tells the server that the range is
+	 *				its own, in a handover packet. If the pairs cannot
+	 *				be streamed, the join fails and the range stays
+	 *				here. A join that we have answered with a handover
+	 *				or failure already is answered with it again.
+	 */
+	public void handleJoin(Packet p, InetSocketAddress succAdr) {
 		// your code here
-		// send success packet to new server
-		int left = hashRange.left.intValue();
-		int right = hashRange.right.intValue();
-		int mid = left + (right-left)/2;
+		InetSocketAddress joinAdr = (p.relayAdr != null ? p.relayAdr : succAdr);
+		Pair<InetSocketAddress, Integer> joinId =
+			new Pair<InetSocketAddress, Integer>(joinAdr, p.tag);
+		if (joinsDone.containsKey(joinId)) {
+			// the server missed our answer
+			send(joinsDone.get(joinId), joinAdr);
+			return;
+		}
+		VNode u;
+		int x;
+		if (p.hash < 0) {
+			u = vnodes.get(0);
+			x = u.hashRange.left + (u.hashRange.right - u.hashRange.left)/2 + 1;
+		} else {
+			u = owner(p.hash);
+			if (u == null) {
+				forward(p, p.hash);
+				return;
+			}
+			x = p.hash;
+		}
+		p.relayAdr = null;
+		int left = u.hashRange.left.intValue();
+		int right = u.hashRange.right.intValue();
+		if (x == left) {
+			p.type = "failure";
+			p.reason = "position " + x + " is taken";
+			send(p, joinAdr);
+			return;
+		}
+		if (p.keyHash < keyHash) {
+			p.type = "failure";
+			p.reason = "ring uses key hash version " + keyHash;
+			send(p, joinAdr);
+			return;
+		}
+		// send success packet to new server, with its links and the
+		// key hash that it stores the pairs under
+		Pair<InetSocketAddress, Integer> joinInfo = new Pair<InetSocketAddress, Integer>(joinAdr, x);
 		p.type = "success";
-		p.hashRange = new Pair<Integer, Integer>(mid+1, right);
-		p.succInfo = succInfo;
-		p.predInfo = myInfo;
-		p.senderInfo = myInfo;
-		p.send(sock,succAdr,debug);
-		// send update packet to original successor
-		p.clear();
-		p.type = "update";
-		p.tag = new Random().nextInt(100000);
-		p.senderInfo = myInfo;
-		Pair<InetSocketAddress, Integer> joinInfo = new Pair<InetSocketAddress, Integer>(succAdr, mid+1);
-		p.predInfo = joinInfo;
-		p.send(sock,succInfo.left,debug);
+		p.hashRange = new Pair<Integer, Integer>(x, right);
+		p.succInfo = u.succInfo;
+		p.predInfo = u.myInfo;
+		p.senderInfo = u.myInfo;
+		p.keyHash = keyHash;
+		send(p, joinAdr);
+		// stream the pairs to the new server; the range stays ours
+		// until they are all acknowledged
+		if (!moveRange(joinAdr, u, x, right)) {
+			p.type = "failure";
+			p.reason = "pairs could not be transferred";
+			send(p, joinAdr);
+			joinsDone.put(joinId, p);
+			return;
+		}
+		// send update packet to original successor; first, since that
+		// may be one of the new server's virtual nodes
+		Packet q = new Packet();
+		q.type = "update";
+		q.tag = new Random().nextInt(100000);
+		q.senderInfo = u.myInfo;
+		q.predInfo = joinInfo;
+		sendUpdate(q, u.succInfo);
 		// update some information
-		succInfo = joinInfo;
-		addRoute(succInfo);
-		hashRange = new Pair<Integer, Integer>(left, mid);
-		// send transfer packets to new server
-		p.clear();
-		p.type = "transfer";
-		for(Iterator<Map.Entry<String, String>> it = map.entrySet().iterator(); it.hasNext(); ) {
-		    Map.Entry<String, String> entry = it.next();
-		    int hashValue = hashit(entry.getKey());
-		    if(mid+1 <= hashValue && hashValue <= right) {
-		    	p.key = entry.getKey();
-		    	p.val = entry.getValue();
-		    	p.tag = new Random().nextInt(100000);
-		    	p.send(sock,succAdr,debug);
-		        it.remove();
-		    }
+		u.succInfo = joinInfo;
+		addRoute(joinInfo);
+		u.hashRange = new Pair<Integer, Integer>(left, x-1);
+		sync(u);
+		// the range is the new server's now
+		p.type = "handover";
+		send(p, joinAdr);
+		joinsDone.put(joinId, p);
+	}
+
+	/**
+	 * Find the virtual node whose range holds a hash.
+	 * 
+	 * @param hash is the hash
+	 * @return the virtual node, or null if the hash is not ours
+	 */
+	public VNode owner(int hash) {
+		for (VNode v : vnodes) {
+			Pair<Integer, Integer> r = v.hashRange;
+			if (r.left <= hash && hash <= r.right) return v;
+		}
+		return null;
+	}
+
+	/**
+	 * Find the virtual node that a packet about one is for.
+	 * 
+	 * @param p is an update, leave, stabilize or stabilized packet
+	 * @return the virtual node whose first hash is p's hash field, our
+	 *         first virtual node if p has none, or null if there is no
+	 *         such node (any more)
+	 */
+	public VNode target(Packet p) {
+		if (p.hash < 0) return (vnodes.isEmpty() ? null : vnodes.get(0));
+		for (VNode v : vnodes) {
+			if (v.myInfo.right == p.hash) return v;
+		}
+		return null;
+	}
+
+	/**
+	 * Stream the pairs whose hashes lie in a range to another server, and
+	 * delete them here once it has acknowledged them all.
+	 * 
+	 * @param dest is the socket address of the server, which the
+	 *             transport opens a stream to
+	 * @param lo   is the first hash of the range
+	 * @param hi   is the last hash of the range
+	 * @return true if the pairs were moved, false if every try failed,
+	 *         in which case they are kept here
+	 */
+	public boolean moveKeys(InetSocketAddress dest, int lo, int hi) {
+		if (!streamPairs(dest, map.range(lo, hi), new ArrayList<String>()))
+			return false;
+		// the pairs are safe at dest, so they can go
+		map.removeRange(lo, hi);
+		return true;
+	}
+
+	/**
+	 * Move the pairs in the upper part of a virtual node's range to a
+	 * joining server, as moveKeys does, but without holding the write
+	 * side of the ring lock, which the control thread holds when it
+	 * calls this, while the bulk of them streams: gets and puts of the
+	 * range go on here meanwhile, and the keys that are put or removed
+	 * are noted (see HashStore.watch). Once the stream is acknowledged,
+	 * the lock is taken again, and the values of those keys, and the
+	 * ones that were removed, follow in a second, short stream.
+	 * 
+	 * @param dest is the socket address of the joining server
+	 * @param u    is the virtual node
+	 * @param lo   is the first hash of the part that moves
+	 * @param hi   is the last hash of u's range
+	 * @return true if the pairs were moved, false if a stream failed or
+	 *         u's range changed meanwhile, in which case they are kept
+	 */
+	public boolean moveRange(InetSocketAddress dest, VNode u, int lo, int hi) {
+		map.watch(lo, hi);
+		boolean moved;
+		ringLock.writeLock().unlock();
+		try {
+			moved = streamPairs(dest, map.range(lo, hi),
+					    new ArrayList<String>());
+		} finally {
+			ringLock.writeLock().lock();
+		}
+		Set<String> written = map.unwatch();
+		// a leave may have taken the range while we let go of the lock
+		if (!moved || !vnodes.contains(u) || u.hashRange.right != hi)
+			return false;
+		Map<String, String> pairs = new LinkedHashMap<String, String>();
+		List<String> removed = new ArrayList<String>();
+		for (String key : written) {
+			String val = map.get(key);
+			if (val != null) pairs.put(key, val);
+			else removed.add(key);
+		}
+		if (!streamPairs(dest, pairs, removed)) return false;
+		map.removeRange(lo, hi);
+		return true;
+	}
+
+	/**
+	 * Stream pairs to another server, trying up to XFER_TRIES times. The
+	 * stream starts with XFER_STREAM and our key hash version, which a
+	 * joining server stores the pairs under, then the number of keys to
+	 * remove there and the keys; the pairs follow (see writePairs).
+	 * 
+	 * @param dest    is the socket address of the server
+	 * @param pairs   are the pairs
+	 * @param removed are the keys to remove
+	 * @return true once the server has acknowledged them, false if
+	 *         every try failed
+	 */
+	public boolean streamPairs(InetSocketAddress dest, Map<String, String> pairs,
+				   List<String> removed) {
+		for (int tries = 1; tries <= XFER_TRIES; tries++) {
+			int n = 0;
+			try (Transport.Stream s = transport.connect(dest)) {
+				DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(s.getOutputStream(), 65536));
+				out.writeByte(XFER_STREAM);
+				out.writeInt(keyHash);
+				out.writeInt(removed.size());
+				for (String key : removed)
+					out.writeUTF(key);
+				n = writePairs(s, out, pairs);
+			} catch (IOException e) {
+				System.err.println("transfer to " + dest + " failed (try " +
+						   tries + "): " + e);
+				try { Thread.sleep(100L << tries); }
+				catch (InterruptedException x) { return false; }
+				continue;
+			}
+			if (debug)
+				System.out.println("transferred " + n + " pairs to " +
+						   dest + "\n");
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Write pairs to a stream, then the end of the stream and the number
+	 * of pairs, and wait for the receiver to acknowledge them.
+	 * 
+	 * @param s     is the connection that the stream goes out on
+	 * @param out   is the stream
+	 * @param pairs are the pairs
+	 * @return the number of pairs written
+	 */
+	public int writePairs(Transport.Stream s, DataOutputStream out,
+				     Map<String, String> pairs) throws IOException {
+		int n = 0;
+		for (Map.Entry<String, String> entry : pairs.entrySet()) {
+			out.writeBoolean(true);
+			out.writeUTF(entry.getKey());
+			out.writeUTF(entry.getValue());
+			n++;
+		}
+		out.writeBoolean(false);
+		out.writeInt(n);
+		out.flush();
+		if (s.getInputStream().read() != 1)
+			throw new IOException("pairs not acknowledged");
+		return n;
+	}
+
+	/**
+	 * Accept streams of pairs from other servers, one at a time, storing
+	 * the pairs as they arrive, once we know the ring's key hash. A
+	 * stream that starts with XFER_STREAM gives the key hash, so a
+	 * joining server stores its pairs even if the success packet with
+	 * the key hash was lost, and the keys to remove before the pairs. A
+	 * complete stream, with as many pairs as the sender says it sent, is
+	 * acknowledged. A stream that starts with the byte Replicas.STREAM
+	 * brings copies of a range instead (see Replicas.accept).
+	 */
+	public void acceptXfers() {
+		while (true) {
+			try (Transport.Stream s = transport.accept()) {
+				DataInputStream in = new DataInputStream(
+					new BufferedInputStream(s.getInputStream(), 65536));
+				int first = in.read();
+				if (first == XFER_STREAM) {
+					int version = in.readInt();
+					if (hashKnown.getCount() > 0) {
+						keyHash = version;
+						hashKnown.countDown();
+					}
+					for (int r = in.readInt(); r > 0; r--) {
+						String key = in.readUTF();
+						map.remove(key, hashit(key));
+					}
+					first = in.read();
+				} else {
+					hashKnown.await();
+				}
+				if (first < 0) throw new EOFException();
+				if (first == Replicas.STREAM) {
+					replicas.accept(s, in);
+					continue;
+				}
+				int n = 0;
+				for (boolean more = (first != 0); more; more = in.readBoolean()) {
+					String key = in.readUTF();
+					map.put(key, hashit(key), in.readUTF());
+					n++;
+				}
+				if (in.readInt() != n) continue; // not acknowledged
+				s.getOutputStream().write(1);
+				s.getOutputStream().flush();
+				if (debug)
+					System.out.println("received " + n + " pairs from " +
+						s.getRemoteSocketAddress() + "\n");
+			} catch (IOException e) {
+				if (transport.isClosed()) return;
+				System.err.println("transfer failed: " + e);
+			} catch (InterruptedException e) {
+				return;
+			}
 		}
 	}
 
+	/**
+	 * Send copies of the pairs put in each of our ranges since the last
+	 * sync down its chain of replicas, and drop the copies we keep that
+	 * have not been synced for a while (see Replicas).
+	 */
+	public void syncReplicas() {
+		if (numReplicas == 0 || !replicating) return;
+		for (VNode v : vnodes)
+			sync(v);
+		replicas.expire();
+	}
+
+	/**
+	 * Send copies of the pairs in the range of one of our virtual nodes
+	 * to the first server of its chain of replicas, which passes them on;
+	 * only those put since the last sync, unless the range or successor
+	 * has changed.
+	 * 
+	 * @param v is the virtual node; called when its range or successor
+	 *          changes, and every SYNC_MS ms
+	 */
+	public void sync(VNode v) {
+		if (numReplicas == 0 || !replicating) return;
+		Pair<InetSocketAddress, Integer> next = nextServer(v.succInfo);
+		if (next == null) return; // alone on the ring
+		replicas.sync(next, v.hashRange.left, v.hashRange.right);
+	}
+
+	/**
+	 * Find the first server other than this one at or after a virtual
+	 * node, by following the successors of our own virtual nodes.
+	 * 
+	 * @param info is the address and first hash of a virtual node
+	 * @return the address and first hash of the other server's virtual
+	 *         node, or null if the ring has no other server
+	 */
+	public Pair<InetSocketAddress, Integer> nextServer(
+			Pair<InetSocketAddress, Integer> info) {
+		for (int i = 0; info != null && info.left.equals(myAdr); i++) {
+			VNode w = null;
+			for (VNode u : vnodes)
+				if (u.myInfo.right.equals(info.right)) w = u;
+			if (w == null || i >= vnodes.size()) return null;
+			info = w.succInfo;
+		}
+		return info;
+	}
+
+	/**
+	 * Handle a replicate packet, which passes a put down the chain of
+	 * replicas of its range (see Replicas.handleReplicate).
+	 * 
+	 * @param p         is a replicate packet
+	 * @param senderAdr is the socket address of the sender
+	 */
+	public void handleReplicate(Packet p, InetSocketAddress senderAdr) {
+		replicas.handleReplicate(p);
+	}
+
 	/**
 	 * Handle a get packet.
 	 * 
 	 * @param p         is a get packet
 	 * @param senderAdr is the socket address of the sender
-	 *			This function handles get packet. If the hash is in its
-	 *			range. It send the information back either to the client
+	 *			This function handles get packet. If the hash is in one
+	 *			of its ranges. It send the information back either to the client
 	 *			or to the relay server. If it's not in its range, it will
 	 *			first look up the informtion in cache. If it cannot find
 	 *			the entry, it will forward the request to another server.
 	 */
-	public static void handleGet(Packet p, InetSocketAddress senderAdr) {
+	public void handleGet(Packet p, InetSocketAddress senderAdr) {
 		// this version is incomplete; you will have to extend
 		// it to support caching
 		InetSocketAddress replyAdr;
 		int hash = hashit(p.key);
-		int left = hashRange.left.intValue();
-		int right = hashRange.right.intValue();
+		VNode v = owner(hash);
 
-		if (left <= hash && hash <= right) {
+		if (v != null) {
 			// respond to request using map
 			if (p.relayAdr != null) {
 				replyAdr = p.relayAdr;
-				p.senderInfo = myInfo;
+				p.senderInfo = v.myInfo;
 			} else {
 				replyAdr = senderAdr;
 			}
-			if (map.containsKey(p.key)) {
+			String val = map.get(p.key);
+			if (val != null) {
 				p.type = "success";
-				p.val = map.get(p.key);
+				p.val = val;
+				p.lease = leaseMs;
 			} else {
 				p.type = "no match";
 			}
-			p.send(sock, replyAdr, debug);
+			if (numReplicas > 0 && p.relayAdr != null) {
+				// tell the relay where the copies are
+				p.hashRange = v.hashRange;
+				p.succInfo = nextServer(v.succInfo);
+			}
+			served.incrementAndGet();
+			answer(p, replyAdr);
 		} else {
-			if(cacheOn){
-				// Iterate through cache
-				for (Map.Entry<String, String> entry : cache.entrySet()) {
-					if(entry.getKey().equals(p.key)) {
-						if (p.relayAdr != null) {
-							replyAdr = p.relayAdr;
-							p.senderInfo = myInfo;
-						} else {
-							replyAdr = senderAdr;
-						}
-						p.type = "success";
-						p.val = entry.getValue();
-						p.send(sock, replyAdr, debug);
-						return;
+			// answer from our copy of the key's range, if we have the
+			// key; if not, only the owner can say there is no match
+			Replicas.Range r = (numReplicas > 0 ? replicas.rangeFor(hash) : null);
+			String copy = (r != null ? replicas.get(p.key) : null);
+			if (copy != null) {
+				if (p.relayAdr != null) {
+					replyAdr = p.relayAdr;
+					p.senderInfo = vnodes.get(0).myInfo;
+					p.hashRange = new Pair<Integer, Integer>(r.lo, r.hi);
+					p.succInfo = r.next;
+				} else {
+					replyAdr = senderAdr;
+				}
+				p.type = "success";
+				p.val = copy;
+				p.lease = leaseMs;
+				served.incrementAndGet();
+				answer(p, replyAdr);
+				return;
+			}
+			// look the key up in the cache, unless this is a relay's
+			// refresh (with a relayAdr but no clientAdr), which must
+			// reach the owner to get a new lease
+			if(cacheOn && (p.relayAdr == null || p.clientAdr != null)){
+				long now = System.currentTimeMillis();
+				String val = cache.get(p.key, now);
+				if (val != null) {
+					if (cache.refreshDue(p.key, now))
+						refresh(p.key);
+					if (p.relayAdr != null) {
+						replyAdr = p.relayAdr;
+						p.senderInfo = vnodes.get(0).myInfo;
+					} else {
+						replyAdr = senderAdr;
 					}
+					p.type = "success";
+					p.val = val;
+					answer(p, replyAdr);
+					return;
 				}
 			}
-			// forward around DHT
+			// forward around DHT, or straight to a server that holds
+			// the key's range, if we know of any; with coalescing on,
+			// not if a get for the key is in flight already
 			if (p.relayAdr == null) {
+				if (coalesceOn && inFlight.coalesce(p.key, senderAdr, p.tag))
+					return;
 				p.relayAdr = myAdr;
 				p.clientAdr = senderAdr;
+				InetSocketAddress holder =
+					(numReplicas > 0 ? replicas.pickHolder(hash) : null);
+				if (holder != null && !holder.equals(myAdr)) {
+					send(p, holder);
+					return;
+				}
 			}
 			forward(p, hash);
 		}
 	}
 
+	/**
+	 * Send the answer to a get or put. In direct mode, the answer to a
+	 * request that came through a relay goes straight to the client,
+	 * without the fields for the relay, and what the relay would have
+	 * learned from it follows in a hint (see hint); otherwise the answer
+	 * goes to replyAdr.
+	 * 
+	 * @param p        is the answer, with the fields of the request
+	 * @param replyAdr is the socket address of the relay or client
+	 */
+	public void answer(Packet p, InetSocketAddress replyAdr) {
+		if (!directOn || p.relayAdr == null || p.clientAdr == null) {
+			send(p, replyAdr);
+			return;
+		}
+		hint(p);
+		InetSocketAddress client = p.clientAdr;
+		p.relayAdr = null;
+		p.clientAdr = null;
+		p.senderInfo = null;
+		p.hashRange = null;
+		p.succInfo = null;
+		send(p, client);
+	}
+
+	/**
+	 * Send a relay hints about an answer that is going to its client.
+	 * The virtual node that answered (senderInfo), which becomes a route
+	 * of the relay, and with replicas on the range and the next holder of
+	 * its chain (see Replicas.learnHolders), go at once in a small hint
+	 * packet, so the relay learns its routes as it would from the
+	 * answers; with coalescing on, so do the answer's key, value and ttl
+	 * and the clientAdr, which the relay needs to answer the clients that
+	 * wait for it. The hint has the tag of the request. With caching on,
+	 * a leased pair that the relay would have cached is added to the
+	 * relay's batch of pairs (see HintBatcher).
+	 * 
+	 * @param p is the answer, with the fields of the request
+	 */
+	public void hint(Packet p) {
+		InetSocketAddress relay = p.relayAdr;
+		Packet h = new Packet();
+		h.type = "hint";
+		h.tag = p.tag;
+		h.senderInfo = p.senderInfo;
+		h.hashRange = p.hashRange;
+		h.succInfo = p.succInfo;
+		if (coalesceOn && (p.type.equals("success") ||
+				   p.type.equals("no match"))) {
+			h.key = p.key;
+			h.val = p.val;
+			h.ttl = p.ttl;
+			h.clientAdr = p.clientAdr;
+		}
+		hints.send(h, relay);
+		if (cacheOn && p.type.equals("success") && p.val != null &&
+		    p.lease > 0)
+			hints.add(relay, p.key, p.val);
+	}
+
+	/**
+	 * Handle a hint packet, which tells a relay what it would have
+	 * learned from the answers that went to its clients directly. The
+	 * sender becomes a route (see handlePacket), the range and the next
+	 * holder, if given, are learned as from a reply, and the pairs, if
+	 * any, are cached under the packet's lease. With coalescing on, an
+	 * answer in the hint is passed on to the clients that wait for it,
+	 * and with proximity on, the hint is timed like a reply.
+	 * 
+	 * @param p         is a hint packet
+	 * @param senderAdr is the socket address of the sender
+	 */
+	public void handleHint(Packet p, InetSocketAddress senderAdr) {
+		if (proximityOn)
+			sampleRtt(senderAdr, p.tag);
+		if (numReplicas > 0)
+			replicas.learnHolders(p);
+		if (cacheOn && p.hints != null) {
+			long now = System.currentTimeMillis();
+			for (Map.Entry<String, String> e : p.hints.entrySet())
+				cache.put(e.getKey(), e.getValue(), now, p.lease);
+		}
+		if (coalesceOn && p.key != null && p.clientAdr != null) {
+			Packet r = new Packet();
+			r.type = (p.val != null ? "success" : "no match");
+			r.key = p.key;
+			r.val = p.val;
+			r.tag = p.tag;
+			r.ttl = p.ttl;
+			answerWaiters(r, p.clientAdr);
+		}
+	}
+
+	/**
+	 * Pass the answer to a get that was forwarded for a client on to the
+	 * other clients that wait for it, each with the tag of its own get
+	 * (see Coalescer).
+	 * 
+	 * @param p      is the answer, without the fields for the relay
+	 * @param client is the socket address of the client that the get
+	 *               was forwarded for
+	 */
+	public void answerWaiters(Packet p, InetSocketAddress client) {
+		if (p.key == null) return;
+		List<Pair<InetSocketAddress, Integer>> waiters =
+			inFlight.answered(p.key, p.tag, client);
+		if (waiters == null) return;
+		int tag = p.tag;
+		for (Pair<InetSocketAddress, Integer> w : waiters) {
+			p.tag = w.right;
+			send(p, w.left);
+		}
+		p.tag = tag;
+	}
+
 	/**
 	 * Handle a put packet.
 	 * 
 	 * @param p         is a put packet
 	 * @param senderAdr is the the socket address of the sender
-	 *			This function handles put packet. If the hash is in its
-	 *			range, it handles the request and sends information back 
+	 *			This function handles put packet. If the hash is in one
+	 *			of its ranges, it handles the request and sends information back 
 	 *			either to the client or to the relay server. If it's
 	 *		    not in its range, it will first look up the informtion
 	 *			in cache. If it finds the entry, it will delete it and
-	 *			then forward request to another server.
+	 *			then forward request to another server. With coalescing
+	 *			on, it also closes the key's get in flight.
 	 */
-	public static void handlePut(Packet p, InetSocketAddress senderAdr) {
+	public void handlePut(Packet p, InetSocketAddress senderAdr) {
 		// your code here
 		InetSocketAddress replyAdr;
 		int hash = hashit(p.key);
-		int left = hashRange.left.intValue();
-		int right = hashRange.right.intValue();
+		VNode v = owner(hash);
 
-		if (left <= hash && hash <= right) {
+		if (v != null) {
 			// respond to request using map
 			if (p.relayAdr != null) {
 				replyAdr = p.relayAdr;
-				p.senderInfo = myInfo;
+				p.senderInfo = v.myInfo;
 			} else {
 				replyAdr = senderAdr;
 			}
 			if (p.val != null) {
-				map.put(p.key, p.val); //put or update
+				map.put(p.key, hash, p.val); //put or update
 				p.type = "success";
+				p.lease = leaseMs;
 			} else {
 				// remove instruction
-				if(map.remove(p.key) != null) {
+				if(map.remove(p.key, hash)) {
 					p.type = "success";
 				} else {
 					int ttl = p.ttl; // Use the original information
@@ -561,20 +1910,19 @@ public class DhtServer {
 					p.reason = "no corresponding (key, value) pair";
 					p.tag = tag;
 					p.ttl = ttl;
-					p.senderInfo = myInfo;
+					p.senderInfo = v.myInfo;
 				}
 			}
-			p.send(sock, replyAdr, debug);
+			if (numReplicas > 0 && p.type.equals("success"))
+				replicas.replicate(p, v.hashRange.left, nextServer(v.succInfo));
+			answer(p, replyAdr);
 		} else {
 			if(cacheOn){
-				// Iterate through cache
-				for (Map.Entry<String, String> entry : cache.entrySet()) {
-					if(entry.getKey().equals(p.key)) {
-						cache.remove(p.key);
-						break;
-					}
-				}
+				// drop the cached copy, if any
+				cache.remove(p.key);
 			}
+			if (coalesceOn)
+				inFlight.close(p.key);
 			// forward around DHT
 			if (p.relayAdr == null) {
 				p.relayAdr = myAdr;
@@ -594,9 +1942,9 @@ public class DhtServer {
 	 *                  It silently puts the entry into map and then
 	 *                  return.
 	 */
-	public static void handleXfer(Packet p, InetSocketAddress senderAdr) {
+	public void handleXfer(Packet p, InetSocketAddress senderAdr) {
 		// your code here
-		map.put(p.key, p.val);
+		map.put(p.key, hashit(p.key), p.val);
 	}
 
 	/**
@@ -610,19 +1958,52 @@ public class DhtServer {
 	 *                  packet. It assumes it's the relay server and clears
 	 *                  all the server information and then send the packet
 	 *                  back to the client. If the packet is success and has
-	 *                  key/value, it will put the entry into cache.
+	 *                  key/value, it will put the entry into cache, under the
+	 *                  lease granted by the owner. A reply without clientAdr
+	 *                  answers one of our own refreshes and is not sent on.
+	 *                  With proximity on, the reply is also timed (see
+	 *                  sampleRtt).
 	 */
-	public static void handleReply(Packet p, InetSocketAddress senderAdr) {
+	public void handleReply(Packet p, InetSocketAddress senderAdr) {
 		// your code here
+		if (proximityOn)
+			sampleRtt(senderAdr, p.tag);
+		if (numReplicas > 0)
+			replicas.learnHolders(p);
+		p.hashRange = null;
+		p.succInfo = null;
 		p.relayAdr = null;
 		InetSocketAddress client = p.clientAdr;
 		p.clientAdr = null;
 		p.senderInfo = null;
 		// Add into cache
-		if(cacheOn && p.type.equals("success") && !cache.containsKey(p.key) && p.val != null) {
-			cache.put(p.key, p.val);
+		if(cacheOn && p.type.equals("success") && p.key != null && p.val != null) {
+			cache.put(p.key, p.val, System.currentTimeMillis(), p.lease);
+		}
+		if (client == null) {
+			// reply to a refresh; a key that has gone is uncached
+			if (cacheOn && p.type.equals("no match") && p.key != null)
+				cache.remove(p.key);
+			return;
 		}
-		p.send(sock,client,debug);
+		send(p, client);
+		if (coalesceOn)
+			answerWaiters(p, client);
+	}
+
+	/**
+	 * Renew the lease of a cached key, by sending a get for it to its
+	 * owner, with this server as relayAdr and no clientAdr.
+	 * 
+	 * @param key is the cached key
+	 */
+	public void refresh(String key) {
+		Packet p = new Packet();
+		p.type = "get";
+		p.key = key;
+		p.tag = new Random().nextInt(100000);
+		p.relayAdr = myAdr;
+		forward(p, hashit(key));
 	}
 
 	/**
@@ -631,7 +2012,7 @@ public class DhtServer {
 	 * @param p         is a packet
 	 * @param senderAdr is the address (ip:port) of the sender
 	 */
-	public static void handlePacket(Packet p, InetSocketAddress senderAdr) {
+	public void handlePacket(Packet p, InetSocketAddress senderAdr) {
 		if (p.senderInfo != null & !p.type.equals("leave"))
 			addRoute(p.senderInfo);
 		if (p.type.equals("get")) {
@@ -640,6 +2021,8 @@ public class DhtServer {
 			handlePut(p, senderAdr);
 		} else if (p.type.equals("transfer")) {
 			handleXfer(p, senderAdr);
+		} else if (p.type.equals("replicate")) {
+			handleReplicate(p, senderAdr);
 		} else if (p.type.equals("success") || p.type.equals("no match") || p.type.equals("failure")) {
 			handleReply(p, senderAdr);
 		} else if (p.type.equals("join")) {
@@ -648,6 +2031,209 @@ public class DhtServer {
 			handleUpdate(p, senderAdr);
 		} else if (p.type.equals("leave")) {
 			handleLeave(p, senderAdr);
+		} else if (p.type.equals("find")) {
+			handleFind(p, senderAdr);
+		} else if (p.type.equals("found")) {
+			handleFound(p, senderAdr);
+		} else if (p.type.equals("stabilize")) {
+			handleStabilize(p, senderAdr);
+		} else if (p.type.equals("stabilized")) {
+			handleStabilized(p, senderAdr);
+		} else if (p.type.equals("hint")) {
+			handleHint(p, senderAdr);
+		} else if (p.type.equals("stats")) {
+			handleStats(p, senderAdr);
+		}
+	}
+
+	/**
+	 * Handle a stats packet, by sending back a success packet whose value
+	 * is "pairs=" followed by the number of stored pairs, the number of
+	 * virtual nodes, the share of the hash space that they own, the key
+	 * hash version, the number of gets answered from the stored pairs
+	 * or copies, with replicas on the number of copies, in direct mode
+	 * the number of hint packets sent, with coalescing on the number of
+	 * gets answered with the answer to another client's get, and with
+	 * caching on the cache's size and counters.
+	 * 
+	 * @param p         is a stats packet
+	 * @param senderAdr is the socket address of the sender
+	 */
+	public void handleStats(Packet p, InetSocketAddress senderAdr) {
+		p.type = "success";
+		long owned = 0;
+		for (VNode v : vnodes)
+			owned += v.hashRange.right - v.hashRange.left + 1L;
+		p.val = String.format("pairs=%d vnodes=%d share=%.4f keyhash=%d " +
+				      "served=%d", map.size(), vnodes.size(),
+				      owned / (double) (1L << 31), keyHash,
+				      served.get()) +
+			(numReplicas > 0 ? " copies=" + replicas.size() : "") +
+			(directOn ? " hints=" + hints.sent() : "") +
+			(coalesceOn ? " coalesced=" + inFlight.coalesced() : "") +
+			(cacheOn ? " " + cache.stats() : "");
+		send(p, senderAdr);
+	}
+
+	/**
+	 * Get the hash that a finger points at.
+	 * 
+	 * @param i is the number of the finger
+	 * @return myHash+2^i, modulo 2^31, where myHash is the first hash of
+	 *         our first virtual node
+	 */
+	public int fingerTarget(int i) {
+		return (int) ((vnodes.get(0).myInfo.right.longValue() + (1L << i)) %
+			      (1L << 31));
+	}
+
+	/**
+	 * Refresh the next FIX_BATCH fingers.
+	 * 
+	 *			For each finger whose target hash is in one of this
+	 *			server's own ranges, the finger is cleared; for the
+	 *			others, a find packet for the target is forwarded
+	 *			around the DHT, with the finger's number as tag and
+	 *			this server as relayAdr, so the owner of the target
+	 *			can answer directly.
+	 */
+	public void fixFingers() {
+		if (vnodes.isEmpty()) return;
+		for (int n = 0; n < FIX_BATCH; n++) {
+			int i = nextFinger;
+			nextFinger = (nextFinger + 1) % NUM_FINGERS;
+			int target = fingerTarget(i);
+			if (owner(target) != null) {
+				setFinger(i, null);
+				continue;
+			}
+			Packet p = new Packet();
+			p.type = "find";
+			p.hash = target;
+			p.tag = i;
+			p.relayAdr = myAdr;
+			forward(p, target);
+		}
+	}
+
+	/**
+	 * Handle a find packet.
+	 * 
+	 * @param p         is a find packet
+	 * @param senderAdr is the socket address of the sender
+	 *			If the hash is in one of this server's ranges, a found
+	 *			packet with that virtual node's senderInfo is sent to
+	 *			the relayAdr of the find; otherwise the find is
+	 *			forwarded.
+	 */
+	public void handleFind(Packet p, InetSocketAddress senderAdr) {
+		VNode v = owner(p.hash);
+		if (v != null) {
+			p.type = "found";
+			p.senderInfo = v.myInfo;
+			send(p, p.relayAdr);
+		} else {
+			forward(p, p.hash);
+		}
+	}
+
+	/**
+	 * Handle a found packet.
+	 * 
+	 * @param p         is a found packet, answering one of our finds
+	 * @param senderAdr is the socket address of the sender
+	 *			The senderInfo of the packet becomes the finger whose
+	 *			number is the tag (or, if it is one of our own virtual
+	 *			nodes, the finger is cleared), unless the answer is for
+	 *			a target that this finger no longer has.
+	 */
+	public void handleFound(Packet p, InetSocketAddress senderAdr) {
+		if (p.tag >= NUM_FINGERS || p.hash != fingerTarget(p.tag))
+			return;
+		setFinger(p.tag, p.senderInfo.left.equals(myAdr) ? null : p.senderInfo);
+	}
+
+	/**
+	 * Set a finger. If debug is true and the set of fingers changes, print
+	 * the string "fingers=" followed by the distinct fingers.
+	 * 
+	 * @param i is the number of the finger
+	 * @param f is the new finger (may be null)
+	 */
+	public synchronized void setFinger(int i,
+					Pair<InetSocketAddress, Integer> f) {
+		Pair<InetSocketAddress, Integer> old = fingers.get(i);
+		if (f == null ? old == null : f.equals(old)) return;
+		fingers.set(i, f);
+		if (proximityOn && f != null)
+			proximity.ping(f);
+		if (debug) {
+			LinkedHashSet<Pair<InetSocketAddress, Integer>> distinct =
+				new LinkedHashSet<Pair<InetSocketAddress, Integer>>();
+			for (Pair<InetSocketAddress, Integer> g : fingers)
+				if (g != null) distinct.add(g);
+			System.out.println("fingers=" + distinct + "\n");
+		}
+	}
+
+	/**
+	 * Ask the successor of each virtual node for its predecessor, to learn
+	 * of a server that has joined between the two.
+	 */
+	public void stabilize() {
+		for (VNode v : vnodes) {
+			Pair<InetSocketAddress, Integer> succ = v.succInfo;
+			if (succ == null || succ.left.equals(myAdr)) continue;
+			Packet p = new Packet();
+			p.type = "stabilize";
+			p.tag = new Random().nextInt(100000);
+			p.senderInfo = v.myInfo;
+			p.hash = succ.right;
+			send(p, succ.left);
+		}
+	}
+
+	/**
+	 * Handle a stabilize packet, by sending the predInfo of the virtual node
+	 * it is for back, with the sender's first hash as hash.
+	 * 
+	 * @param p         is a stabilize packet
+	 * @param senderAdr is the socket address of the sender
+	 */
+	public void handleStabilize(Packet p, InetSocketAddress senderAdr) {
+		VNode v = target(p);
+		if (v == null) return;
+		p.type = "stabilized";
+		p.predInfo = v.predInfo;
+		p.hash = (p.senderInfo != null ? p.senderInfo.right : -1);
+		p.senderInfo = v.myInfo;
+		send(p, senderAdr);
+	}
+
+	/**
+	 * Handle a stabilized packet from the successor.
+	 * 
+	 * @param p         is a stabilized packet carrying the successor's
+	 *                  predInfo
+	 * @param senderAdr is the socket address of the sender
+	 *			If that predecessor lies strictly between the virtual
+	 *			node the packet is for and its successor on the ring,
+	 *			it becomes the successor.
+	 */
+	public void handleStabilized(Packet p, InetSocketAddress senderAdr) {
+		Pair<InetSocketAddress, Integer> x = p.predInfo;
+		VNode v = target(p);
+		if (x == null || v == null || x.equals(v.myInfo) ||
+		    !senderAdr.equals(v.succInfo.left))
+			return;
+		int me = v.myInfo.right.intValue();
+		int toX = ringDist(me, x.right.intValue());
+		int toSucc = ringDist(me, v.succInfo.right.intValue());
+		// a successor at our own position means we are alone on the ring
+		if (0 < toX && (toSucc == 0 || toX < toSucc)) {
+			v.succInfo = x;
+			addRoute(v.succInfo);
+			sync(v);
 		}
 	}
 
@@ -657,19 +2243,24 @@ public class DhtServer {
 	 * @param newRoute is a pair (addr,hash) where addr is the socket address for
 	 *                 some server and hash is the first hash in that server's range
 	 *
-	 *                 If the number of entries in the table exceeds the max number
+	 *                 Routes to this server's own virtual nodes are not added. If
+	 *                 the number of entries in the table exceeds the max number
 	 *                 allowed, the first entry that does not refer to the successor
-	 *                 of this server, is removed. If debug is true and the set of
-	 *                 stored routes does change, print the string "rteTbl=" +
-	 *                 rteTbl. (IMPORTANT)
+	 *                 of one of this server's virtual nodes, is removed. If debug
+	 *                 is true and the set of stored routes does change, print the
+	 *                 string "rteTbl=" + rteTbl. (IMPORTANT) Changes to the table
+	 *                 are made while holding its lock.
 	 */
-	public static void addRoute(Pair<InetSocketAddress, Integer> newRoute) {
+	public void addRoute(Pair<InetSocketAddress, Integer> newRoute) {
 		// your code here
-		if (!rteTbl.contains(newRoute)) {
+		if (rteTbl.contains(newRoute)) return; // the usual case
+		if (newRoute.left.equals(myAdr)) return; // forward() knows these
+		synchronized (rteTbl) {
+			if (rteTbl.contains(newRoute)) return;
 			if (rteTbl.size() >= numRoutes) {
-				for (Iterator<Pair<InetSocketAddress, Integer>> it = rteTbl.iterator(); it.hasNext();) {
-				    if (!it.next().equals(succInfo)) {
-				    	it.remove();
+				for (Pair<InetSocketAddress, Integer> route : rteTbl) {
+				    if (!isSuccessor(route)) {
+				    	rteTbl.remove(route);
 				    	break;
 				    }
 				}
@@ -681,6 +2272,21 @@ public class DhtServer {
 				}
 			}
 		}
+		if (proximityOn)
+			proximity.ping(newRoute);
+	}
+
+	/**
+	 * Test if a server is the successor of one of our virtual nodes.
+	 * 
+	 * @param route is a pair (addr,hash) for some server
+	 * @return true if it is a successor
+	 */
+	public boolean isSuccessor(Pair<InetSocketAddress, Integer> route) {
+		for (VNode v : vnodes) {
+			if (route.equals(v.succInfo)) return true;
+		}
+		return false;
 	}
 
 	/**
@@ -692,16 +2298,20 @@ public class DhtServer {
 	 *                If the route information exists in current entries, remove it.
 	 *                Otherwise, do nothing. If debug is true and the set of stored
 	 *                routes does change, print the string "rteTbl=" + rteTbl.
-	 *                (IMPORTANT)
+	 *                (IMPORTANT) The route is also dropped from the near
+	 *                servers.
 	 */
-	public static void removeRoute(Pair<InetSocketAddress, Integer> rmRoute) {
+	public void removeRoute(Pair<InetSocketAddress, Integer> rmRoute) {
 		// your code here
-		if (rteTbl.contains(rmRoute)) {
-			rteTbl.remove(rmRoute);
-			if (debug) {
-				System.out.println("rteTbl=" + rteTbl + "\n");
+		synchronized (rteTbl) {
+			if (rteTbl.remove(rmRoute)) {
+				if (debug) {
+					System.out.println("rteTbl=" + rteTbl + "\n");
+				}
 			}
 		}
+		if (proximityOn)
+			proximity.remove(rmRoute);
 	}
 
 	/**
@@ -716,22 +2326,129 @@ public class DhtServer {
 	 *             minimize the difference hash-firstHash, where the difference is
 	 *             interpreted modulo the range of hash values. IMPORTANT POINT -
 	 *             handle "wrap-around" correctly. Once a server is selected, p is
-	 *             sent to that server.
+	 *             sent to that server. With fingers on, the fingers are
+	 *             candidates as well as the routes. So is each of our own
+	 *             virtual nodes, which leads to its successor; no other route
+	 *             to this server is used, so a packet is never sent to
+	 *             ourselves. With proximity on, the near servers are
+	 *             candidates too, a candidate that gets less close but
+	 *             is nearer on the network may be picked instead of the
+	 *             closest (see nearer), and a get or put of our own
+	 *             client is timed (see sampleRtt). A packet that has no
+	 *             route, before we have joined, is dropped.
 	 */
-	public static void forward(Packet p, int hash) {
+	public void forward(Packet p, int hash) {
 		// your code here
 		int minDiff = Integer.MAX_VALUE;
-		InetSocketAddress fwdAdr = null;
-		for (Iterator<Pair<InetSocketAddress, Integer>> it = rteTbl.iterator(); it.hasNext();) {
+		Pair<InetSocketAddress, Integer> fwdRoute = null;
+		for (VNode v : vnodes) {
+			int mod = ringDist(v.myInfo.right, hash);
+			if (fwdRoute == null || mod < minDiff) {
+				minDiff = mod;
+				fwdRoute = v.succInfo;
+			}
+		}
+		List<Pair<InetSocketAddress, Integer>> candidates = rteTbl;
+		if (fingersOn || proximityOn) {
+			candidates = new ArrayList<Pair<InetSocketAddress, Integer>>(rteTbl);
+			if (fingersOn)
+				for (Pair<InetSocketAddress, Integer> f : fingers)
+					if (f != null) candidates.add(f);
+			if (proximityOn)
+				candidates.addAll(proximity.near());
+		}
+		for (Iterator<Pair<InetSocketAddress, Integer>> it = candidates.iterator(); it.hasNext();) {
 			Pair<InetSocketAddress, Integer> srvInfo = it.next();
-			int firstHash = srvInfo.right.intValue();
-			int diff = hash - firstHash;
-			int mod = Math.floorMod(diff,Integer.MAX_VALUE);
+			if (srvInfo.left.equals(myAdr)) continue;
+			int mod = ringDist(srvInfo.right.intValue(), hash);
 		    if (mod < minDiff) {
 		    	minDiff = mod;
-		    	fwdAdr = srvInfo.left;
+		    	fwdRoute = srvInfo;
 		    }
 		}
-		p.send(sock,fwdAdr,debug);
+		if (fwdRoute == null) {
+			// no virtual nodes or routes yet, as we are still joining;
+			// the packet is dropped, like a lost one
+			if (debug)
+				System.out.println("no route for " + p.type + " to " +
+						   hash + "\n");
+			return;
+		}
+		if (proximityOn) {
+			fwdRoute = nearer(hash, minDiff, fwdRoute, candidates);
+			if (myAdr.equals(p.relayAdr) &&
+			    (p.type.equals("get") || p.type.equals("put")))
+				proximity.time(p.tag, fwdRoute);
+		}
+		send(p, fwdRoute.left);
+	}
+
+	/**
+	 * The distance from one hash to another, going up the ring of 2^31
+	 * hashes, as for the finger targets (see fingerTarget).
+	 * 
+	 * @param from is the first hash
+	 * @param to   is the second hash
+	 * @return (to - from) modulo 2^31
+	 */
+	public static int ringDist(int from, int to) {
+		return (to - from) & Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Pick the candidate for forwarding that is likely to get a packet to
+	 * the server that owns a hash soonest (see Proximity.pick). Only the
+	 * candidates that make progress are considered: the successors of our
+	 * virtual nodes and the candidates closer to the hash than we are, so
+	 * that a packet never goes back around the ring.
+	 * 
+	 * @param hash       is the hash that a packet is forwarded to
+	 * @param minDiff    is the distance of the closest candidate to it
+	 * @param closest    is the closest candidate
+	 * @param candidates are the routes, fingers and near servers to
+	 *                   consider, besides the successors of our virtual
+	 *                   nodes
+	 * @return the route to forward the packet to
+	 */
+	private Pair<InetSocketAddress, Integer> nearer(int hash, int minDiff,
+			Pair<InetSocketAddress, Integer> closest,
+			List<Pair<InetSocketAddress, Integer>> candidates) {
+		if (!proximity.hasRtt(closest.left)) return closest;
+		// the candidates that make progress, with their distances
+		int self = Integer.MAX_VALUE;
+		List<Pair<Pair<InetSocketAddress, Integer>, Integer>> ahead =
+			new ArrayList<Pair<Pair<InetSocketAddress, Integer>, Integer>>();
+		for (VNode v : vnodes) {
+			int mod = ringDist(v.myInfo.right, hash);
+			self = Math.min(self, mod);
+			ahead.add(new Pair<Pair<InetSocketAddress, Integer>, Integer>(
+				v.succInfo, mod));
+		}
+		for (Pair<InetSocketAddress, Integer> srvInfo : candidates) {
+			int mod = ringDist(srvInfo.right, hash);
+			if (mod < self && !srvInfo.left.equals(myAdr))
+				ahead.add(new Pair<Pair<InetSocketAddress, Integer>,
+						   Integer>(srvInfo, mod));
+		}
+		return proximity.pick(closest, minDiff, self, ahead);
+	}
+
+	/**
+	 * Time the answer to a get or put that we forwarded for a client, or
+	 * to a ping (see Proximity.sample). The RTTs of servers that are no
+	 * longer routes, fingers, near servers or successors are dropped once
+	 * too many servers have one.
+	 * 
+	 * @param adr is the socket address of the server that answered
+	 * @param tag is the tag of the answer
+	 */
+	private void sampleRtt(InetSocketAddress adr, int tag) {
+		if (!proximity.sample(adr, tag)) return;
+		Set<InetSocketAddress> keep = new HashSet<InetSocketAddress>();
+		for (Pair<InetSocketAddress, Integer> r : rteTbl) keep.add(r.left);
+		for (Pair<InetSocketAddress, Integer> f : fingers)
+			if (f != null) keep.add(f.left);
+		for (VNode v : vnodes) keep.add(v.succInfo.left);
+		proximity.retain(keep);
 	}
 }
@@ -0,0 +1,317 @@
+import java.io.*;
+import java.lang.management.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+ * DhtSim.java
+ * Measures DHT rings of growing size, with all of their DhtServers
+ * running in this one process. For each ring size, it starts that many
+ * servers, each joining through a randomly chosen earlier one, replays a
+ * workload of puts and gets through randomly chosen servers, one
+ * request at a time, and prints a line with
+ *   - the time the joins took,
+ *   - the hops per get, read off the ttl of the reply as in DhtHops,
+ *   - the latency of the gets, from request to reply, in microseconds,
+ *   - the CPU time that the servers' threads spent per request, in
+ *     microseconds (the threads of the simulation itself excluded, but
+ *     with delay= the MemNetwork's thread included),
+ *   - the load on the servers: the largest number of packets a server
+ *     received during the replay, and the largest number of pairs a
+ *     server stores, divided by their means (1.00 is perfectly even),
+ *   - the requests that got no reply plus the packets the MemNetwork
+ *     lost, and the gets that found no value.
+ * Then it closes the servers and goes on to the next size.
+ *
+ * By default the servers talk over a MemNetwork; with "udp" they use
+ * SocketTransports on the loopback address instead. The arguments are
+ *   sizes=n,n,...	ring sizes (default 16,64,256,1024)
+ *   keys=K		the generated workload puts K keys, key0 to key(K-1)
+ *			(default 10000) ...
+ *   gets=G		... then gets G of them, chosen at random (default 10000)
+ *   workload=file	replay the lines of a file instead, each either
+ *			"put key value", "put key" (a remove) or "get key"
+ *   routes=R		routes per server (default lg of the ring size)
+ *   settle=s		seconds to wait between the joins and the replay,
+ *			for the fingers to settle (default 0)
+ *   delay=us		give the MemNetwork's links delays of up to us
+ *			microseconds: every address is put at a random
+ *			point of a square, the same one in every run, and a
+ *			link's delay is proportional to the distance between
+ *			its ends, with us for the diagonal (default 0, no
+ *			delays)
+ *   regions=R		with delay=, put every address in one of R regions
+ *			at random, close to a random point of the square
+ *			that is the region's, so that links within a region
+ *			are short (default 0, anywhere in the square)
+ *   udp		use sockets rather than a MemNetwork
+ * and any other option of DhtServer, such as fingers, vnodes=V or
+ * replicas=k, which every server gets. The servers run without workers
+ * unless a workers= option says otherwise, since thousands of servers
+ * share the process's processors anyway. To see what the proximity
+ * option gains, compare runs with the same delay= with and without it.
+ */
+public class DhtSim {
+	static final long WAIT_MS = 2000; // time to wait for a reply
+
+	public static void main(String args[]) throws Exception {
+		int[] sizes = { 16, 64, 256, 1024 };
+		int numKeys = 10000, numGets = 10000, routes = 0, settle = 0;
+		int delay = 0, regions = 0;
+		boolean udp = false;
+		String workload = null;
+		List<String> options = new ArrayList<String>();
+		options.add("workers=0");
+		for (String arg : args) {
+			if (arg.startsWith("sizes=")) {
+				String[] s = arg.substring(6).split(",");
+				sizes = new int[s.length];
+				for (int i = 0; i < s.length; i++)
+					sizes[i] = Integer.parseInt(s[i]);
+			} else if (arg.startsWith("keys="))
+				numKeys = Integer.parseInt(arg.substring(5));
+			else if (arg.startsWith("gets="))
+				numGets = Integer.parseInt(arg.substring(5));
+			else if (arg.startsWith("workload="))
+				workload = arg.substring(9);
+			else if (arg.startsWith("routes="))
+				routes = Integer.parseInt(arg.substring(7));
+			else if (arg.startsWith("settle="))
+				settle = Integer.parseInt(arg.substring(7));
+			else if (arg.startsWith("delay="))
+				delay = Integer.parseInt(arg.substring(6));
+			else if (arg.startsWith("regions="))
+				regions = Integer.parseInt(arg.substring(8));
+			else if (arg.equals("udp"))
+				udp = true;
+			else if (DhtServer.isOption(arg))
+				options.add(arg);
+			else {
+				System.err.println("usage: DhtSim [ sizes=n,n,... ] " +
+					"[ keys=K ] [ gets=G ] [ workload=file ] " +
+					"[ routes=R ] [ settle=s ] [ delay=us ] " +
+					"[ regions=R ] [ udp ] " +
+					"[ server options ]");
+				System.exit(1);
+			}
+		}
+		if (udp && delay > 0) {
+			System.err.println("DhtSim: delay= needs the MemNetwork, " +
+					   "not udp");
+			System.exit(1);
+		}
+
+		// the workload, as lines split into words
+		List<String[]> ops = new ArrayList<String[]>();
+		if (workload != null) {
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+					new FileInputStream(workload), "US-ASCII"));
+			for (String line; (line = in.readLine()) != null; ) {
+				String[] op = line.trim().split("\\s+", 3);
+				if (op.length < 2) continue;
+				if (!op[0].equals("put") && !op[0].equals("get")) {
+					System.err.println("DhtSim: bad workload line: " +
+							   line);
+					System.exit(1);
+				}
+				ops.add(op);
+			}
+			in.close();
+		} else {
+			Random r = new Random(1);
+			for (int i = 0; i < numKeys; i++)
+				ops.add(new String[] { "put", "key" + i, "value" + i });
+			for (int i = 0; i < numGets; i++)
+				ops.add(new String[] { "get", "key" + r.nextInt(numKeys) });
+		}
+
+		System.out.println("servers  join s   gets  hops mean  p99  " +
+			"latency us p50    p99  cpu us/op  load max/mean  " +
+			"pairs max/mean  lost missing");
+		for (int n : sizes) {
+			int numRoutes = (routes > 0 ? routes :
+				Math.max(1, 32 - Integer.numberOfLeadingZeros(n - 1)));
+			simulate(n, numRoutes, udp, settle, delay, regions,
+				 options.toArray(new String[0]), ops);
+		}
+	}
+
+	/** Start a ring of servers, replay the workload and print a line. */
+	static void simulate(int n, int numRoutes, boolean udp, int settle,
+			     int delay, int regions, String[] options,
+			     List<String[]> ops)
+			throws Exception {
+		MemNetwork net = new MemNetwork();
+		if (delay > 0) {
+			Map<InetSocketAddress, double[]> points =
+				new ConcurrentHashMap<InetSocketAddress, double[]>();
+			net.setDelay((from, to) -> {
+				double[] a = points.computeIfAbsent(from,
+					adr -> place(adr, regions));
+				double[] b = points.computeIfAbsent(to,
+					adr -> place(adr, regions));
+				return (long) (delay * Math.hypot(a[0] - b[0],
+					a[1] - b[1]) / Math.sqrt(2));
+			});
+		}
+		InetAddress lo = InetAddress.getLoopbackAddress();
+		DhtServer[] servers = new DhtServer[n];
+		Random r = new Random(1);
+
+		// each server joins through a random earlier one; a server
+		// handles packets only once it has joined
+		long t0 = System.nanoTime();
+		for (int i = 0; i < n; i++) {
+			Transport t = (udp ? new SocketTransport(lo) : net.open());
+			servers[i] = new DhtServer(t, numRoutes, options);
+			servers[i].start(i == 0 ? null :
+					 servers[r.nextInt(i)].getAddress());
+			Thread handler = new Thread(servers[i]::run);
+			handler.setDaemon(true);
+			handler.start();
+		}
+		double joinSecs = (System.nanoTime() - t0) / 1e9;
+		Thread.sleep(1000L * settle);
+
+		Client client = new Client(udp ? new SocketTransport(lo) :
+					   net.open());
+		ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+		long[] before = new long[n];
+		for (int i = 0; i < n; i++) before[i] = servers[i].getReceived();
+		long netLost = net.lost();
+		long cpu = serverCpu(mx, client);
+		int[] hops = new int[ops.size()];
+		long[] micros = new long[ops.size()];
+		int gets = 0, lost = 0, missing = 0, tag = 0;
+		for (String[] op : ops) {
+			DhtServer s = servers[r.nextInt(n)];
+			long start = System.nanoTime();
+			Packet reply = client.request(s.getAddress(), op[0], op[1],
+				(op.length > 2 ? op[2] : null), ++tag);
+			long us = (System.nanoTime() - start) / 1000;
+			if (reply == null) { lost++; continue; }
+			if (!op[0].equals("get")) continue;
+			if (!"success".equals(reply.type)) missing++;
+			int d = 100 - reply.ttl;
+			if (!client.from.equals(s.getAddress()))
+				hops[gets] = d - 2; // a direct reply
+			else
+				hops[gets] = (d <= 2 ? 0 : d - 3);
+			micros[gets++] = us;
+		}
+		cpu = serverCpu(mx, client) - cpu;
+		netLost = net.lost() - netLost;
+		client.close();
+
+		long maxLoad = 0, totalLoad = 0, maxPairs = 0, totalPairs = 0;
+		for (int i = 0; i < n; i++) {
+			long load = servers[i].getReceived() - before[i];
+			maxLoad = Math.max(maxLoad, load);
+			totalLoad += load;
+			maxPairs = Math.max(maxPairs, servers[i].getPairs());
+			totalPairs += servers[i].getPairs();
+			servers[i].close();
+		}
+		net.setDelay(null);
+		Arrays.sort(hops, 0, gets);
+		Arrays.sort(micros, 0, gets);
+		long sum = 0;
+		for (int i = 0; i < gets; i++) sum += hops[i];
+		System.out.printf("%7d %7.1f %6d %10.2f %4d %14d %6d %10.1f " +
+			"%14.2f %15.2f %5d %7d\n", n, joinSecs, gets,
+			gets == 0 ? 0.0 : (double) sum / gets,
+			gets == 0 ? 0 : hops[(int) (gets * 0.99)],
+			gets == 0 ? 0 : micros[gets / 2],
+			gets == 0 ? 0 : micros[(int) (gets * 0.99)],
+			cpu / 1000.0 / Math.max(1, ops.size()),
+			totalLoad == 0 ? 0.0 : (double) maxLoad * n / totalLoad,
+			totalPairs == 0 ? 0.0 : (double) maxPairs * n / totalPairs,
+			lost + netLost, missing);
+	}
+
+	/**
+	 * Place an address at a point of the unit square, which depends only
+	 * on its port number: anywhere, or with regions, within 1/20 of the
+	 * side of the square from the point of one of them.
+	 */
+	static double[] place(InetSocketAddress adr, int regions) {
+		SplittableRandom r = new SplittableRandom(adr.getPort());
+		if (regions <= 0)
+			return new double[] { r.nextDouble(), r.nextDouble() };
+		SplittableRandom c = new SplittableRandom(-1 - r.nextInt(regions));
+		return new double[] { c.nextDouble() + 0.05 * r.nextDouble(),
+				      c.nextDouble() + 0.05 * r.nextDouble() };
+	}
+
+	/**
+	 * Get the CPU time that the servers' threads have used, in ns: that
+	 * of every thread but this one and the client's.
+	 */
+	static long serverCpu(ThreadMXBean mx, Client client) {
+		long ns = 0;
+		for (long id : mx.getAllThreadIds()) {
+			if (id == Thread.currentThread().getId() ||
+			    id == client.receiver.getId())
+				continue;
+			ns += Math.max(0, mx.getThreadCpuTime(id));
+		}
+		return ns;
+	}
+
+	/**
+	 * A client on a transport. A thread receives the replies, so that
+	 * request can give up on one that does not come.
+	 */
+	static class Client {
+		Transport t;
+		LinkedBlockingQueue<Pair<Packet, InetSocketAddress>> replies;
+		Thread receiver;
+		InetSocketAddress from; // sender of the last reply
+
+		Client(Transport t) {
+			this.t = t;
+			replies = new LinkedBlockingQueue<Pair<Packet, InetSocketAddress>>();
+			receiver = new Thread(() -> {
+				while (!t.isClosed()) {
+					Packet p = new Packet();
+					InetSocketAddress adr = t.receive(p, false);
+					if (adr != null)
+						replies.add(new Pair<Packet, InetSocketAddress>(
+							p, adr));
+				}
+			});
+			receiver.setDaemon(true);
+			receiver.start();
+		}
+
+		/** Send a request and wait for the reply with the same tag.
+		 *  @return the reply, or null if none arrived in time; its
+		 *  sender is left in from
+		 */
+		Packet request(InetSocketAddress server, String type, String key,
+			       String val, int tag) throws InterruptedException {
+			Packet p = new Packet();
+			p.type = type;
+			p.key = key;
+			p.val = val;
+			p.tag = tag;
+			t.send(p, server, false);
+			long deadline = System.currentTimeMillis() + WAIT_MS;
+			while (true) {
+				long wait = deadline - System.currentTimeMillis();
+				Pair<Packet, InetSocketAddress> reply = replies.poll(
+					Math.max(wait, 0), TimeUnit.MILLISECONDS);
+				if (reply == null) return null;
+				if (reply.left.tag == tag) {
+					from = reply.right;
+					return reply.left;
+				}
+			}
+		}
+
+		void close() {
+			t.close();
+		}
+	}
+}
@@ -0,0 +1,84 @@
+import java.lang.management.*;
+import java.util.*;
+
+/*
+ * HashBench.java
+ * Compares the DHT's key hashes (see DhtServer.hashit). For each key hash
+ * version and each of three key sets, it hashes the keys into BUCKETS
+ * equal ranges of the hash space, as a ring of that many servers would,
+ * and reports the chi-square statistic of the counts and its distance
+ * from the mean in standard deviations (under a uniform hash, about 95%
+ * of runs lie within 2). The key sets are the keys DhtHops and
+ * DhtBalance use ("key0", "key1", ...), random strings of 4 to 20
+ * printable characters, and words that differ only in their last
+ * character. It then times each hash and reports the bytes it allocates
+ * per call. The optional arguments are the number of keys per set
+ * (default 1000000) and of timed rounds over them (default 20); the
+ * timed rounds follow a warmup of the same length.
+ */
+public class HashBench {
+	static final int BUCKETS = 1024;
+
+	public static void main(String args[]) throws Exception {
+		int numKeys = (args.length > 0 ? Integer.parseInt(args[0]) : 1000000);
+		int rounds = (args.length > 1 ? Integer.parseInt(args[1]) : 20);
+		String[][] sets = new String[3][numKeys];
+		String[] names = { "keyN", "random", "last char" };
+		Random r = new Random(1);
+		String chars = "abcdefghijklmnopqrstuvwxyz";
+		for (int i = 0; i < numKeys; i++) {
+			sets[0][i] = "key" + i;
+			StringBuilder b = new StringBuilder();
+			int n = 4 + r.nextInt(17);
+			for (int j = 0; j < n; j++) b.append((char) (32 + r.nextInt(95)));
+			sets[1][i] = b.toString();
+			// a 6 letter stem, then one letter that varies
+			int stem = i / chars.length();
+			b.setLength(0);
+			for (int j = 0; j < 6; j++) {
+				b.append(chars.charAt(stem % chars.length()));
+				stem /= chars.length();
+			}
+			b.append(chars.charAt(i % chars.length()));
+			sets[2][i] = b.toString();
+		}
+
+		for (int version = 0; version <= 1; version++) {
+			for (int s = 0; s < sets.length; s++) {
+				long[] count = new long[BUCKETS];
+				for (String key : sets[s])
+					count[(int) ((long) DhtServer.hashit(key, version) *
+						     BUCKETS >> 31)]++;
+				double expect = (double) numKeys / BUCKETS, chi2 = 0;
+				for (long c : count) chi2 += (c - expect) * (c - expect) / expect;
+				int df = BUCKETS - 1;
+				System.out.printf("keyhash=%d %-10s chi-square %12.1f " +
+					"(%+9.1f sd)\n", version, names[s], chi2,
+					(chi2 - df) / Math.sqrt(2.0 * df));
+			}
+		}
+
+		com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean)
+			ManagementFactory.getThreadMXBean();
+		long tid = Thread.currentThread().getId();
+		for (int version = 0; version <= 1; version++) {
+			for (int s = 0; s < sets.length; s++) {
+				long sink = 0, ns = 0, bytes = 0;
+				for (int pass = 0; pass < 2; pass++) {
+					long b0 = mx.getThreadAllocatedBytes(tid);
+					long t0 = System.nanoTime();
+					for (int i = 0; i < rounds; i++)
+						for (String key : sets[s])
+							sink += DhtServer.hashit(key, version);
+					ns = System.nanoTime() - t0;
+					bytes = mx.getThreadAllocatedBytes(tid) - b0;
+				}
+				long calls = (long) rounds * numKeys;
+				System.out.printf("keyhash=%d %-10s %6.1f ns  %6.2f bytes " +
+					"per hash\n", version, names[s], (double) ns / calls,
+					(double) bytes / calls);
+				if (sink == 42) System.out.println(); // keep the results live
+			}
+		}
+	}
+}
@@ -0,0 +1,66 @@
+import java.util.*;
+
+/*
+ * HashCheck.java
+ * Checks the DHT's key hashes (see DhtServer.hashit). Every hash must lie
+ * in [0,2^31), and the original hash (keyhash=0) must still map "ab" and
+ * "abab" to the same hash, as it always has, while the new one
+ * (keyhash=1) must not. For the new hash, it hashes the keys of two key
+ * sets into BUCKETS equal ranges of the hash space, as HashBench does,
+ * and the chi-square statistic of the counts must lie within MAX_SD
+ * standard deviations of its mean. The key sets are "key0", "key1", ...
+ * and random strings of 4 to 20 printable characters, from a fixed seed.
+ * The optional argument is the number of keys per set (default 200000).
+ * A check that fails throws an AssertionError, which exits with status 1.
+ */
+public class HashCheck {
+	static final int BUCKETS = 1024;
+	static final double MAX_SD = 4;
+
+	public static void main(String args[]) throws Exception {
+		int numKeys = (args.length > 0 ? Integer.parseInt(args[0]) : 200000);
+		String[][] sets = new String[2][numKeys];
+		String[] names = { "keyN", "random" };
+		Random r = new Random(1);
+		for (int i = 0; i < numKeys; i++) {
+			sets[0][i] = "key" + i;
+			StringBuilder b = new StringBuilder();
+			int n = 4 + r.nextInt(17);
+			for (int j = 0; j < n; j++) b.append((char) (32 + r.nextInt(95)));
+			sets[1][i] = b.toString();
+		}
+
+		if (DhtServer.hashit("ab", 0) != DhtServer.hashit("abab", 0))
+			throw new AssertionError(
+				"keyhash=0 no longer maps \"ab\" and \"abab\" together");
+		if (DhtServer.hashit("ab", 1) == DhtServer.hashit("abab", 1))
+			throw new AssertionError(
+				"keyhash=1 maps \"ab\" and \"abab\" together");
+
+		for (int version = 0; version <= 1; version++) {
+			for (int s = 0; s < sets.length; s++) {
+				long[] count = new long[BUCKETS];
+				for (String key : sets[s]) {
+					int h = DhtServer.hashit(key, version);
+					if (h < 0)
+						throw new AssertionError("keyhash=" +
+							version + " hash of \"" + key +
+							"\" is " + h);
+					count[(int) ((long) h * BUCKETS >> 31)]++;
+				}
+				if (version == 0) continue;
+				double expect = (double) numKeys / BUCKETS, chi2 = 0;
+				for (long c : count) chi2 += (c - expect) * (c - expect) / expect;
+				int df = BUCKETS - 1;
+				double sd = (chi2 - df) / Math.sqrt(2.0 * df);
+				System.out.printf("keyhash=%d %-10s chi-square %12.1f " +
+					"(%+9.1f sd)\n", version, names[s], chi2, sd);
+				if (Math.abs(sd) > MAX_SD)
+					throw new AssertionError("keyhash=" + version +
+						" " + names[s] + " chi-square is " +
+						String.format("%.1f", sd) + " sd from its mean");
+			}
+		}
+		System.out.println("ok");
+	}
+}
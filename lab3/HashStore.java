@@ -0,0 +1,157 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/** The (key,value) pairs stored at a DhtServer, indexed by hash.
+ *
+ *  Gets and puts find a key in a concurrent hash map. Every key is also
+ *  kept in a concurrent skip list ordered by the key's hash (and, for
+ *  keys with the same hash, by the key itself), so the pairs whose hashes
+ *  lie in a range are found in O(log n + k) time, for k pairs out of n,
+ *  instead of by hashing every key. That is what a join or leave needs
+ *  when it hands part of a server's range to another server.
+ *
+ *  A key enters and leaves the index inside the hash map's atomic update
+ *  of that key, so the map and the index never disagree about a key, even
+ *  when puts and removes of the same key race on several threads.
+ *
+ *  A join streams a range to the new server while gets and puts of it
+ *  go on. The store can watch one range meanwhile, noting the keys in
+ *  it that are put or removed, so that their final values can follow
+ *  the stream (see DhtServer.moveRange).
+ */
+public class HashStore {
+	private ConcurrentHashMap<String, String> pairs;
+	private ConcurrentSkipListSet<HashedKey> index; // keys in hash order
+	private volatile Watch watch; // range whose writes are noted, or null
+
+	/** A key and its hash, ordered by hash and then by key. */
+	private static class HashedKey implements Comparable<HashedKey> {
+		final int hash;
+		final String key;	// null comes before every key
+
+		HashedKey(int hash, String key) {
+			this.hash = hash;
+			this.key = key;
+		}
+
+		public int compareTo(HashedKey o) {
+			if (hash != o.hash) return Integer.compare(hash, o.hash);
+			if (key == null) return (o.key == null ? 0 : -1);
+			if (o.key == null) return 1;
+			return key.compareTo(o.key);
+		}
+	}
+
+	/** A range of hashes, and the keys in it written since it is watched. */
+	private static class Watch {
+		final int lo, hi;
+		final Set<String> keys = ConcurrentHashMap.newKeySet();
+
+		Watch(int lo, int hi) {
+			this.lo = lo;
+			this.hi = hi;
+		}
+	}
+
+	/** Initialize a new, empty HashStore object. */
+	public HashStore() {
+		pairs = new ConcurrentHashMap<String, String>();
+		index = new ConcurrentSkipListSet<HashedKey>();
+	}
+
+	/** Get the value of a key.
+	 *  @param key is the key
+	 *  @return the value, or null if the key is not stored
+	 */
+	public String get(String key) {
+		return pairs.get(key);
+	}
+
+	/** Store a pair, replacing the key's value if it is stored.
+	 *  @param key is the key
+	 *  @param hash is the key's hash
+	 *  @param val is the value
+	 */
+	public void put(String key, int hash, String val) {
+		pairs.compute(key, (k, v) -> {
+			if (v == null) index.add(new HashedKey(hash, k));
+			return val;
+		});
+		noteWrite(key, hash);
+	}
+
+	/** Remove a key.
+	 *  @param key is the key
+	 *  @param hash is the key's hash
+	 *  @return true if the key was stored
+	 */
+	public boolean remove(String key, int hash) {
+		boolean[] found = new boolean[1];
+		pairs.computeIfPresent(key, (k, v) -> {
+			index.remove(new HashedKey(hash, k));
+			found[0] = true;
+			return null;
+		});
+		if (found[0]) noteWrite(key, hash);
+		return found[0];
+	}
+
+	/** Get the pairs whose hashes lie in a range.
+	 *  @param lo is the first hash of the range
+	 *  @param hi is the last hash of the range
+	 *  @return a copy of the pairs, in order of their hashes
+	 */
+	public LinkedHashMap<String, String> range(int lo, int hi) {
+		LinkedHashMap<String, String> result =
+			new LinkedHashMap<String, String>();
+		for (HashedKey hk : index.tailSet(new HashedKey(lo, null))) {
+			if (hk.hash > hi) break;
+			String val = pairs.get(hk.key);
+			if (val != null) result.put(hk.key, val);
+		}
+		return result;
+	}
+
+	/** Remove the pairs whose hashes lie in a range.
+	 *  @param lo is the first hash of the range
+	 *  @param hi is the last hash of the range
+	 *  @return the number of pairs removed
+	 */
+	public int removeRange(int lo, int hi) {
+		int n = 0;
+		for (HashedKey hk : index.tailSet(new HashedKey(lo, null))) {
+			if (hk.hash > hi) break;
+			if (remove(hk.key, hk.hash)) n++;
+		}
+		return n;
+	}
+
+	/** Start noting the keys in a range that are put or removed.
+	 *  @param lo is the first hash of the range
+	 *  @param hi is the last hash of the range
+	 */
+	public void watch(int lo, int hi) {
+		watch = new Watch(lo, hi);
+	}
+
+	/** Stop noting the keys that are put or removed.
+	 *  @return the keys in the watched range put or removed since watch
+	 *  was called
+	 */
+	public Set<String> unwatch() {
+		Watch w = watch;
+		watch = null;
+		return (w == null ? new HashSet<String>() : w.keys);
+	}
+
+	/** Note a key that was put or removed, if its range is watched. */
+	private void noteWrite(String key, int hash) {
+		Watch w = watch;
+		if (w != null && w.lo <= hash && hash <= w.hi) w.keys.add(key);
+	}
+
+	/** Get the number of stored pairs. */
+	public int size() {
+		return pairs.size();
+	}
+}
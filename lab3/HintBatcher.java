@@ -0,0 +1,141 @@
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/** The hint packets that a DhtServer in direct mode sends to relays.
+ *
+ *  In direct mode, the server that answers a request forwarded by a
+ *  relay sends the answer straight to the client, and what the relay
+ *  would have learned from the answer goes to it in a "hint" packet
+ *  instead. The route and holders that an answer teaches are hinted at
+ *  once, one small packet per answer, since a relay keeps the routes it
+ *  learned last, and only hints in the order of the answers keep the
+ *  busiest servers among them.
+ *
+ *  The leased values that a relay would have cached are collected for
+ *  each relay and sent together in one hint packet, at most HINT_MS ms
+ *  after the first of them, or sooner once they fill HINT_BYTES. The
+ *  lease of a batch is shortened by the time it waited, so that waiting
+ *  does not lengthen the time for which its values may be served stale.
+ */
+public class HintBatcher {
+	private static final long HINT_MS = 50; // max time a hint waits
+	private static final int HINT_BYTES = 1000; // max size of hinted pairs
+
+	private HashMap<InetSocketAddress, Batch> batches; // pairs waiting
+							    // to be hinted, by relay
+	private boolean flushDue;	// a flush of batches is scheduled
+	private AtomicLong sent;	// hint packets sent
+	private Timer timer;		// runs the flushes
+	private int leaseMs;		// lease granted on the values we own
+	private BiConsumer<Packet, InetSocketAddress> sender; // sends packets
+
+	/** The pairs to hint to a relay, as a hint packet being filled. */
+	private static class Batch {
+		Packet p;		// the hint packet
+		long since;		// time of its first pair, in ms
+		int bytes;		// size of its pairs
+	}
+
+	/**
+	 * Initialize a new HintBatcher object.
+	 *
+	 * @param timer   is the timer that flushes the batches
+	 * @param leaseMs is the lease, in ms, of the hinted values
+	 * @param sender  sends a packet to a socket address
+	 */
+	public HintBatcher(Timer timer, int leaseMs,
+			   BiConsumer<Packet, InetSocketAddress> sender) {
+		this.timer = timer;
+		this.leaseMs = leaseMs;
+		this.sender = sender;
+		batches = new HashMap<InetSocketAddress, Batch>();
+		sent = new AtomicLong();
+	}
+
+	/**
+	 * Send a hint packet to a relay at once.
+	 *
+	 * @param h     is the hint packet
+	 * @param relay is the relay's socket address
+	 */
+	public void send(Packet h, InetSocketAddress relay) {
+		sent.incrementAndGet();
+		sender.accept(h, relay);
+	}
+
+	/**
+	 * Add a leased pair to the batch for a relay. The batch goes out
+	 * HINT_MS ms after it was started, or at once if the pair does not
+	 * fit in it, in which case the pair starts a new one. A pair too big
+	 * for any batch is not hinted.
+	 *
+	 * @param relay is the relay's socket address
+	 * @param key   is the key
+	 * @param val   is the value
+	 */
+	public void add(InetSocketAddress relay, String key, String val) {
+		int size = 12 + key.length() + val.length();
+		if (size > HINT_BYTES) return; // too big to hint
+		Batch full = null;
+		synchronized (batches) {
+			Batch b = batches.get(relay);
+			if (b != null && b.bytes + size > HINT_BYTES) {
+				full = b;
+				b = null;
+			}
+			if (b == null) {
+				b = new Batch();
+				b.p = new Packet();
+				b.p.type = "hint";
+				b.p.tag = ThreadLocalRandom.current().nextInt(100000);
+				b.p.hints = new LinkedHashMap<String, String>();
+				b.since = System.currentTimeMillis();
+				batches.put(relay, b);
+				if (!flushDue) {
+					flushDue = true;
+					timer.schedule(new TimerTask() {
+						public void run() {
+							flush();
+						}
+					}, HINT_MS);
+				}
+			}
+			b.p.hints.put(key, val);
+			b.bytes += size;
+		}
+		if (full != null) send(relay, full);
+	}
+
+	/** Send every batch of hints. */
+	public void flush() {
+		HashMap<InetSocketAddress, Batch> all;
+		synchronized (batches) {
+			all = new HashMap<InetSocketAddress, Batch>(batches);
+			batches.clear();
+			flushDue = false;
+		}
+		for (Map.Entry<InetSocketAddress, Batch> e : all.entrySet())
+			send(e.getKey(), e.getValue());
+	}
+
+	/**
+	 * Send a batch of hints to a relay. Its pairs are leased for what
+	 * is left of the lease of the oldest.
+	 *
+	 * @param relay is the relay's socket address
+	 * @param b     is the batch
+	 */
+	private void send(InetSocketAddress relay, Batch b) {
+		b.p.lease = (int) Math.max(0, leaseMs -
+			(System.currentTimeMillis() - b.since));
+		send(b.p, relay);
+	}
+
+	/** Get the number of hint packets sent. */
+	public long sent() {
+		return sent.get();
+	}
+}
@@ -0,0 +1,236 @@
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** A network in memory, for running many DhtServers in one process.
+ *
+ *  open() makes a new Transport on the network, with a made up address
+ *  (the loopback address and a port number of its own). A packet sent to
+ *  one of them is packed as for a socket and put in the destination's
+ *  queue, whose receive unpacks it, so the servers see exactly the bytes
+ *  they would see on a real network. Like a socket's receive buffer, the
+ *  queue holds at most QUEUE_LEN packets; packets that find it full, or
+ *  that are sent to an address with no open transport, are lost without
+ *  an error. A connection is a pair of pipes, one each way, and the
+ *  transport it is made to hands its end of them to accept().
+ *
+ *  By default a packet reaches its destination's queue as soon as it is
+ *  sent. setDelay gives the links delays instead: each packet is then
+ *  put in the queue by a thread of the network once the delay of its
+ *  link has passed, so packets on links with different delays may
+ *  arrive out of order, as on a real network. Connections are not
+ *  delayed.
+ *
+ *  The network counts the packets it loses.
+ */
+public class MemNetwork {
+	private static final int QUEUE_LEN = 4096; // packets a transport buffers
+	private static final int PIPE_SIZE = 65536; // bytes a pipe buffers
+	// put in a queue to end the receive or accept waiting on it
+	private static final Pair<byte[], InetSocketAddress> CLOSED =
+		new Pair<byte[], InetSocketAddress>(null, null);
+	private static final Pipe NO_PIPE = new Pipe(null, null, null);
+
+	private ConcurrentHashMap<InetSocketAddress, Endpoint> endpoints;
+	private AtomicInteger lastPort;	// port number of the newest transport
+	private AtomicLong lost;	// packets lost
+	private volatile LinkDelay delay; // delays of the links, or null
+	private ScheduledExecutorService deliverer; // delivers late packets
+
+	/** The delays of the links between the transports of a network. */
+	public interface LinkDelay {
+		/** Get the one-way delay of a link, in microseconds.
+		 *  @param from is the address of the sender
+		 *  @param to is the address of the destination
+		 */
+		long micros(InetSocketAddress from, InetSocketAddress to);
+	}
+
+	/** Create an empty network. */
+	public MemNetwork() {
+		endpoints = new ConcurrentHashMap<InetSocketAddress, Endpoint>();
+		lastPort = new AtomicInteger();
+		lost = new AtomicLong();
+	}
+
+	/** Open a transport at a new address on the network. */
+	public Transport open() {
+		int port = lastPort.incrementAndGet();
+		if (port > 65535)
+			throw new IllegalStateException("out of port numbers");
+		Endpoint e = new Endpoint(new InetSocketAddress(
+			InetAddress.getLoopbackAddress(), port));
+		endpoints.put(e.myAdr, e);
+		return e;
+	}
+
+	/** Delay the packets sent from now on by the delays of their links.
+	 *  @param delay gives the delay of every link, or is null for none
+	 */
+	public synchronized void setDelay(LinkDelay delay) {
+		if (delay != null && deliverer == null) {
+			deliverer = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r);
+				t.setDaemon(true);
+				return t;
+			});
+		} else if (delay == null && deliverer != null) {
+			deliverer.shutdown();
+			deliverer = null;
+		}
+		this.delay = delay;
+	}
+
+	/** Put a packet in the queue of the transport at an address. */
+	private void deliver(InetSocketAddress dest,
+			     Pair<byte[], InetSocketAddress> d) {
+		Endpoint e = endpoints.get(dest);
+		if (e == null || e.closed || !e.packets.offer(d))
+			lost.incrementAndGet();
+	}
+
+	/** Get the number of packets lost so far. */
+	public long lost() {
+		return lost.get();
+	}
+
+	/** A transport on the network. */
+	private class Endpoint implements Transport {
+		final InetSocketAddress myAdr;
+		final LinkedBlockingQueue<Pair<byte[], InetSocketAddress>> packets;
+		final LinkedBlockingQueue<Pipe> conns; // connections to accept
+		volatile boolean closed;
+
+		Endpoint(InetSocketAddress myAdr) {
+			this.myAdr = myAdr;
+			packets = new LinkedBlockingQueue<Pair<byte[], InetSocketAddress>>(
+					QUEUE_LEN);
+			conns = new LinkedBlockingQueue<Pipe>();
+		}
+
+		public InetSocketAddress getLocalAddress() {
+			return myAdr;
+		}
+
+		public boolean send(Packet p, InetSocketAddress dest, boolean debug) {
+			if (debug) {
+				System.out.println("" + myAdr + " sending " +
+					(p.binary ? "binary " : "") + "packet to " +
+					dest + "\n" + p.toString());
+				System.out.flush();
+			}
+			byte[] buf = p.pack();
+			if (buf == null || closed) return false;
+			Pair<byte[], InetSocketAddress> d =
+				new Pair<byte[], InetSocketAddress>(buf, myAdr);
+			LinkDelay ld = delay;
+			long us = (ld == null ? 0 : ld.micros(myAdr, dest));
+			if (us <= 0) {
+				deliver(dest, d);
+				return true;
+			}
+			synchronized (MemNetwork.this) {
+				if (deliverer == null)
+					deliver(dest, d);
+				else
+					deliverer.schedule(() -> deliver(dest, d), us,
+							   TimeUnit.MICROSECONDS);
+			}
+			return true;
+		}
+
+		public InetSocketAddress receive(Packet p, boolean debug) {
+			return receive(p, debug, 0);
+		}
+
+		public InetSocketAddress receive(Packet p, boolean debug,
+						 int timeoutMs) {
+			p.clear();
+			Pair<byte[], InetSocketAddress> d;
+			try {
+				d = (timeoutMs > 0 ? packets.poll(timeoutMs,
+						TimeUnit.MILLISECONDS) : packets.take());
+			} catch (InterruptedException e) {
+				return null;
+			}
+			if (d == null) return null; // timed out
+			if (d == CLOSED) {
+				packets.offer(CLOSED); // for the next receive
+				return null;
+			}
+			if (!p.unpack(d.left, d.left.length)) {
+				System.out.println("error while unpacking packet");
+				return null;
+			}
+			p.ttl--;
+			if (debug) {
+				System.out.println("" + myAdr + " received " +
+					(p.binary ? "binary " : "") + "packet from " +
+					d.right + "\n" + p.toString());
+				System.out.flush();
+			}
+			if (p.ttl < 0) return null;
+			return d.right;
+		}
+
+		public Stream connect(InetSocketAddress dest) throws IOException {
+			Endpoint e = endpoints.get(dest);
+			if (e == null || e.closed)
+				throw new ConnectException("Connection refused: " + dest);
+			PipedInputStream myIn = new PipedInputStream(PIPE_SIZE);
+			PipedInputStream peerIn = new PipedInputStream(PIPE_SIZE);
+			Pipe mine = new Pipe(myIn, new PipedOutputStream(peerIn), dest);
+			e.conns.add(new Pipe(peerIn, new PipedOutputStream(myIn), myAdr));
+			return mine;
+		}
+
+		public Stream accept() throws IOException {
+			Pipe s;
+			try {
+				s = conns.take();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+			if (s == NO_PIPE) {
+				conns.add(NO_PIPE); // for the next accept
+				throw new SocketException("Socket closed");
+			}
+			return s;
+		}
+
+		public void close() {
+			closed = true;
+			endpoints.remove(myAdr, this);
+			packets.clear();
+			packets.offer(CLOSED);
+			conns.add(NO_PIPE);
+		}
+
+		public boolean isClosed() {
+			return closed;
+		}
+	}
+
+	/** One end of a connection: a pipe in and a pipe out. */
+	private static class Pipe implements Transport.Stream {
+		final PipedInputStream in;
+		final PipedOutputStream out;
+		final InetSocketAddress remote;
+
+		Pipe(PipedInputStream in, PipedOutputStream out,
+		     InetSocketAddress remote) {
+			this.in = in;
+			this.out = out;
+			this.remote = remote;
+		}
+
+		public InputStream getInputStream() { return in; }
+		public OutputStream getOutputStream() { return out; }
+		public SocketAddress getRemoteSocketAddress() { return remote; }
+
+		public void close() throws IOException {
+			try { out.close(); } finally { in.close(); }
+		}
+	}
+}
@@ -1,9 +1,69 @@
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
-/** Class for working with DHT packets. */
+/** Class for working with DHT packets.
+ *
+ *  A packet travels in one of two formats. The text format is the
+ *  "CSE473 DHTPv0.1" line followed by one "field:value" line per field.
+ *  The binary format, version WIRE_VERSION, starts with the byte MAGIC,
+ *  which no text packet starts with, and has a fixed header:
+ *
+ *	offset 0	MAGIC
+ *	offset 1	version
+ *	offset 2	type, as an index into TYPES plus 1
+ *	offset 3	0
+ *	offset 4	16 bit mask of the optional fields present (F_KEY etc.)
+ *	offset 6	32 bit tag
+ *	offset 10	32 bit ttl
+ *
+ *  followed by the optional fields present, in the order of their mask
+ *  bits: strings as a 16 bit length and US-ASCII bytes, addresses as a
+ *  4 byte IPv4 address and a 16 bit port, an address and hash as an
+ *  address and a 32 bit hash, and numbers as 32 bits, all big-endian.
+ *
+ *  unpack() accepts either format. pack() uses the binary format if the
+ *  binary flag is set and the packet can be put in it (its type is one
+ *  of TYPES and its addresses are IPv4); otherwise it uses text. A text
+ *  packet whose wire field is set tells the receiver that the sender
+ *  also reads binary packets up to that version; older receivers
+ *  ignore the field. The keyHash field and the hints after it, the last
+ *  of the binary fields, are skipped in the same way by receivers that
+ *  do not know them.
+ *
+ *  A new packet type changes the version, since a receiver of an older
+ *  version rejects the packet; version 2 added "handover". unpack()
+ *  also accepts binary packets of older versions, which are the same
+ *  but for the types they lack, and leaves the binary flag clear for
+ *  them, so that a server goes on sending text to their sender.
+ *
+ *  The hints are a list of (key,value) pairs. In the text format, each
+ *  is a line "hint:", the length of the key, ":", then the key and the
+ *  value; in the binary format, they are a 16 bit count and then each
+ *  key and value as a string.
+ */
 public class Packet {
+	public static final int WIRE_VERSION = 2; // binary format version
+	public static final byte MAGIC = (byte) 0xdb; // first byte if binary
+	// packet types that the binary format can carry
+	public static final String[] TYPES = { "get", "put", "success",
+		"no match", "failure", "transfer", "join", "update", "leave",
+		"find", "found", "stabilize", "stabilized", "stats",
+		"replicate", "hint", "handover" };
+	private static final HashMap<String, Integer> typeCodes;
+	static {
+		typeCodes = new HashMap<String, Integer>();
+		for (int i = 0; i < TYPES.length; i++) typeCodes.put(TYPES[i], i + 1);
+	}
+	// mask bits of the optional binary fields, in the order they appear
+	private static final int F_KEY = 1, F_VAL = 2, F_REASON = 4,
+		F_CLIENT = 8, F_RELAY = 16, F_RANGE = 32, F_HASH = 64,
+		F_LEASE = 128, F_SENDER = 256, F_SUCC = 512, F_PRED = 1024,
+		F_KEYHASH = 2048, F_HINTS = 4096;
+	private static final int HEADER = 14; // bytes of binary header
+
 	// packet fields - note: all are public
 	public String type;		// packet type
 	public int ttl;			// time-to-live
@@ -14,9 +74,18 @@ public class Packet {
 	public InetSocketAddress relayAdr; // address of first DHT server
 	public int tag;			// tag used to identify packet
 	public Pair<Integer,Integer> hashRange;	// range of hash values
+	public int hash;		// hash value looked up by a find, position
+				// of a joining virtual node, or first hash
+				// of the virtual node a ring packet is for
+	public int lease;		// ms a value may be cached for
+	public int wire;		// binary version the sender reads, or -1
+	public int keyHash;		// version of the ring's key hash, or -1
+	public boolean binary;		// true if sent or received in binary
+					// of version WIRE_VERSION
 	public Pair<InetSocketAddress,Integer> senderInfo;// address, first hash
 	public Pair<InetSocketAddress,Integer> succInfo; // address, first hash
 	public Pair<InetSocketAddress,Integer> predInfo; // address, first hash
+	public Map<String,String> hints; // pairs a relay may cache, in order
 
 	/** Constructor, initializes fields to default values. */
 	public Packet() { clear(); }
@@ -28,11 +97,14 @@ public class Packet {
 	public void clear() {
 		type = null; ttl = 100; key = null; val = null;
 		reason = null; clientAdr = null; relayAdr = null;
-		tag = -1; hashRange = null;
+		tag = -1; hashRange = null; hash = -1; lease = -1;
+		wire = -1; keyHash = -1; binary = false;
 		senderInfo = null; succInfo = null; predInfo = null;
+		hints = null;
 	}
 
 	/** Pack attributes defining packet fields into buffer.
+	 *  Uses the binary format if binary is set and the packet fits it.
 	 *  Fails if the packet type is undefined or if the resulting
 	 *  buffer exceeds the allowed length of 1400 bytes.
 	 *  @return null on failure, otherwise a byte array
@@ -40,6 +112,10 @@ public class Packet {
 	 */
 	public byte[] pack() {
 		if (type == null)  return null;
+		if (binary) {
+			byte[] buf = packBinary();
+			if (buf != null) return (buf.length > 1400 ? null : buf);
+		}
 		byte[] buf;
 		try { buf = toString().getBytes("US-ASCII");
 		} catch(Exception e) { return null; }
@@ -53,6 +129,7 @@ public class Packet {
 	 *  @param bufLen is the number of valid bytes in buf
 	 */
 	public boolean unpack(byte[] buf, int bufLen) {
+		if (bufLen > 0 && buf[0] == MAGIC) return unpackBinary(buf, bufLen);
 		// convert buf to a string
 		String s; 
 		try { s = new String(buf,0,bufLen,"US-ASCII");
@@ -116,6 +193,14 @@ public class Packet {
 				int leftR = Integer.parseInt(chunks[0]);
 				int rightR = Integer.parseInt(chunks[1]);
 				hashRange = new Pair<Integer,Integer>(leftR,rightR);
+			} else if (left.equals("hash")) {
+				hash = Integer.parseInt(right);
+			} else if (left.equals("lease")) {
+				lease = Integer.parseInt(right);
+			} else if (left.equals("wire")) {
+				wire = Integer.parseInt(right);
+			} else if (left.equals("keyHash")) {
+				keyHash = Integer.parseInt(right);
 			} else if (left.equals("tag")) {
 				tag = Integer.parseInt(right);
 			} else if (left.equals("key")) {
@@ -124,6 +209,15 @@ public class Packet {
 				val = right;
 			} else if (left.equals("reason")) {
 				reason = right;
+			} else if (left.equals("hint")) {
+				chunks = right.split(":",2);
+				if (chunks.length != 2) return false;
+				int n = Integer.parseInt(chunks[0]);
+				if (n < 0 || n > chunks[1].length()) return false;
+				if (hints == null)
+					hints = new LinkedHashMap<String,String>();
+				hints.put(chunks[1].substring(0, n),
+					  chunks[1].substring(n));
 			} else {
 				// ignore lines that don't match defined field
 			}
@@ -145,6 +239,23 @@ public class Packet {
 		     	 (key == null || tag == -1)) {
 			reason = "gets and puts require key and tag";
 			return false;
+		} else if (type.equals("replicate") && (key == null || hash < 0)) {
+			reason = "replicates require key and hash";
+			return false;
+		} else if (type.equals("hint") && (tag == -1 ||
+			   (clientAdr != null && key == null) ||
+			   (hints != null && lease < 0))) {
+			reason = "hints require tag, a key with a clientAdr " +
+				 "and a lease with pairs";
+			return false;
+		} else if (type.equals("find") &&
+			   (hash < 0 || tag < 0 || relayAdr == null)) {
+			reason = "finds require hash, tag and relayAdr";
+			return false;
+		} else if (type.equals("found") &&
+			   (hash < 0 || tag < 0 || senderInfo == null)) {
+			reason = "founds require hash, tag and senderInfo";
+			return false;
 		}
 		return true;
 	}
@@ -180,6 +291,9 @@ public class Packet {
 			s.append(":"); s.append(hashRange.right);
 			s.append("\n");
 		}
+		if (hash != -1) {
+			s.append("hash:"); s.append(hash); s.append("\n");
+		}
 		if (senderInfo != null) {
 			s.append("senderInfo:");
 			s.append(senderInfo.left.getAddress().getHostAddress());
@@ -204,6 +318,9 @@ public class Packet {
 		if (val != null) {
 			s.append("value:"); s.append(val); s.append("\n");
 		}
+		if (lease != -1) {
+			s.append("lease:"); s.append(lease); s.append("\n");
+		}
 		if (tag != -1) {
 			s.append("tag:"); s.append(tag); s.append("\n");
 		}
@@ -213,8 +330,177 @@ public class Packet {
 		if (reason != null) {
 			s.append("reason:"); s.append(reason); s.append("\n");
 		}
+		if (wire != -1) {
+			s.append("wire:"); s.append(wire); s.append("\n");
+		}
+		if (keyHash != -1) {
+			s.append("keyHash:"); s.append(keyHash); s.append("\n");
+		}
+		if (hints != null) {
+			for (Map.Entry<String,String> e : hints.entrySet()) {
+				s.append("hint:"); s.append(e.getKey().length());
+				s.append(":"); s.append(e.getKey());
+				s.append(e.getValue()); s.append("\n");
+			}
+		}
 		return s.toString();
 	}
+
+	/** Pack the packet in the binary format.
+	 *  @return the payload, or null if the packet's type or one of its
+	 *  addresses cannot be put in the binary format
+	 */
+	private byte[] packBinary() {
+		Integer code = typeCodes.get(type);
+		if (code == null) return null;
+		int mask = 0, n = HEADER;
+		if (key != null) { mask |= F_KEY; n += 2 + key.length(); }
+		if (val != null) { mask |= F_VAL; n += 2 + val.length(); }
+		if (reason != null) { mask |= F_REASON; n += 2 + reason.length(); }
+		if (clientAdr != null) { mask |= F_CLIENT; n += 6; }
+		if (relayAdr != null) { mask |= F_RELAY; n += 6; }
+		if (hashRange != null) { mask |= F_RANGE; n += 8; }
+		if (hash != -1) { mask |= F_HASH; n += 4; }
+		if (lease != -1) { mask |= F_LEASE; n += 4; }
+		if (senderInfo != null) { mask |= F_SENDER; n += 10; }
+		if (succInfo != null) { mask |= F_SUCC; n += 10; }
+		if (predInfo != null) { mask |= F_PRED; n += 10; }
+		if (keyHash != -1) { mask |= F_KEYHASH; n += 4; }
+		if (hints != null) {
+			if (hints.size() > 65535) return null;
+			mask |= F_HINTS; n += 2;
+			for (Map.Entry<String,String> e : hints.entrySet())
+				n += 4 + e.getKey().length() + e.getValue().length();
+		}
+		if (n > 65535) return null;
+		ByteBuffer b = ByteBuffer.allocate(n);
+		b.put(MAGIC).put((byte) WIRE_VERSION).put((byte) (int) code)
+		 .put((byte) 0).putShort((short) mask).putInt(tag).putInt(ttl);
+		if (!putString(b, key) || !putString(b, val) ||
+		    !putString(b, reason) || !putAdr(b, clientAdr) ||
+		    !putAdr(b, relayAdr))
+			return null;
+		if (hashRange != null) b.putInt(hashRange.left).putInt(hashRange.right);
+		if (hash != -1) b.putInt(hash);
+		if (lease != -1) b.putInt(lease);
+		if (!putInfo(b, senderInfo) || !putInfo(b, succInfo) ||
+		    !putInfo(b, predInfo))
+			return null;
+		if (keyHash != -1) b.putInt(keyHash);
+		if (hints != null) {
+			b.putShort((short) hints.size());
+			for (Map.Entry<String,String> e : hints.entrySet()) {
+				if (!putString(b, e.getKey()) ||
+				    !putString(b, e.getValue()))
+					return null;
+			}
+		}
+		return b.array();
+	}
+
+	/** Append a length and US-ASCII string, if the string is not null. */
+	private static boolean putString(ByteBuffer b, String s) {
+		if (s == null) return true;
+		if (s.length() > 65535) return false;
+		b.putShort((short) s.length());
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			b.put((byte) (c < 128 ? c : '?'));
+		}
+		return true;
+	}
+
+	/** Append an IPv4 address and port, if the address is not null.
+	 *  @return false if the address is not an IPv4 address
+	 */
+	private static boolean putAdr(ByteBuffer b, InetSocketAddress a) {
+		if (a == null) return true;
+		InetAddress ip = a.getAddress();
+		if (!(ip instanceof Inet4Address)) return false;
+		b.put(ip.getAddress()).putShort((short) a.getPort());
+		return true;
+	}
+
+	/** Append an address and hash, if the pair is not null. */
+	private static boolean putInfo(ByteBuffer b,
+				       Pair<InetSocketAddress,Integer> info) {
+		if (info == null) return true;
+		if (!putAdr(b, info.left)) return false;
+		b.putInt(info.right);
+		return true;
+	}
+
+	/** Unpack a packet in the binary format.
+	 *  @return false if the packet is malformed or of an unknown version
+	 */
+	private boolean unpackBinary(byte[] buf, int bufLen) {
+		if (bufLen < HEADER || buf[1] < 1 || buf[1] > WIRE_VERSION)
+			return false;
+		ByteBuffer b = ByteBuffer.wrap(buf, 0, bufLen);
+		try {
+			int code = buf[2];
+			if (code < 1 || code > TYPES.length) return false;
+			type = TYPES[code - 1];
+			int mask = b.getShort(4) & 0xffff;
+			tag = b.getInt(6);
+			ttl = b.getInt(10);
+			b.position(HEADER);
+			if ((mask & F_KEY) != 0) key = getString(b);
+			if ((mask & F_VAL) != 0) val = getString(b);
+			if ((mask & F_REASON) != 0) reason = getString(b);
+			if ((mask & F_CLIENT) != 0) clientAdr = getAdr(b);
+			if ((mask & F_RELAY) != 0) relayAdr = getAdr(b);
+			if ((mask & F_RANGE) != 0) {
+				int leftR = b.getInt();
+				hashRange = new Pair<Integer,Integer>(leftR, b.getInt());
+			}
+			if ((mask & F_HASH) != 0) hash = b.getInt();
+			if ((mask & F_LEASE) != 0) lease = b.getInt();
+			if ((mask & F_SENDER) != 0) senderInfo = getInfo(b);
+			if ((mask & F_SUCC) != 0) succInfo = getInfo(b);
+			if ((mask & F_PRED) != 0) predInfo = getInfo(b);
+			if ((mask & F_KEYHASH) != 0) keyHash = b.getInt();
+			if ((mask & F_HINTS) != 0) {
+				hints = new LinkedHashMap<String,String>();
+				for (int i = b.getShort() & 0xffff; i > 0; i--) {
+					String k = getString(b);
+					hints.put(k, getString(b));
+				}
+			}
+		} catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+			return false;
+		}
+		binary = (buf[1] == WIRE_VERSION);
+		return true;
+	}
+
+	/** Read a length and US-ASCII string. */
+	private static String getString(ByteBuffer b) {
+		int n = b.getShort() & 0xffff;
+		if (n > b.remaining()) throw new BufferUnderflowException();
+		String s = new String(b.array(), b.position(), n,
+				      StandardCharsets.US_ASCII);
+		b.position(b.position() + n);
+		return s;
+	}
+
+	/** Read an IPv4 address and port, without any name lookup. */
+	private static InetSocketAddress getAdr(ByteBuffer b) {
+		byte[] ip = new byte[4];
+		b.get(ip);
+		int port = b.getShort() & 0xffff;
+		try {
+			return new InetSocketAddress(InetAddress.getByAddress(ip), port);
+		} catch (UnknownHostException e) { // not for 4 bytes
+			throw new BufferUnderflowException();
+		}
+	}
+
+	/** Read an address and hash. */
+	private static Pair<InetSocketAddress,Integer> getInfo(ByteBuffer b) {
+		InetSocketAddress a = getAdr(b);
+		return new Pair<InetSocketAddress,Integer>(a, b.getInt());
+	}
 		
 	/** Send the packet to a specified destination.
 	 *  Packs the various packet fields into a buffer
@@ -228,7 +514,8 @@ public class Packet {
 			    boolean debug) {
 		if (debug) {
 			System.out.println("" + sock.getLocalSocketAddress() +
-				" sending packet to " + dest + "\n" +
+				" sending " + (binary ? "binary " : "") +
+				"packet to " + dest + "\n" +
 				toString());
 			System.out.flush();
 		}
@@ -247,7 +534,8 @@ public class Packet {
 	 * @param sock is the socket on which the packet is received
 	 * @param debug is a flag; if it is true, the received
 	 * packet is printed
-	 * @return the sender's socket address on success and null on failure
+	 * @return the sender's socket address on success and null on failure,
+	 * or if the socket's timeout ran out first
 	 */
 	public InetSocketAddress receive(DatagramSocket sock, boolean debug) {
 		clear();
@@ -255,6 +543,8 @@ public class Packet {
 		DatagramPacket pkt = new DatagramPacket(buf, buf.length);
 		try {
 			sock.receive(pkt);
+		} catch(SocketTimeoutException e) {
+			return null;
 		} catch(Exception e) {
 			System.out.println("receive exception: " + e);
 			return null;
@@ -267,7 +557,8 @@ public class Packet {
 		ttl--;
 		if (debug) {
 			System.out.println(sock.getLocalSocketAddress() +
-				" received packet from " + 
+				" received " + (binary ? "binary " : "") +
+				"packet from " + 
 				pkt.getSocketAddress() + "\n" + toString());
 			System.out.flush();
 		}
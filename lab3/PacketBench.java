@@ -0,0 +1,76 @@
+import java.net.*;
+
+/*
+ * PacketBench.java
+ * Microbenchmark for the DHT packet formats. It packs and unpacks two
+ * typical packets, a get forwarded by a relay and the owner's success
+ * reply to it, in the text format and in the binary format, and reports
+ * the size of each packet and the time per pack and per unpack. The
+ * optional argument is the number of timed rounds (default 1000000);
+ * each is preceded by a warmup of the same length.
+ */
+public class PacketBench {
+
+	public static void main(String args[]) throws Exception {
+		int rounds = (args.length > 0 ? Integer.parseInt(args[0]) : 1000000);
+		InetSocketAddress client = new InetSocketAddress(
+				InetAddress.getByName("192.168.1.23"), 51349);
+		InetSocketAddress relay = new InetSocketAddress(
+				InetAddress.getByName("192.168.1.7"), 40211);
+		InetSocketAddress owner = new InetSocketAddress(
+				InetAddress.getByName("192.168.1.9"), 38827);
+
+		Packet get = new Packet();
+		get.type = "get";
+		get.key = "dungeons";
+		get.tag = 12345;
+		get.ttl = 97;
+		get.relayAdr = relay;
+		get.clientAdr = client;
+
+		Packet reply = new Packet();
+		reply.type = "success";
+		reply.key = "dungeons";
+		reply.val = "dragons and other creatures of the deep";
+		reply.tag = 12345;
+		reply.ttl = 95;
+		reply.relayAdr = relay;
+		reply.clientAdr = client;
+		reply.lease = 5000;
+		reply.senderInfo = new Pair<InetSocketAddress, Integer>(
+				owner, 1073741824);
+
+		for (Packet p : new Packet[] { get, reply }) {
+			for (boolean binary : new boolean[] { false, true }) {
+				p.binary = binary;
+				run(p, rounds);
+			}
+		}
+	}
+
+	/** Time packing and unpacking a packet and print the results. */
+	static void run(Packet p, int rounds) {
+		byte[] buf = p.pack();
+		Packet q = new Packet();
+		long sink = 0, packNs = 0, unpackNs = 0;
+		for (int pass = 0; pass < 2; pass++) {
+			long t0 = System.nanoTime();
+			for (int i = 0; i < rounds; i++) sink += p.pack().length;
+			long t1 = System.nanoTime();
+			for (int i = 0; i < rounds; i++) {
+				q.clear();
+				if (q.unpack(buf, buf.length)) sink += q.tag;
+			}
+			long t2 = System.nanoTime();
+			packNs = t1 - t0;
+			unpackNs = t2 - t1;
+		}
+		if (!q.toString().equals(p.toString()))
+			System.out.println("unpacked packet differs:\n" + q);
+		System.out.printf("%-8s %-6s %4d bytes  pack %6.0f ns  " +
+			"unpack %6.0f ns\n", p.type,
+			p.binary ? "binary" : "text", buf.length,
+			(double) packNs / rounds, (double) unpackNs / rounds);
+		if (sink == 42) System.out.println(); // keep the results live
+	}
+}
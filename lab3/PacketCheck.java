@@ -0,0 +1,174 @@
+import java.net.*;
+import java.util.*;
+
+/*
+ * PacketCheck.java
+ * Checks the DHT packet formats. It builds random packets of every type
+ * that the binary format can carry, with a random set of fields, packs
+ * each in the text format and in the binary format, and checks that
+ * unpacking gives back the same packet, hints included, and that the
+ * binary flag says which format it came in. Every binary packet cut
+ * short must be rejected by unpack, without an exception, and so must a
+ * binary packet of a newer version, while one of an older version must
+ * be read but not marked binary. check() must reject a packet that
+ * lacks a field its type needs. Packets that cannot go in the binary
+ * format (an unknown type, an IPv6 address) must be packed as text. The
+ * optional arguments are the number of packets (default 100000) and the
+ * seed of the random packets (default 1). A packet that does not check
+ * out throws an AssertionError, which exits with status 1.
+ */
+public class PacketCheck {
+
+	public static void main(String args[]) throws Exception {
+		int numPackets = (args.length > 0 ? Integer.parseInt(args[0]) : 100000);
+		long seed = (args.length > 1 ? Long.parseLong(args[1]) : 1);
+		Random r = new Random(seed);
+		int truncations = 0;
+		for (int i = 0; i < numPackets; i++) {
+			Packet p = randomPacket(r, Packet.TYPES[i % Packet.TYPES.length]);
+			p.binary = false;
+			check(p, false);
+			p.binary = true;
+			byte[] buf = check(p, true);
+			for (int len = 0; len < buf.length; len++, truncations++) {
+				if (new Packet().unpack(buf, len))
+					throw new AssertionError("unpack accepted " + len +
+						" of " + buf.length + " bytes of\n" + p);
+			}
+		}
+
+		// binary packets of an older version are read, but not marked
+		// binary; those of a newer version are rejected
+		Packet p = randomPacket(r, "get");
+		p.binary = true;
+		byte[] buf = p.pack();
+		buf[1] = (byte) (Packet.WIRE_VERSION - 1);
+		Packet q = new Packet();
+		if (!q.unpack(buf, buf.length) || q.binary ||
+		    !q.toString().equals(p.toString()))
+			throw new AssertionError("older binary packet unpacked as\n" +
+						 q + "\nfrom\n" + p);
+		buf[1] = (byte) (Packet.WIRE_VERSION + 1);
+		if (new Packet().unpack(buf, buf.length))
+			throw new AssertionError("newer binary packet accepted");
+
+		// check() requires the fields that each type of packet uses
+		checkFields("type:replicate\nkey:k\nhash:7", true);
+		checkFields("type:replicate\nkey:k", false);
+		checkFields("type:replicate\nhash:7", false);
+		checkFields("type:hint\ntag:3\nkey:k\nclientAdr:127.0.0.1:9", true);
+		checkFields("type:hint\ntag:3\nlease:0\nhint:1:kv", true);
+		checkFields("type:hint\nkey:k", false);
+		checkFields("type:hint\ntag:3\nclientAdr:127.0.0.1:9", false);
+		checkFields("type:hint\ntag:3\nhint:1:kv", false);
+		checkFields("type:find\nhash:7\ntag:3\nrelayAdr:127.0.0.1:9", true);
+		checkFields("type:find\ntag:3\nrelayAdr:127.0.0.1:9", false);
+		checkFields("type:find\nhash:7\nrelayAdr:127.0.0.1:9", false);
+		checkFields("type:find\nhash:7\ntag:3", false);
+		checkFields("type:found\nhash:7\ntag:3\nsenderInfo:127.0.0.1:9:5",
+			    true);
+		checkFields("type:found\nhash:7\ntag:3", false);
+		checkFields("type:found\nhash:7\nsenderInfo:127.0.0.1:9:5", false);
+
+		// packets that the binary format cannot carry go as text
+		p = randomPacket(r, "get");
+		p.type = "bogus";
+		p.binary = true;
+		check(p, false);
+		p = randomPacket(r, "get");
+		p.clientAdr = new InetSocketAddress(
+				InetAddress.getByName("::1"), 30123);
+		p.binary = true;
+		buf = p.pack();
+		if (buf == null || buf[0] == Packet.MAGIC)
+			throw new AssertionError("IPv6 packet not packed as text");
+
+		System.out.printf("%d packets, %d binary, %d truncations ok\n",
+				  2 * numPackets + 2, numPackets, truncations);
+	}
+
+	/**
+	 * Pack a packet, unpack it and compare the two.
+	 *
+	 * @param p      is the packet
+	 * @param binary is true if the packet must go in the binary format
+	 * @return the packed packet
+	 */
+	static byte[] check(Packet p, boolean binary) {
+		byte[] buf = p.pack();
+		Packet q = new Packet();
+		q.ttl = -7; // must be overwritten
+		if (buf == null || (buf[0] == Packet.MAGIC) != binary ||
+		    !q.unpack(buf, buf.length) || q.binary != binary ||
+		    !q.toString().equals(p.toString()) ||
+		    !Objects.equals(q.hints, p.hints))
+			throw new AssertionError("packed as " + (binary ? "binary" :
+				"text") + ", unpacked as\n" + q + "\nfrom\n" + p);
+		return buf;
+	}
+
+	/**
+	 * Check a packet with check().
+	 *
+	 * @param fields are the text lines of the packet after the first
+	 * @param valid  is true if check() must accept the packet
+	 */
+	static void checkFields(String fields, boolean valid) {
+		Packet p = new Packet();
+		byte[] buf = ("CSE473 DHTPv0.1\n" + fields + "\n").getBytes();
+		if (!p.unpack(buf, buf.length) || p.check() != valid ||
+		    (p.reason == null) != valid)
+			throw new AssertionError("check() " + (valid ? "rejected" :
+				"accepted") + "\n" + fields);
+	}
+
+	/** Make a packet of some type with random fields, each set or not. */
+	static Packet randomPacket(Random r, String type) throws Exception {
+		Packet p = new Packet();
+		p.type = type;
+		p.ttl = r.nextInt(200);
+		if (r.nextBoolean()) p.tag = r.nextInt(Integer.MAX_VALUE);
+		if (r.nextBoolean()) p.key = randomString(r);
+		if (r.nextBoolean()) p.val = randomString(r);
+		if (r.nextInt(4) == 0) p.reason = randomString(r);
+		if (r.nextBoolean()) p.clientAdr = randomAdr(r);
+		if (r.nextBoolean()) p.relayAdr = randomAdr(r);
+		if (r.nextBoolean())
+			p.hashRange = new Pair<Integer, Integer>(r.nextInt(), r.nextInt());
+		if (r.nextBoolean()) p.hash = r.nextInt(Integer.MAX_VALUE);
+		if (r.nextBoolean()) p.lease = r.nextInt(Integer.MAX_VALUE);
+		if (r.nextBoolean()) p.senderInfo = randomInfo(r);
+		if (r.nextBoolean()) p.succInfo = randomInfo(r);
+		if (r.nextBoolean()) p.predInfo = randomInfo(r);
+		if (r.nextBoolean()) p.keyHash = r.nextInt(2);
+		if (r.nextInt(4) == 0) {
+			p.hints = new LinkedHashMap<String, String>();
+			for (int n = 1 + r.nextInt(5); n > 0; n--)
+				p.hints.put(randomString(r), randomString(r));
+		}
+		return p;
+	}
+
+	/** Make a string of 0 to 20 printable characters, ':' among them. */
+	static String randomString(Random r) {
+		StringBuilder b = new StringBuilder();
+		for (int n = r.nextInt(21); n > 0; n--)
+			b.append((char) (32 + r.nextInt(95)));
+		return b.toString();
+	}
+
+	/** Make a random IPv4 socket address. */
+	static InetSocketAddress randomAdr(Random r) throws Exception {
+		byte[] ip = new byte[4];
+		r.nextBytes(ip);
+		return new InetSocketAddress(InetAddress.getByAddress(ip),
+					     r.nextInt(65536));
+	}
+
+	/** Make a random IPv4 socket address and hash. */
+	static Pair<InetSocketAddress, Integer> randomInfo(Random r)
+			throws Exception {
+		return new Pair<InetSocketAddress, Integer>(randomAdr(r),
+							   r.nextInt());
+	}
+}
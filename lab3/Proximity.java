@@ -0,0 +1,241 @@
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/** Round trip times to other servers, for a DhtServer with "proximity".
+ *
+ *  When the server forwards a get or put of its own client, it notes the
+ *  time and the server it sent the request to, and if the answer (or in
+ *  direct mode the hint) comes from that same server, the time the answer
+ *  took is a sample of the round trip time to it; a new route or finger
+ *  without an RTT is sent a stats packet, whose answer is timed the same
+ *  way. A smoothed RTT is kept for every server there are samples for, as
+ *  TCP does (each sample moves it 1/8 of the way to the sample), and as in
+ *  proximity neighbor selection the numRoutes nearest of those servers are
+ *  kept as well, as candidates for forwarding besides the routes.
+ *
+ *  To forward a packet, the server weighs the RTT of each candidate
+ *  against the progress it makes (see pick): only candidates that make at
+ *  least half the progress of the closest one are considered, and since a
+ *  lookup takes about one more hop for every doubling of the distance left
+ *  to go, a candidate costs its RTT plus the mean RTT for every doubling of
+ *  its distance to the hash over the closest candidate's. The cheapest
+ *  candidate is picked if that costs less than 3/4 of the RTT of the
+ *  closest one; otherwise, and whenever the closest one has no RTT yet,
+ *  the closest one is, as without proximity. DhtSim's "delay=" and
+ *  "regions=" options spread the servers over a network with link delays,
+ *  to show what this gains.
+ */
+public class Proximity {
+	private static final int PROBES_MAX = 1024; // requests timed at once
+	private static final long PROBE_MS = 1000; // max time an answer is
+						   // waited for
+	private static final int RTTS_MAX = 4096; // servers with an RTT kept
+
+	private InetSocketAddress myAdr; // the server's own address
+	private int numRoutes;		// max number of near servers
+	private BiConsumer<Packet, InetSocketAddress> sender; // sends packets
+	// requests being timed, by the server sent to and the tag
+	private ConcurrentHashMap<Pair<InetSocketAddress, Integer>, Probe> probes;
+	private volatile long probesSwept; // when probes were last dropped, in ns
+	// smoothed round trip times in us, by server
+	private ConcurrentHashMap<InetSocketAddress, Long> rtts;
+	private AtomicLong meanRtt;	// smoothed RTT of all samples, in us
+	// the nearest servers that we have RTTs for, at most numRoutes
+	private List<Pair<InetSocketAddress, Integer>> nearTbl;
+
+	/**
+	 * A request whose answer is being timed: the server it was sent to
+	 * and when.
+	 */
+	private static class Probe {
+		Pair<InetSocketAddress, Integer> route; // address and first hash
+		long sent;		// time it was sent, in ns
+	}
+
+	/**
+	 * Initialize a new Proximity object, with no RTTs.
+	 *
+	 * @param myAdr     is the server's own socket address
+	 * @param numRoutes is the max number of near servers kept
+	 * @param sender    sends a packet to a socket address
+	 */
+	public Proximity(InetSocketAddress myAdr, int numRoutes,
+			 BiConsumer<Packet, InetSocketAddress> sender) {
+		this.myAdr = myAdr;
+		this.numRoutes = numRoutes;
+		this.sender = sender;
+		probes = new ConcurrentHashMap<Pair<InetSocketAddress, Integer>, Probe>();
+		rtts = new ConcurrentHashMap<InetSocketAddress, Long>();
+		meanRtt = new AtomicLong();
+		nearTbl = new CopyOnWriteArrayList<Pair<InetSocketAddress, Integer>>();
+	}
+
+	/** Get the nearest servers that we have RTTs for. */
+	public List<Pair<InetSocketAddress, Integer>> near() {
+		return nearTbl;
+	}
+
+	/** Test if we have an RTT for a server. */
+	public boolean hasRtt(InetSocketAddress adr) {
+		return rtts.containsKey(adr);
+	}
+
+	/** Drop a server from the near servers, if it is one. */
+	public void remove(Pair<InetSocketAddress, Integer> route) {
+		synchronized (nearTbl) {
+			nearTbl.remove(route);
+		}
+	}
+
+	/**
+	 * Measure the round trip time to a new route or finger, if it has
+	 * none yet, by sending it a stats packet, whose answer is timed like
+	 * that of a get (see sample).
+	 *
+	 * @param route is the route or finger
+	 */
+	public void ping(Pair<InetSocketAddress, Integer> route) {
+		if (rtts.containsKey(route.left)) return;
+		Packet p = new Packet();
+		p.type = "stats";
+		p.tag = ThreadLocalRandom.current().nextInt(100000);
+		time(p.tag, route);
+		sender.accept(p, route.left);
+	}
+
+	/**
+	 * Note the time at which a request is sent to a server, for timing
+	 * its answer (see sample). Once PROBES_MAX requests are being timed,
+	 * those sent more than PROBE_MS ms ago are dropped, since their
+	 * answers were lost or came from another server; that is done at most
+	 * every PROBE_MS/2 ms, and no request is timed meanwhile.
+	 *
+	 * @param tag   is the tag of the request
+	 * @param route is the server that the request is sent to
+	 */
+	public void time(int tag, Pair<InetSocketAddress, Integer> route) {
+		long now = System.nanoTime();
+		if (probes.size() >= PROBES_MAX) {
+			if (now - probesSwept < PROBE_MS * 500000) return;
+			probesSwept = now;
+			long old = now - PROBE_MS * 1000000;
+			probes.values().removeIf(probe -> probe.sent - old < 0);
+			if (probes.size() >= PROBES_MAX) return;
+		}
+		Probe probe = new Probe();
+		probe.route = route;
+		probe.sent = now;
+		probes.put(new Pair<InetSocketAddress, Integer>(route.left, tag),
+			   probe);
+	}
+
+	/**
+	 * Time the answer to a request that was timed. Requests are timed by
+	 * the server they were sent to and their tag, since clients and other
+	 * servers pick tags of their own. If the answer comes from the server
+	 * we sent the request to, the time it took is a sample of the round
+	 * trip time to that server, and the server's smoothed RTT, as well as
+	 * that of all samples, moves 1/8 of the way to it; then the server may
+	 * become one of the near ones (see addNear).
+	 *
+	 * @param adr is the socket address of the server that answered
+	 * @param tag is the tag of the answer
+	 * @return true if RTTs are now kept for more than RTTS_MAX servers,
+	 *         in which case the caller should retain those it still uses
+	 */
+	public boolean sample(InetSocketAddress adr, int tag) {
+		Probe probe = probes.remove(
+			new Pair<InetSocketAddress, Integer>(adr, tag));
+		if (probe == null) return false;
+		long us = (System.nanoTime() - probe.sent) / 1000;
+		rtts.merge(adr, us, (srtt, sample) -> srtt + (sample - srtt) / 8);
+		meanRtt.accumulateAndGet(us, (srtt, sample) ->
+			srtt == 0 ? sample : srtt + (sample - srtt) / 8);
+		addNear(probe.route);
+		return rtts.size() > RTTS_MAX;
+	}
+
+	/**
+	 * Drop the RTTs of all servers except some and the near servers.
+	 *
+	 * @param keep are the servers whose RTTs are kept
+	 */
+	public void retain(Set<InetSocketAddress> keep) {
+		for (Pair<InetSocketAddress, Integer> r : nearTbl) keep.add(r.left);
+		rtts.keySet().retainAll(keep);
+	}
+
+	/**
+	 * Add a server that we have an RTT for to the numRoutes nearest ones
+	 * that we know of, if there is room or it is nearer than the farthest
+	 * of them, which it then replaces.
+	 *
+	 * @param route is the server's address and first hash
+	 */
+	private void addNear(Pair<InetSocketAddress, Integer> route) {
+		if (nearTbl.contains(route) || route.left.equals(myAdr)) return;
+		synchronized (nearTbl) {
+			if (nearTbl.contains(route)) return;
+			if (nearTbl.size() >= numRoutes) {
+				Pair<InetSocketAddress, Integer> farthest = null;
+				long max = rtts.getOrDefault(route.left, Long.MAX_VALUE);
+				for (Pair<InetSocketAddress, Integer> r : nearTbl) {
+					long rtt = rtts.getOrDefault(r.left, Long.MAX_VALUE);
+					if (rtt > max) {
+						max = rtt;
+						farthest = r;
+					}
+				}
+				if (farthest == null) return;
+				nearTbl.remove(farthest);
+			}
+			nearTbl.add(route);
+		}
+	}
+
+	/**
+	 * Pick the candidate for forwarding that is likely to get a packet to
+	 * the server that owns a hash soonest. Of the candidates that make
+	 * progress, only the ones that make at least half the progress of
+	 * the closest candidate are considered, so that a lookup takes at
+	 * most about twice the hops. A lookup takes about one more hop for
+	 * every doubling of the distance left to go, so the cost of a
+	 * candidate is its RTT plus, for every doubling of its distance to
+	 * the hash over the closest candidate's, the smoothed RTT of all
+	 * samples. A candidate is only picked over the closest one if both
+	 * have an RTT and it costs less than 3/4 of the closest one's RTT, so
+	 * that noise in the RTTs does not cost hops.
+	 *
+	 * @param closest is the closest candidate
+	 * @param minDiff is its distance to the hash
+	 * @param self    is the distance of our own closest virtual node
+	 *                to the hash
+	 * @param ahead   are the candidates that make progress, each with
+	 *                its distance to the hash
+	 * @return the route to forward the packet to
+	 */
+	public Pair<InetSocketAddress, Integer> pick(
+			Pair<InetSocketAddress, Integer> closest, int minDiff,
+			int self,
+			List<Pair<Pair<InetSocketAddress, Integer>, Integer>> ahead) {
+		Long best = rtts.get(closest.left);
+		if (best == null) return closest;
+		long far = minDiff + (self - (long) minDiff) / 2;
+		double limit = best * 0.75, hop = meanRtt.get();
+		Pair<InetSocketAddress, Integer> fwdRoute = closest;
+		for (Pair<Pair<InetSocketAddress, Integer>, Integer> c : ahead) {
+			Long rtt = rtts.get(c.left.left);
+			if (rtt == null || rtt >= limit || c.right > far) continue;
+			double cost = rtt + hop * Math.log((c.right + 1.0) /
+				(minDiff + 1.0)) / Math.log(2);
+			if (cost < limit) {
+				limit = cost;
+				fwdRoute = c.left;
+			}
+		}
+		return fwdRoute;
+	}
+}
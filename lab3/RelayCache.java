@@ -0,0 +1,258 @@
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/** Bounded cache of the (key,value) pairs a DhtServer relays.
+ *
+ *  The cache holds about capacity pairs, split over up to SEGMENTS
+ *  segments picked by the key's hash, each guarded by its own lock so
+ *  the worker threads of a server rarely wait for each other. A segment
+ *  keeps its pairs in a LinkedHashMap in access order, so lookups,
+ *  insertions and finding the least recently used pair all take constant
+ *  time.
+ *
+ *  New pairs are admitted with the TinyLFU policy. Each segment keeps a
+ *  count-min sketch of how often its keys have been looked up: DEPTH rows
+ *  of small counters, each key hashed to one counter per row, the smallest
+ *  of which estimates the key's frequency. Once a segment is full, a new
+ *  pair only replaces the least recently used pair if its key has been
+ *  looked up more often, so a burst of keys that are asked for once does
+ *  not flush the hot keys out of the cache. To let the sketch forget old
+ *  popularity, all of its counters are halved after every 10 lookups per
+ *  pair of capacity.
+ *
+ *  Every pair is cached under a lease: the owner of the key says for how
+ *  many ms the value may be served from a cache, and get() treats a pair
+ *  whose lease has run out as missing. A pair past its lease is also
+ *  replaced without an admission test. Once three quarters of a lease
+ *  have passed, refreshDue() tells the first caller to ask for it that
+ *  it is time to fetch the value again, so a key that stays in demand
+ *  is renewed before its lease runs out. If no new value has been put
+ *  an eighth of a lease later, the refresh is taken to be lost, and the
+ *  next caller is told to try again.
+ *
+ *  The cache counts hits, misses, evictions, rejected pairs, expired
+ *  leases and refreshes, which stats() reports.
+ */
+public class RelayCache {
+	private static final int SEGMENTS = 16;	// must be a power of 2
+	private static final int DEPTH = 4;	// rows in a sketch
+	private static final int MAX_COUNT = 15; // largest counter value
+
+	private Segment[] segs;			// a power of 2 of them
+	private int capacity;			// pairs the cache may hold
+	private LongAdder hits, misses;		// lookups that found a pair or not
+	private LongAdder evictions;		// pairs replaced by a new pair
+	private LongAdder rejections;		// new pairs not admitted
+	private LongAdder expirations;		// leases found run out
+	private LongAdder refreshes;		// leases due for renewal
+
+	/** A cached value and its lease. */
+	private static class Entry {
+		String val;		// the value
+		long expires;		// time in ms when the lease runs out
+		long renew;		// time in ms when the lease is due for renewal
+		long retry;		// time in ms before which refreshDue() does
+					// not say so again; 0 until it has
+
+		Entry(String val, long now, int lease) {
+			this.val = val;
+			expires = now + lease;
+			renew = now + lease - lease / 4;
+		}
+	}
+
+	/** One independently locked part of the cache. */
+	private static class Segment {
+		LinkedHashMap<String, Entry> pairs; // in access order
+		int capacity;		// pairs the segment may hold
+		byte[] sketch;		// DEPTH rows of mask+1 counters
+		int mask;		// counters per row minus 1
+		int lookups;		// lookups since the counters were halved
+		int sampleSize;		// lookups between halvings
+
+		Segment(int capacity) {
+			this.capacity = capacity;
+			pairs = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+			int width = Integer.highestOneBit(Math.max(16,
+					Math.min(capacity, 1 << 24)) * 2 - 1);
+			sketch = new byte[DEPTH * width];
+			mask = width - 1;
+			sampleSize = 10 * capacity;
+		}
+
+		/** Count a lookup of a key in the sketch. */
+		void record(int h) {
+			for (int i = 0; i < DEPTH; i++) {
+				int j = i * (mask + 1) + (rehash(h, i) & mask);
+				if (sketch[j] < MAX_COUNT) sketch[j]++;
+			}
+			if (++lookups >= sampleSize) {
+				for (int j = 0; j < sketch.length; j++)
+					sketch[j] >>= 1;
+				lookups /= 2;
+			}
+		}
+
+		/** Estimate how often a key has been looked up. */
+		int frequency(int h) {
+			int f = MAX_COUNT;
+			for (int i = 0; i < DEPTH; i++)
+				f = Math.min(f, sketch[i * (mask + 1) +
+						       (rehash(h, i) & mask)]);
+			return f;
+		}
+	}
+
+	/** Initialize a new, empty RelayCache object.
+	 *  @param capacity is the number of pairs the cache may hold
+	 *  (rounded up to a multiple of the number of segments)
+	 */
+	public RelayCache(int capacity) {
+		int n = Integer.highestOneBit(Math.max(1,
+				Math.min(SEGMENTS, capacity)));
+		int perSeg = (Math.max(1, capacity) + n - 1) / n;
+		this.capacity = perSeg * n;
+		segs = new Segment[n];
+		for (int i = 0; i < n; i++) segs[i] = new Segment(perSeg);
+		hits = new LongAdder(); misses = new LongAdder();
+		evictions = new LongAdder(); rejections = new LongAdder();
+		expirations = new LongAdder(); refreshes = new LongAdder();
+	}
+
+	/** Look up a key, counting the lookup towards its frequency.
+	 *  @param key is the key
+	 *  @param now is the current time in ms
+	 *  @return the cached value, or null if the key is not cached or
+	 *  its lease has run out
+	 */
+	public String get(String key, long now) {
+		int h = spread(key.hashCode());
+		Segment seg = segs[(h >>> 28) & (segs.length - 1)];
+		String val = null;
+		synchronized (seg) {
+			seg.record(h);
+			Entry e = seg.pairs.get(key);
+			if (e != null && e.expires <= now) {
+				seg.pairs.remove(key);
+				expirations.increment();
+			} else if (e != null) {
+				val = e.val;
+			}
+		}
+		if (val != null) hits.increment();
+		else misses.increment();
+		return val;
+	}
+
+	/** Test if a cached key's lease is due for renewal.
+	 *  Returns true to the first caller after three quarters of the lease
+	 *  have passed; that caller should fetch the value again and put() it
+	 *  with the new lease. Until it does, returns true again once every
+	 *  eighth of the lease, in case the fetch or its answer was lost.
+	 *  @param key is the key
+	 *  @param now is the current time in ms
+	 *  @return true if the caller should renew the lease
+	 */
+	public boolean refreshDue(String key, long now) {
+		Segment seg = segs[(spread(key.hashCode()) >>> 28) &
+				   (segs.length - 1)];
+		synchronized (seg) {
+			Entry e = seg.pairs.get(key);
+			if (e == null || now < e.renew || now < e.retry)
+				return false;
+			e.retry = now + (e.expires - e.renew) / 2;
+		}
+		refreshes.increment();
+		return true;
+	}
+
+	/** Offer a pair to the cache.
+	 *  If the key is cached, its value and lease are replaced. Otherwise,
+	 *  if the key's segment is full, the least recently used pair is
+	 *  evicted if its lease has run out; if not, the new pair is only
+	 *  admitted if its key has been looked up more often than the key of
+	 *  the least recently used pair, which is then evicted.
+	 *  @param key is the key
+	 *  @param val is the value
+	 *  @param now is the current time in ms
+	 *  @param lease is the number of ms the value may be served for
+	 *  @return true if the pair is now cached
+	 */
+	public boolean put(String key, String val, long now, int lease) {
+		if (lease <= 0) return false;
+		int h = spread(key.hashCode());
+		Segment seg = segs[(h >>> 28) & (segs.length - 1)];
+		Entry e = new Entry(val, now, lease);
+		synchronized (seg) {
+			if (seg.pairs.containsKey(key) ||
+			    seg.pairs.size() < seg.capacity) {
+				seg.pairs.put(key, e);
+				return true;
+			}
+			Map.Entry<String, Entry> eldest =
+				seg.pairs.entrySet().iterator().next();
+			if (eldest.getValue().expires > now &&
+			    seg.frequency(h) <= seg.frequency(
+					spread(eldest.getKey().hashCode()))) {
+				rejections.increment();
+				return false;
+			}
+			seg.pairs.remove(eldest.getKey());
+			seg.pairs.put(key, e);
+		}
+		evictions.increment();
+		return true;
+	}
+
+	/** Remove a key from the cache, if it is there. */
+	public void remove(String key) {
+		Segment seg = segs[(spread(key.hashCode()) >>> 28) &
+				   (segs.length - 1)];
+		synchronized (seg) { seg.pairs.remove(key); }
+	}
+
+	/** Remove all pairs from the cache. */
+	public void clear() {
+		for (Segment seg : segs) {
+			synchronized (seg) { seg.pairs.clear(); }
+		}
+	}
+
+	/** Get the number of cached pairs. */
+	public int size() {
+		int n = 0;
+		for (Segment seg : segs) {
+			synchronized (seg) { n += seg.pairs.size(); }
+		}
+		return n;
+	}
+
+	/** Report the cache's size and counters, as a string of the form
+	 *  "size=s/capacity hits=h misses=m evictions=e rejected=r
+	 *  expired=x refreshes=f".
+	 */
+	public String stats() {
+		return "size=" + size() + "/" + capacity +
+			" hits=" + hits.sum() + " misses=" + misses.sum() +
+			" evictions=" + evictions.sum() +
+			" rejected=" + rejections.sum() +
+			" expired=" + expirations.sum() +
+			" refreshes=" + refreshes.sum();
+	}
+
+	/** Spread the bits of a hash code, so that its top bits (which pick
+	 *  the segment) vary as much as its low bits.
+	 */
+	private static int spread(int h) {
+		h ^= h >>> 16; h *= 0x85ebca6b;
+		h ^= h >>> 13; h *= 0xc2b2ae35;
+		return h ^ (h >>> 16);
+	}
+
+	/** Derive the hash for row i of a sketch from a spread hash. */
+	private static int rehash(int h, int i) {
+		h += (i + 1) * 0x9e3779b9;
+		h ^= h >>> 15; h *= 0x2c1b3c6d;
+		return h ^ (h >>> 12);
+	}
+}
@@ -0,0 +1,501 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** The copies of other servers' ranges that a DhtServer keeps with
+ *  "replicas=k", and the holders of ranges that it knows of as a relay.
+ *
+ *  The pairs of every range are kept by the k servers that follow its
+ *  owner on the ring (skipping the owner's other virtual nodes), so a hot
+ *  key is served by k+1 servers and a server that crashes does not take
+ *  the only copy of its pairs with it (no server takes over its range,
+ *  though, as crashes go unnoticed). The owner of a range streams its
+ *  pairs over TCP to the first of them, which stores them as a copy of
+ *  the range and streams them on to the next, and so on k times (see
+ *  sync). The owner does so whenever the range or its successor changes,
+ *  so the copies follow joins and leaves. Every put the owner applies is
+ *  also passed down the same chain in a "replicate" packet, whose hash
+ *  field is the first hash of the range, and the owner notes its key.
+ *  Periodically, the owner syncs the range again, but streams only the
+ *  keys noted since the last sync, with their values or as removed; a
+ *  server that has no copy of the same range from the same owner asks
+ *  for all the pairs instead. So a sync costs in proportion to the puts
+ *  since the last one, and one with no puts only says that the range is
+ *  still held; a copy that has not been synced for REPLICA_MS ms, as its
+ *  owner is gone or its chain has moved, is dropped. Copies are updated
+ *  asynchronously, so a get answered from a copy may miss a put that the
+ *  owner has just acknowledged, and one whose replicate packet was lost,
+ *  until the next sync. With virtual nodes, a chain stops early
+ *  if it comes back to a server that holds the range already, so on a
+ *  small ring some ranges have fewer than k copies.
+ *
+ *  Success replies from owners and replicas carry the range in hashRange
+ *  and the next server of the chain in succInfo, from which a relay
+ *  learns which servers hold each range (see learnHolders); it sends each
+ *  get from a client straight to one of them, picked at random, so the
+ *  reads of a hot key are spread over all k+1 copies.
+ */
+public class Replicas {
+	public static final int STREAM = 2; // first byte of a replica stream
+	private static final long REPLICA_MS = 25000; // max time between syncs
+
+	private DhtServer server;	// the server that keeps the copies
+	private Transport transport;	// carries the streams of copies
+	private HashStore map;		// the server's own pairs
+	private int numReplicas;	// servers after the owner with a copy
+	private boolean debug;		// print the streams sent when true
+	private HashStore copies;	// copies of other servers' pairs
+	// ranges we keep copies of, by first hash
+	private ConcurrentSkipListMap<Integer, Range> ranges;
+	// ranges being synced, by first hash: last hash and keys put meanwhile
+	private ConcurrentHashMap<Integer, Pair<Integer, Set<String>>> syncing;
+	// servers known to hold each range, owner first, by first hash
+	private ConcurrentSkipListMap<Integer, Holders> holders;
+	// our own ranges as last synced, by first hash
+	private ConcurrentHashMap<Integer, Synced> synced;
+	private ExecutorService xferOut; // streams copies, one at a time
+
+	/**
+	 * A range of another server's pairs that we keep copies of, and the
+	 * server that we pass its updates on to. It is replaced on every
+	 * sync, never changed in place.
+	 */
+	public static class Range {
+		int lo, hi;		// the range
+		InetSocketAddress owner; // its owner
+		Pair<InetSocketAddress, Integer> next; // next copy, or null
+		long synced;		// time of the last sync, in ms
+	}
+
+	/**
+	 * One of our own ranges as we last synced it: its last hash, the
+	 * server that we sent it to, and the keys put since. It is replaced
+	 * when either changes, or a sync fails, which makes the next sync
+	 * send all the pairs.
+	 */
+	private static class Synced {
+		int hi;			// last hash of the range
+		Pair<InetSocketAddress, Integer> next; // first server of its chain
+		Set<String> keys = new HashSet<String>(); // keys put since
+
+		/** Note the key of a put. */
+		synchronized void note(String key) {
+			keys.add(key);
+		}
+
+		/** Take the keys put since the last call, for a sync. */
+		synchronized Set<String> take() {
+			Set<String> taken = keys;
+			keys = new HashSet<String>();
+			return taken;
+		}
+	}
+
+	/**
+	 * The servers that hold a range, as a relay knows them: the owner,
+	 * then the servers with copies, in the order of the chain.
+	 */
+	private static class Holders {
+		int hi;			// last hash of the range
+		List<InetSocketAddress> adrs =
+			new CopyOnWriteArrayList<InetSocketAddress>();
+	}
+
+	/**
+	 * Initialize a new Replicas object, with no copies.
+	 *
+	 * @param server      is the server that keeps the copies
+	 * @param transport   is the server's transport
+	 * @param map         holds the server's own pairs
+	 * @param numReplicas is the number of servers after the owner of a
+	 *                    range that keep copies of it
+	 * @param debug       prints the streams sent when true
+	 */
+	public Replicas(DhtServer server, Transport transport, HashStore map,
+			int numReplicas, boolean debug) {
+		this.server = server;
+		this.transport = transport;
+		this.map = map;
+		this.numReplicas = numReplicas;
+		this.debug = debug;
+		copies = new HashStore();
+		ranges = new ConcurrentSkipListMap<Integer, Range>();
+		syncing = new ConcurrentHashMap<Integer, Pair<Integer, Set<String>>>();
+		holders = new ConcurrentSkipListMap<Integer, Holders>();
+		synced = new ConcurrentHashMap<Integer, Synced>();
+		xferOut = Executors.newSingleThreadExecutor();
+	}
+
+	/** Stop the thread that streams copies. */
+	public void close() {
+		xferOut.shutdown();
+	}
+
+	/** Get the number of copies we keep. */
+	public int size() {
+		return copies.size();
+	}
+
+	/**
+	 * Send copies of the pairs in a range of ours to the first server of
+	 * its chain of replicas, which passes them on: all of them if the
+	 * range or the server has changed since the last sync, or the last
+	 * sync failed, and only those put since then if not.
+	 *
+	 * @param next is the address and first hash of the virtual node of
+	 *             the first server after ours
+	 * @param lo   is the first hash of the range
+	 * @param hi   is the last hash of the range
+	 */
+	public void sync(Pair<InetSocketAddress, Integer> next, int lo, int hi) {
+		List<InetSocketAddress> held = new ArrayList<InetSocketAddress>();
+		held.add(server.getAddress());
+		Synced last = synced.get(lo);
+		Set<String> keys = null; // all the pairs
+		if (last != null && last.hi == hi && last.next.equals(next)) {
+			keys = last.take();
+		} else {
+			last = new Synced();
+			last.hi = hi;
+			last.next = next;
+			synced.put(lo, last);
+		}
+		Synced sync = last;
+		Set<String> changed = keys;
+		xferOut.execute(() -> {
+			if (!send(next, lo, hi, numReplicas - 1, held, map, changed))
+				synced.remove(lo, sync);
+		});
+	}
+
+	/** Drop the copies that have not been synced for REPLICA_MS ms. */
+	public void expire() {
+		long now = System.currentTimeMillis();
+		for (Range r : ranges.values()) {
+			if (now - r.synced > REPLICA_MS && ranges.remove(r.lo, r))
+				copies.removeRange(r.lo, r.hi);
+		}
+	}
+
+	/**
+	 * Stream copies of the pairs in a range to the next server of its
+	 * chain of replicas, or only those of some keys, if that server has
+	 * a copy of the range from the same owner already; a key that is
+	 * gone goes as removed. The copies are taken only once that server
+	 * is ready for them, so any put applied after that reaches it in a
+	 * replicate packet that it holds on to (see accept).
+	 *
+	 * @param dest  is the address and first hash of the virtual node of
+	 *              the next server that follows the last holder
+	 * @param lo    is the first hash of the range
+	 * @param hi    is the last hash of the range
+	 * @param left  is the number of servers after dest that get copies
+	 * @param held  are the servers that hold the range, owner first
+	 * @param store holds the pairs: map at the owner, copies elsewhere
+	 * @param keys  are the keys put since the last sync, or null to send
+	 *              all the pairs
+	 * @return true if the copies were acknowledged
+	 */
+	private boolean send(Pair<InetSocketAddress, Integer> dest, int lo,
+			     int hi, int left, List<InetSocketAddress> held,
+			     HashStore store, Set<String> keys) {
+		InetSocketAddress adr = dest.left;
+		try (Transport.Stream s = transport.connect(adr)) {
+			DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(s.getOutputStream(), 65536));
+			out.writeByte(STREAM);
+			out.writeInt(dest.right);
+			out.writeInt(lo);
+			out.writeInt(hi);
+			out.writeInt(left);
+			out.writeInt(held.size());
+			for (InetSocketAddress h : held) {
+				out.writeUTF(h.getAddress().getHostAddress());
+				out.writeInt(h.getPort());
+			}
+			out.writeBoolean(keys != null);
+			out.flush();
+			int ready = s.getInputStream().read();
+			int n;
+			if (ready == 2 && keys != null) {
+				Map<String, String> pairs =
+					new LinkedHashMap<String, String>();
+				List<String> removed = new ArrayList<String>();
+				for (String key : keys) {
+					String val = store.get(key);
+					if (val != null) pairs.put(key, val);
+					else removed.add(key);
+				}
+				out.writeInt(removed.size());
+				for (String key : removed)
+					out.writeUTF(key);
+				n = server.writePairs(s, out, pairs) + removed.size();
+			} else if (ready == 1) {
+				keys = null;
+				n = server.writePairs(s, out, store.range(lo, hi));
+			} else {
+				throw new IOException("not ready for copies");
+			}
+			if (debug)
+				System.out.println("sent " + n + (keys != null ?
+						   " changed" : "") + " copies of [" + lo +
+						   "," + hi + "] to " + adr + "\n");
+			return true;
+		} catch (IOException e) {
+			// the next sync tries again, with all the pairs
+			System.err.println("replica sync to " + adr + " failed: " + e);
+			return false;
+		}
+	}
+
+	/**
+	 * Receive the rest of a replica stream: the virtual node it is for,
+	 * the range, the number of servers still to get copies, the servers
+	 * that hold the range already and whether the sender has only the
+	 * keys put since the last sync. If it has, and we have a copy of the
+	 * same range from the same owner, we ask for those keys, and the
+	 * keys removed come first; if not, we ask for all the pairs, which
+	 * replace the copies we had of any range that overlaps this one.
+	 * Until they are stored, the keys of the puts that replicate packets
+	 * bring are noted, and the copies of those keys in the stream, which
+	 * may be older, are skipped. The pairs, or the keys, are passed on
+	 * to the next server unless it holds the range already.
+	 *
+	 * @param s  is the connection that the stream arrived on
+	 * @param in is the stream, after its first byte
+	 */
+	public void accept(Transport.Stream s, DataInputStream in)
+			throws IOException {
+		int pos = in.readInt();
+		Range r = new Range();
+		r.lo = in.readInt();
+		r.hi = in.readInt();
+		int left = in.readInt();
+		List<InetSocketAddress> held = new ArrayList<InetSocketAddress>();
+		for (int i = in.readInt(); i > 0; i--)
+			held.add(new InetSocketAddress(in.readUTF(), in.readInt()));
+		r.owner = held.get(0);
+		Range old = ranges.get(r.lo);
+		boolean delta = in.readBoolean() && old != null &&
+			old.hi == r.hi && old.owner.equals(r.owner);
+		Pair<Integer, Set<String>> changed = new Pair<Integer, Set<String>>(
+			r.hi, new HashSet<String>());
+		syncing.put(r.lo, changed);
+		try {
+			s.getOutputStream().write(delta ? 2 : 1); // ready
+			s.getOutputStream().flush();
+			List<String> removed = new ArrayList<String>();
+			if (delta) {
+				for (int i = in.readInt(); i > 0; i--)
+					removed.add(in.readUTF());
+			}
+			LinkedHashMap<String, String> pairs =
+				new LinkedHashMap<String, String>();
+			while (in.readBoolean())
+				pairs.put(in.readUTF(), in.readUTF());
+			if (in.readInt() != pairs.size()) return; // not acknowledged
+			s.getOutputStream().write(1);
+			s.getOutputStream().flush();
+
+			synchronized (changed) {
+				if (delta) {
+					for (String key : removed) {
+						if (!changed.right.contains(key))
+							copies.remove(key, server.hashit(key));
+					}
+				} else {
+					// drop the copies of ranges that this one replaces
+					for (Range o : ranges.headMap(r.hi, true).values()) {
+						if (o.hi >= r.lo && ranges.remove(o.lo, o))
+							dropCopies(o.lo, o.hi, changed.right);
+					}
+				}
+				for (Map.Entry<String, String> entry : pairs.entrySet()) {
+					if (!changed.right.contains(entry.getKey()))
+						copies.put(entry.getKey(),
+							   server.hashit(entry.getKey()),
+							   entry.getValue());
+				}
+				r.synced = System.currentTimeMillis();
+				Pair<InetSocketAddress, Integer> next = server.nextServer(
+					new Pair<InetSocketAddress, Integer>(
+						server.getAddress(), pos));
+				if (left > 0 && next != null && !held.contains(next.left)) {
+					r.next = next;
+					held.add(server.getAddress());
+					Set<String> keys = null; // all the pairs
+					if (delta) {
+						keys = new HashSet<String>(removed);
+						keys.addAll(pairs.keySet());
+					}
+					Set<String> passed = keys;
+					xferOut.execute(() -> send(next, r.lo, r.hi,
+							left - 1, held, copies, passed));
+				}
+				ranges.put(r.lo, r);
+			}
+		} finally {
+			syncing.remove(r.lo, changed);
+		}
+	}
+
+	/**
+	 * Drop our copies of the pairs in a range, except some keys.
+	 *
+	 * @param lo   is the first hash of the range
+	 * @param hi   is the last hash of the range
+	 * @param keep are the keys to keep
+	 */
+	private void dropCopies(int lo, int hi, Set<String> keep) {
+		for (String key : copies.range(lo, hi).keySet()) {
+			if (!keep.contains(key))
+				copies.remove(key, server.hashit(key));
+		}
+	}
+
+	/**
+	 * Find the range of copies that holds a hash.
+	 *
+	 * @param hash is the hash
+	 * @return the range, or null if we have no up to date copy of it
+	 */
+	public Range rangeFor(int hash) {
+		Map.Entry<Integer, Range> e = ranges.floorEntry(hash);
+		if (e == null) return null;
+		Range r = e.getValue();
+		if (hash > r.hi ||
+		    System.currentTimeMillis() - r.synced > REPLICA_MS)
+			return null;
+		return r;
+	}
+
+	/**
+	 * Get our copy of a key's value.
+	 *
+	 * @param key is the key
+	 * @return the value, or null if we have no copy of the key
+	 */
+	public String get(String key) {
+		return copies.get(key);
+	}
+
+	/**
+	 * Pass a put that we applied as owner on to the next server of its
+	 * range's chain of replicas, and note its key for the next sync.
+	 *
+	 * @param p    is the put's key and value (null to remove the key)
+	 * @param lo   is the first hash of the range
+	 * @param next is the next server, or null if there is none
+	 */
+	public void replicate(Packet p, int lo,
+			      Pair<InetSocketAddress, Integer> next) {
+		Synced sync = synced.get(lo);
+		if (sync != null) sync.note(p.key);
+		passOn(p, lo, next);
+	}
+
+	/**
+	 * Pass a put on to the next server of its range's chain of replicas.
+	 *
+	 * @param p    is the put's key and value (null to remove the key)
+	 * @param lo   is the first hash of the range
+	 * @param next is the next server, or null if there is none
+	 */
+	private void passOn(Packet p, int lo,
+			    Pair<InetSocketAddress, Integer> next) {
+		if (next == null) return;
+		Packet q = new Packet();
+		q.type = "replicate";
+		q.key = p.key;
+		q.val = p.val;
+		q.tag = ThreadLocalRandom.current().nextInt(100000);
+		q.hash = lo;
+		server.send(q, next.left);
+	}
+
+	/**
+	 * Handle a replicate packet, by applying the put to our copy of the
+	 * range and passing it on. A packet for a range that we have no copy
+	 * of, and are not being sent a copy of, is dropped; the next sync
+	 * brings the pair.
+	 *
+	 * @param p is a replicate packet
+	 */
+	public void handleReplicate(Packet p) {
+		int hash = server.hashit(p.key);
+		Pair<Integer, Set<String>> changed = syncing.get(p.hash);
+		if (changed != null && p.hash <= hash && hash <= changed.left) {
+			// the range is being synced; keep this put over the stream's
+			synchronized (changed) {
+				if (syncing.get(p.hash) == changed) {
+					applyCopy(p, hash);
+					changed.right.add(p.key);
+				}
+			}
+		}
+		Range r = ranges.get(p.hash);
+		if (r == null || hash < r.lo || hash > r.hi) return;
+		if (changed == null)
+			applyCopy(p, hash);
+		passOn(p, r.lo, r.next);
+	}
+
+	/** Apply a replicated put to our copies. */
+	private void applyCopy(Packet p, int hash) {
+		if (p.val != null)
+			copies.put(p.key, hash, p.val);
+		else
+			copies.remove(p.key, hash);
+	}
+
+	/**
+	 * Learn from a reply that passes through us as relay which servers
+	 * hold the range of the key. An owner's reply, whose senderInfo is the
+	 * first hash of the range, starts the list; a reply from the last
+	 * server we know of extends it with the next server of the chain.
+	 *
+	 * @param p is a success or no match reply from an owner or a replica
+	 */
+	public void learnHolders(Packet p) {
+		if (p.hashRange == null || p.senderInfo == null) return;
+		int lo = p.hashRange.left, hi = p.hashRange.right;
+		InetSocketAddress sender = p.senderInfo.left;
+		InetSocketAddress next = (p.succInfo != null ? p.succInfo.left : null);
+		Holders h = holders.get(lo);
+		if (p.senderInfo.right == lo) {
+			if (h != null && h.hi == hi && h.adrs.get(0).equals(sender) &&
+			    (h.adrs.size() < 2 || h.adrs.get(1).equals(next)))
+				return; // nothing new
+			// a new or changed range; drop those it overlaps
+			for (Integer x : holders.subMap(lo, true, hi, true).keySet())
+				holders.remove(x);
+			Map.Entry<Integer, Holders> below = holders.lowerEntry(lo);
+			if (below != null && below.getValue().hi >= lo)
+				holders.remove(below.getKey());
+			h = new Holders();
+			h.hi = hi;
+			h.adrs.add(sender);
+			if (next != null) h.adrs.add(next);
+			holders.put(lo, h);
+		} else if (h != null && h.hi == hi && next != null &&
+			   h.adrs.size() <= numReplicas &&
+			   h.adrs.get(h.adrs.size() - 1).equals(sender) &&
+			   !h.adrs.contains(next)) {
+			h.adrs.add(next);
+		}
+	}
+
+	/**
+	 * Pick one of the servers known to hold the range of a hash.
+	 *
+	 * @param hash is the hash
+	 * @return the address of the server, or null if we know of none
+	 */
+	public InetSocketAddress pickHolder(int hash) {
+		Map.Entry<Integer, Holders> e = holders.floorEntry(hash);
+		if (e == null || hash > e.getValue().hi) return null;
+		List<InetSocketAddress> adrs = e.getValue().adrs;
+		return adrs.get(ThreadLocalRandom.current().nextInt(adrs.size()));
+	}
+}
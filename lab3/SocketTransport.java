@@ -0,0 +1,87 @@
+import java.io.*;
+import java.net.*;
+
+/** Transport over real sockets: packets go in UDP datagrams and streams
+ *  over TCP. The UDP socket and the TCP server socket have the same port
+ *  number, so a server's one address serves for both. Bound to the
+ *  loopback address, many of them can run in one process.
+ */
+public class SocketTransport implements Transport {
+	private DatagramSocket sock;	// sends and receives packets
+	private ServerSocket xferSock;	// accepts streams of pairs
+	private InetSocketAddress myAdr;
+
+	/** Open the sockets on a free port.
+	 *  @param myIp is the IP address to bind them to
+	 */
+	public SocketTransport(InetAddress myIp) throws IOException {
+		// find a port number that is free for both UDP and TCP
+		for (int tries = 0; xferSock == null; tries++) {
+			sock = new DatagramSocket(0, myIp);
+			try {
+				xferSock = new ServerSocket(sock.getLocalPort(), 50, myIp);
+			} catch (BindException e) {
+				sock.close();
+				if (tries >= 100) throw e;
+			}
+		}
+		myAdr = new InetSocketAddress(myIp, sock.getLocalPort());
+	}
+
+	public InetSocketAddress getLocalAddress() {
+		return myAdr;
+	}
+
+	public boolean send(Packet p, InetSocketAddress dest, boolean debug) {
+		return p.send(sock, dest, debug);
+	}
+
+	public InetSocketAddress receive(Packet p, boolean debug) {
+		return receive(p, debug, 0);
+	}
+
+	public InetSocketAddress receive(Packet p, boolean debug, int timeoutMs) {
+		if (sock.isClosed()) return null;
+		try {
+			sock.setSoTimeout(timeoutMs);
+		} catch (SocketException e) {
+			return null;
+		}
+		return p.receive(sock, debug);
+	}
+
+	public Stream connect(InetSocketAddress dest) throws IOException {
+		return wrap(new Socket(dest.getAddress(), dest.getPort()));
+	}
+
+	public Stream accept() throws IOException {
+		return wrap(xferSock.accept());
+	}
+
+	public void close() {
+		sock.close();
+		try { xferSock.close(); } catch (IOException e) { }
+	}
+
+	public boolean isClosed() {
+		return sock.isClosed();
+	}
+
+	/** Wrap a connected TCP socket in a Stream. */
+	private static Stream wrap(Socket s) {
+		return new Stream() {
+			public InputStream getInputStream() throws IOException {
+				return s.getInputStream();
+			}
+			public OutputStream getOutputStream() throws IOException {
+				return s.getOutputStream();
+			}
+			public SocketAddress getRemoteSocketAddress() {
+				return s.getRemoteSocketAddress();
+			}
+			public void close() throws IOException {
+				s.close();
+			}
+		};
+	}
+}
@@ -0,0 +1,73 @@
+import java.io.*;
+import java.net.*;
+
+/** How a DhtServer exchanges packets and streams of pairs with others.
+ *
+ *  Packets are datagrams: a send may be lost, and nothing tells the
+ *  sender. Streams are reliable, ordered byte streams between two
+ *  servers, such as the ones that carry the pairs that change owner on
+ *  a join or leave. Every transport has one address, which other
+ *  transports of the same kind use both to send it packets and to
+ *  connect to it.
+ *
+ *  SocketTransport uses a UDP socket and a TCP server socket, and
+ *  MemNetwork connects transports that live in the same process.
+ */
+public interface Transport {
+
+	/** A connection that carries a stream each way. */
+	interface Stream extends Closeable {
+		InputStream getInputStream() throws IOException;
+		OutputStream getOutputStream() throws IOException;
+		/** Get the address of the other end, for messages. */
+		SocketAddress getRemoteSocketAddress();
+	}
+
+	/** Get the address that packets and connections reach us at. */
+	InetSocketAddress getLocalAddress();
+
+	/** Send a packet.
+	 *  @param p is the packet; it is packed before the call returns
+	 *  @param dest is the address of the destination
+	 *  @param debug is a flag; if true, the packet is printed first
+	 *  @return true on success, false on failure
+	 */
+	boolean send(Packet p, InetSocketAddress dest, boolean debug);
+
+	/** Wait for the next packet and unpack it, as Packet.receive does.
+	 *  @param p is the packet to unpack into
+	 *  @param debug is a flag; if true, the packet is printed
+	 *  @return the sender's address, or null on failure, and always
+	 *  once the transport is closed
+	 */
+	InetSocketAddress receive(Packet p, boolean debug);
+
+	/** Wait for the next packet as receive does, but not for long.
+	 *  @param p is the packet to unpack into
+	 *  @param debug is a flag; if true, the packet is printed
+	 *  @param timeoutMs is the longest wait in ms, or 0 to wait as long
+	 *  as receive does
+	 *  @return the sender's address, or null on failure, if no packet
+	 *  came in time, and always once the transport is closed
+	 */
+	InetSocketAddress receive(Packet p, boolean debug, int timeoutMs);
+
+	/** Open a connection to another transport.
+	 *  @param dest is its address
+	 *  @return the connection
+	 */
+	Stream connect(InetSocketAddress dest) throws IOException;
+
+	/** Wait for the next connection from another transport.
+	 *  @return the connection
+	 *  @throws IOException on failure, and always once the transport
+	 *  is closed
+	 */
+	Stream accept() throws IOException;
+
+	/** Close the transport, ending any receive or accept. */
+	void close();
+
+	/** Tell whether close has been called. */
+	boolean isClosed();
+}